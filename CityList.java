@@ -0,0 +1,62 @@
+/* Dense in-memory list of the city ids, used to pick the city that gets
+ * the visit bonus at the end of a round.
+ *
+ * Picking a random index costs the same for any number of cities, where
+ * SELECT ... ORDER BY RANDOM() sorts the whole Cities table. Cities are
+ * only ever added (by the world file), so the list is loaded once at game
+ * start, appended to by Game.insertCity and only reloaded by a restore.
+ */
+import java.sql.*;
+import java.util.Arrays;
+import java.util.Random;
+
+public class CityList
+{
+	private int[] ids = new int[1024];
+	private int size;
+
+	/* Reads all cities of a game from the database. */
+	static CityList load(Connection conn, int game) throws SQLException {
+		CityList l = new CityList();
+		String sql = "SELECT area FROM Cities WHERE game_id = ?";
+		try (Stats.Timer timer = Stats.time(sql); PreparedStatement st = conn.prepareStatement(sql)) {
+			st.setInt(1, game);
+			try (ResultSet rs = st.executeQuery()) {
+				while (rs.next()) {
+					l.add(rs.getInt(1));
+				}
+			}
+			timer.done(l.size());
+		}
+		return l;
+	}
+
+	/* Replaces the cities with those of a game in the database, in place,
+	 * as the sessions of the game share the list (e.g. after a restore). */
+	void reload(Connection conn, int game) throws SQLException {
+		CityList l = load(conn, game);
+		synchronized (this) {
+			ids = l.ids;
+			size = l.size;
+		}
+	}
+
+	synchronized void add(int area) {
+		if (size == ids.length) {
+			ids = Arrays.copyOf(ids, size * 2);
+		}
+		ids[size++] = area;
+	}
+
+	synchronized int size() {
+		return size;
+	}
+
+	/* Picks a random city and returns its area id, or -1 if there are none. */
+	synchronized int pick(Random random) {
+		if (size == 0) {
+			return -1;
+		}
+		return ids[random.nextInt(size)];
+	}
+}
@@ -0,0 +1,268 @@
+/* A small bounded JDBC connection pool.
+ *
+ * Connections are handed out as proxies whose close() returns them to
+ * the pool. A connection that has been idle for longer than the
+ * validation interval is checked with isValid() before it is handed out,
+ * broken connections are replaced by new ones, and idle connections
+ * above the minimum size are closed by a background thread. A restart
+ * of the database therefore only costs the statement that was running
+ * when it went down.
+ */
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+public class ConnectionPool
+{
+	private class Pooled implements InvocationHandler
+	{
+		final Connection physical;
+		final Connection proxy;
+		long lastUsed = System.currentTimeMillis();
+		boolean borrowed;
+		boolean broken;
+
+		Pooled(Connection physical) {
+			this.physical = physical;
+			this.proxy = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+					new Class<?>[] { Connection.class }, this);
+		}
+
+		public Object invoke(Object p, Method m, Object[] args) throws Throwable {
+			String name = m.getName();
+			if ("close".equals(name) && args == null) {
+				giveBack(this);
+				return null;
+			}
+			if ("isClosed".equals(name) && args == null) {
+				return !borrowed || physical.isClosed();
+			}
+			if ("equals".equals(name) && args != null && args.length == 1) {
+				return p == args[0];
+			}
+			if ("hashCode".equals(name) && args == null) {
+				return System.identityHashCode(p);
+			}
+			try {
+				return m.invoke(physical, args);
+			} catch (InvocationTargetException e) {
+				Throwable t = e.getCause();
+				if (t instanceof SQLException && isConnectionError((SQLException) t)) {
+					broken = true;
+				}
+				throw t;
+			}
+		}
+	}
+
+	private final String url;
+	private final Properties props;
+	private final int minSize;
+	private final int maxSize;
+	private final long idleMillis;
+	private final long validateMillis;
+	private final long waitMillis;
+
+	private final Semaphore permits;
+	private final ArrayDeque<Pooled> idle = new ArrayDeque<Pooled>();
+	private final ScheduledExecutorService evictor;
+	private int open;
+	private boolean closed;
+
+	long created;
+	long reconnects;
+	long evicted;
+
+	public ConnectionPool(String url, Properties props, int minSize, int maxSize,
+			long idleMillis, long validateMillis, long waitMillis) {
+		this.url = url;
+		this.props = props;
+		this.minSize = Math.max(0, minSize);
+		this.maxSize = Math.max(1, maxSize);
+		this.idleMillis = idleMillis;
+		this.validateMillis = validateMillis;
+		this.waitMillis = waitMillis;
+		this.permits = new Semaphore(this.maxSize, true);
+		this.evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "pool-evictor");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		long period = Math.max(1000, idleMillis / 2);
+		evictor.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				evictIdle();
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/* Builds a pool from the settings read from config.cfg. */
+	static ConnectionPool fromConfig(String url, Properties props, Properties config) {
+		return new ConnectionPool(url, props,
+				Integer.parseInt(config.getProperty("POOL_MIN", "1")),
+				Integer.parseInt(config.getProperty("POOL_MAX", "8")),
+				Long.parseLong(config.getProperty("POOL_IDLE_SECONDS", "300")) * 1000,
+				Long.parseLong(config.getProperty("POOL_VALIDATE_MS", "1000")),
+				Long.parseLong(config.getProperty("POOL_WAIT_SECONDS", "30")) * 1000);
+	}
+
+	/* True for errors that mean the connection itself is gone:
+	 * SQLSTATE class 08 and the server shutdown codes 57P01-57P03.
+	 */
+	static boolean isConnectionError(SQLException e) {
+		String state = e.getSQLState();
+		return state != null && (state.startsWith("08") || state.startsWith("57P0"));
+	}
+
+	/* Borrows a connection. Closing the returned connection gives it back. */
+	Connection getConnection() throws SQLException {
+		try {
+			if (!permits.tryAcquire(waitMillis, TimeUnit.MILLISECONDS)) {
+				throw new SQLException("Timed out waiting for a database connection", "08001");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted waiting for a database connection", "08001");
+		}
+		try {
+			Pooled p;
+			while ((p = takeIdle()) != null) {
+				if (System.currentTimeMillis() - p.lastUsed < validateMillis || p.physical.isValid(5)) {
+					break;
+				}
+				synchronized (this) {
+					++reconnects;
+				}
+				destroy(p);
+			}
+			if (p == null) {
+				p = new Pooled(DriverManager.getConnection(url, props));
+				synchronized (this) {
+					++open;
+					++created;
+				}
+			}
+			p.borrowed = true;
+			p.broken = false;
+			return p.proxy;
+		} catch (SQLException e) {
+			permits.release();
+			throw e;
+		} catch (RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	/* Marks a borrowed connection as broken, it is closed instead of
+	 * being reused when it is given back.
+	 */
+	void invalidate(Connection conn) {
+		if (Proxy.isProxyClass(conn.getClass()) && Proxy.getInvocationHandler(conn) instanceof Pooled) {
+			((Pooled) Proxy.getInvocationHandler(conn)).broken = true;
+		}
+	}
+
+	private synchronized Pooled takeIdle() throws SQLException {
+		if (closed) {
+			throw new SQLException("Connection pool is closed", "08003");
+		}
+		return idle.pollFirst();
+	}
+
+	private void giveBack(Pooled p) {
+		if (!p.borrowed) {
+			return;
+		}
+		p.borrowed = false;
+		p.lastUsed = System.currentTimeMillis();
+		boolean keep = !p.broken;
+		if (keep) {
+			try {
+				if (!p.physical.getAutoCommit()) {
+					p.physical.rollback();
+					p.physical.setAutoCommit(true);
+				}
+			} catch (SQLException e) {
+				keep = false;
+			}
+		}
+		synchronized (this) {
+			if (keep && !closed) {
+				idle.addFirst(p);
+			} else {
+				keep = false;
+			}
+		}
+		if (!keep) {
+			destroy(p);
+		}
+		permits.release();
+	}
+
+	private void destroy(Pooled p) {
+		StatementCache.release(p.proxy);
+		try {
+			p.physical.close();
+		} catch (SQLException e) {
+			// Already gone.
+		}
+		synchronized (this) {
+			--open;
+		}
+	}
+
+	/* Closes connections that were idle for too long, keeping minSize open. */
+	private void evictIdle() {
+		long now = System.currentTimeMillis();
+		ArrayList<Pooled> victims = new ArrayList<Pooled>();
+		synchronized (this) {
+			Iterator<Pooled> it = idle.descendingIterator();
+			while (it.hasNext() && open - victims.size() > minSize) {
+				Pooled p = it.next();
+				if (now - p.lastUsed > idleMillis) {
+					it.remove();
+					victims.add(p);
+				}
+			}
+			evicted += victims.size();
+		}
+		for (Pooled p : victims) {
+			destroy(p);
+		}
+	}
+
+	synchronized int openConnections() {
+		return open;
+	}
+
+	synchronized int idleConnections() {
+		return idle.size();
+	}
+
+	void close() {
+		evictor.shutdownNow();
+		ArrayList<Pooled> all;
+		synchronized (this) {
+			closed = true;
+			all = new ArrayList<Pooled>(idle);
+			idle.clear();
+		}
+		for (Pooled p : all) {
+			destroy(p);
+		}
+	}
+}
@@ -13,9 +13,14 @@ import java.sql.*; // JDBC stuff.
 import java.util.Calendar;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Random;
 import java.io.*;  // Reading user input.
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
 //This is  a comment
 public class Game
 {
@@ -25,41 +30,370 @@ public class Game
 		String personnummer;
 		String country;
 		private String startingArea;
+		/* Id in personKeys, -1 while the player does not exist yet. */
+		private int personId;
+
+		/* Location (an area id) and budget as last read from or written to
+		 * Persons. The location is written through by changeLocation; the
+		 * budget is also changed by triggers, so every write invalidates it. */
+		int location = -1;
+		BigDecimal budget;
+		boolean locationKnown;
+		boolean budgetKnown;
 
 		public Player (String name, String nr, String cntry, String startingArea) {
 			this.playername = name;
 			this.personnummer = nr;
 			this.country = cntry;
 			this.startingArea = startingArea;
+			this.personId = personKeys.id(cntry, nr);
+		}
+
+		/* The player's id, or -1 if the player does not exist. */
+		int id() {
+			if (personId < 0) {
+				personId = personKeys.id(country, personnummer);
+			}
+			return personId;
+		}
+
+		/* Name and country of the location, for the console. */
+		String locationArea() {
+			return areaKeys.first(location);
+		}
+
+		String locationCountry() {
+			return areaKeys.second(location);
+		}
+
+		/* Call when the budget may have changed in the database,
+		 * e.g. when another player paid road tax or a hotel fee to us. */
+		void invalidateBudget() {
+			budgetKnown = false;
+		}
+
+		/* Forget everything, e.g. after a failed commit. */
+		void invalidate() {
+			locationKnown = false;
+			budgetKnown = false;
 		}
 	}
 
  	String USERNAME = "USERNAME";
  	String PASSWORD = "PASSWORD";
 
+	/* Load the world file with WorldLoader (batched, one transaction)
+	 * instead of line by line through insertTown/insertCity/insertRoad. */
+	boolean bulkload = false;
+
+	/* Database connections, created in play() from config.cfg. */
+	ConnectionPool pool;
+
+	/* The game whose rows this Game reads and writes (GAME_ID in config.cfg,
+	 * or -game). Every table is partitioned by it, so games sharing a
+	 * database never see or lock each other's rows. */
+	int gameId = 1;
+	/* -game was given, which wins over GAME_ID. */
+	boolean gameFixed;
+
+	/* Ids of the game's areas and persons, which the tables and the
+	 * in-memory structures use instead of the names (see KeyTable).
+	 * Shared by all sessions of the game. */
+	KeyTable areaKeys = new KeyTable();
+	KeyTable personKeys = new KeyTable();
+
+	/* Number of statements run through prepare(), i.e. database round trips. */
+	long statements;
+
+	/* Number of buy, refund and move actions attempted, successful or not;
+	 * GameEngine drops its TurnCache when it changes. */
+	long writes;
+
+	/* Changes to the road graph, budgets and leaderboard made by a
+	 * transaction that has not committed yet (see afterCommit). */
+	private final ArrayList<Runnable> uncommitted = new ArrayList<Runnable>();
+
+	/* Prefetch the usual reads of a turn while the player types (PREFETCH=off
+	 * in config.cfg turns it off, see TurnCache). */
+	boolean prefetch = true;
+
+	/* Listings longer than this are not prefetched, since TurnCache keeps
+	 * their whole text (PREFETCH_MAX_ROWS in config.cfg). */
+	int prefetchMaxRows = 10000;
+
+	/* Move with the move_player() procedure; off leaves the accounting to
+	 * the updPersons/updPersons2 triggers (MOVE_PROCEDURE=off in config.cfg). */
+	boolean moveProcedure = true;
+
+	/* Where the game output goes; GameEngine sessions capture it per command. */
+	PrintStream out = System.out;
+
+	/* Rows fetched per round trip by listings (FETCH_SIZE in config.cfg).
+	 * Inside a transaction, as in a turn, the driver then reads the result
+	 * through a cursor instead of all at once. */
+	int fetchSize = 1000;
+
+	/* Retries of actions that deadlocked or failed to serialize, and the
+	 * first backoff in milliseconds (MAX_RETRIES, RETRY_BACKOFF_MS). */
+	int maxRetries = 5;
+	long retryBackoff = 5;
+
+	/* The players of this game by budget and by budget plus assets, kept
+	 * up to date by createPlayer and refreshBudgets. */
+	final Leaderboard leaderboard = new Leaderboard();
+
+	/* Listing output is collected here and written to out in blocks. */
+	private final StringBuilder listing = new StringBuilder(LISTING_BLOCK);
+	private static final int LISTING_BLOCK = 8192;
+	private static final String NL = System.lineSeparator();
+
+	/* Commands are read from here, the console or with -replay a script.
+	 * One reader for the whole game, so nothing it buffered is lost. */
+	BufferedReader input;
+	boolean replay;
+	/* -restore: start from this snapshot instead of the world file. */
+	String restoreFile;
+
+	/* -quiet: discard the game output (e.g. when replaying). */
+	boolean quiet;
+
+	/* In-memory copy of Roads for next moves, or null to use the next_moves()
+	 * function. With verifyGraph every answer is also checked against the view. */
+	RoadGraph graph;
+	boolean verifyGraph;
+
+	/* City keys for picking the visit bonus city, loaded on first use. */
+	CityList cities;
+
+	/* Random numbers for the game, seeded with SEED from config.cfg for
+	 * reproducible games. */
+	Random random = new Random();
+
+	/* Returns a Game for another session that shares the connection pool
+	 * and the in-memory structures of this one.
+	 */
+	Game newSession() {
+		Game g = new Game();
+		g.pool = pool;
+		g.gameId = gameId;
+		g.areaKeys = areaKeys;
+		g.personKeys = personKeys;
+		g.graph = graph;
+		g.verifyGraph = verifyGraph;
+		g.moveProcedure = moveProcedure;
+		g.fetchSize = fetchSize;
+		g.prefetch = prefetch;
+		g.prefetchMaxRows = prefetchMaxRows;
+		g.maxRetries = maxRetries;
+		g.retryBackoff = retryBackoff;
+		g.cities = cities;
+		/* Sessions opened in the same order get the same seeds. */
+		g.random = new Random(random.nextLong());
+		return g;
+	}
+
+	/* Returns a Game for a session that plays a game of its own: a copy of
+	 * this game's world under a new id (copy_game), with its own ids, road
+	 * graph and city list. Only the connection pool and the settings are
+	 * shared. The caller drops the game when the session ends.
+	 */
+	Game newGame() throws SQLException {
+		Game g = newSession();
+		g.gameId = withConnection(conn -> {
+			PreparedStatement st = prepare(conn, "SELECT copy_game(?)");
+			st.setInt(1, gameId);
+			try (ResultSet rs = query(st)) {
+				rs.next();
+				rows(st, 1);
+				return rs.getInt(1);
+			}
+		});
+		g.areaKeys = new KeyTable();
+		g.personKeys = new KeyTable();
+		g.graph = null;
+		g.cities = null;
+		try {
+			g.withRetriedConnection(conn -> { g.loadKeys(conn); return null; });
+			if (graph != null) {
+				g.graph = g.withRetriedConnection(conn -> RoadGraph.load(conn, g.gameId, g.areaKeys));
+			}
+			if (cities != null) {
+				g.cities = g.withRetriedConnection(conn -> CityList.load(conn, g.gameId));
+			}
+		} catch (SQLException e) {
+			try {
+				g.withConnection(conn -> { g.dropGame(conn); return null; });
+			} catch (SQLException de) {
+				e.addSuppressed(de);
+			}
+			throw e;
+		}
+		return g;
+	}
+
+	/* Applies the optional game settings from config.cfg. */
+	void configure(Properties config) {
+		moveProcedure = !"off".equals(config.getProperty("MOVE_PROCEDURE", "on"));
+		if (!gameFixed) {
+			gameId = Integer.parseInt(config.getProperty("GAME_ID", Integer.toString(gameId)));
+		}
+		fetchSize = Integer.parseInt(config.getProperty("FETCH_SIZE", "1000"));
+		prefetch = !"off".equals(config.getProperty("PREFETCH", "on"));
+		prefetchMaxRows = Integer.parseInt(config.getProperty("PREFETCH_MAX_ROWS", "10000"));
+		maxRetries = Integer.parseInt(config.getProperty("MAX_RETRIES", "5"));
+		retryBackoff = Long.parseLong(config.getProperty("RETRY_BACKOFF_MS", "5"));
+		String seed = config.getProperty("SEED");
+		if (seed != null) {
+			random = new Random(Long.parseLong(seed));
+		}
+		Stats.enabled = !"off".equals(config.getProperty("STATS", "on"));
+		String statsFile = config.getProperty("STATS_FILE");
+		if (statsFile != null) {
+			Stats.startDump(statsFile, Integer.parseInt(config.getProperty("STATS_INTERVAL", "60")));
+		}
+	}
+
+	/* Loads the road graph unless ROAD_GRAPH=off is configured;
+	 * ROAD_GRAPH=verify also compares every answer with the view.
+	 */
+	void loadRoadGraph(Properties config) {
+		String mode = config.getProperty("ROAD_GRAPH", "on");
+		if ("off".equals(mode)) {
+			return;
+		}
+		try {
+			long start = System.nanoTime();
+			graph = withRetriedConnection(conn -> RoadGraph.load(conn, gameId, areaKeys));
+			verifyGraph = "verify".equals(mode);
+			out.println("Road graph: " + graph.areaCount() + " areas, " + graph.roadCount() + " roads loaded in "
+					+ (System.nanoTime() - start) / 1000000 + " ms");
+		} catch (SQLException e) {
+			out.println(e.getMessage());
+		}
+	}
+
+	/* Loads the city list up front, so sessions share one copy. */
+	void loadCities() {
+		try {
+			cities = withRetriedConnection(conn -> CityList.load(conn, gameId));
+		} catch (SQLException e) {
+			out.println(e.getMessage());
+		}
+	}
+
+	/* Reads the ids of the game's areas and persons from the database, so
+	 * that names can be resolved and new ids are assigned after them. */
+	void loadKeys(Connection conn) throws SQLException {
+		areaKeys.load(conn, "SELECT id, name, country FROM Areas WHERE game_id = ?", gameId);
+		personKeys.load(conn, "SELECT id, country, personnummer FROM Persons WHERE game_id = ?", gameId);
+	}
+
+	/* Reloads the ids, and the road graph and the city list if they are in
+	 * use, after the tables were replaced by a restore. All of them are
+	 * shared with the other sessions of the game and refilled in place. */
+	void reloadWorld() throws SQLException {
+		withRetriedConnection(conn -> { loadKeys(conn); return null; });
+		if (graph != null) {
+			withRetriedConnection(conn -> { graph.reload(conn, gameId); return null; });
+		}
+		if (cities != null) {
+			withRetriedConnection(conn -> { cities.reload(conn, gameId); return null; });
+		}
+	}
+
 	/* Print command optionssetup.
 	* /!\ you don't need to change this function! */
 	public void optionssetup() {
-		System.out.println();
-		System.out.println("Setup-Options:");
-		System.out.println("		n[ew player] <player name> <personnummer> <country>");
-		System.out.println("		d[one]");
-		System.out.println();
+		out.println();
+		out.println("Setup-Options:");
+		out.println("		n[ew player] <player name> <personnummer> <country>");
+		out.println("		d[one]");
+		out.println("		res[tore] <file>");
+		out.println();
 	}
 
  	/* Print command options.
  	* /!\ you don't need to change this function! */
  	public void options() {
-		System.out.println("\nOptions:");
-		System.out.println("    n[ext moves] [area name] [area country]");
-		System.out.println("    l[ist properties] [player number] [player country]");
-		System.out.println("    s[cores]");
-		System.out.println("    r[efund] <area1 name> <area1 country> [area2 name] [area2 country]");
-		System.out.println("    b[uy] [name] <area1 name> <area1 country> [area2 name] [area2 country]");
-		System.out.println("    m[ove] <area1 name> <area1 country>");
-		System.out.println("    p[layers]");
-		System.out.println("    q[uit move]");
-		System.out.println("    [...] is optional\n");
+		out.println("\nOptions:");
+		out.println("    n[ext moves] [area name] [area country]");
+		out.println("    l[ist properties] [player number] [player country]");
+		out.println("    s[cores]");
+		out.println("    st[ats]");
+		out.println("    r[efund] <area1 name> <area1 country> [area2 name] [area2 country]");
+		out.println("    ro[ute] <area name> <area country>");
+		out.println("    rea[ch] [budget]");
+		out.println("    ra[nk]");
+		out.println("    t[op] <k>");
+		out.println("    b[uy] [name] <area1 name> <area1 country> [area2 name] [area2 country]");
+		out.println("    m[ove] <area1 name> <area1 country>");
+		out.println("    p[layers]");
+		out.println("    q[uit move]");
+		out.println("    sn[apshot] <file>");
+		out.println("    res[tore] <file>");
+		out.println("    [...] is optional\n");
+	}
+
+	/* Returns the cached prepared statement for sql on the given connection.
+	 * The statement stays open, callers only close their result sets.
+	 * Run it with query() or update() so that Stats records it.
+	 */
+	PreparedStatement prepare(Connection conn, String sql) throws SQLException {
+		++statements;
+		return StatementCache.of(conn).get(sql);
+	}
+
+	/* Same as prepare() for stored procedure calls. */
+	CallableStatement prepareCall(Connection conn, String sql) throws SQLException {
+		++statements;
+		return StatementCache.of(conn).call(sql);
+	}
+
+	/* Runs the query of a statement from prepare() and records it; report
+	 * the rows read from it with rows(). */
+	ResultSet query(PreparedStatement st) throws SQLException {
+		return Stats.query(st, StatementCache.execution(st));
+	}
+
+	/* Records the rows read from the result of query(st). */
+	void rows(PreparedStatement st, long rows) {
+		Stats.rows(StatementCache.execution(st), rows);
+	}
+
+	/* Runs the update of a statement from prepare() and records it. */
+	int update(PreparedStatement st) throws SQLException {
+		return Stats.update(st, StatementCache.execution(st));
+	}
+
+	/* Inserts a country unless it already exists. */
+	void insertCountry(Connection conn, String country) throws SQLException {
+		PreparedStatement st = prepare(conn, "INSERT INTO Countries VALUES (?,?) ON CONFLICT DO NOTHING");
+		st.setInt(1, gameId);
+		st.setString(2, country);
+		update(st);
+	}
+
+	/* Inserts an area, creating its country when needed, and returns its id. */
+	int insertArea(Connection conn, String name, String country, String population) throws SQLException {
+		insertCountry(conn, country);
+		int id = areaKeys.intern(name, country);
+		PreparedStatement st = prepare(conn, "INSERT INTO Areas VALUES (?,?,?,?,cast(? as INT))");
+		st.setInt(1, gameId);
+		st.setInt(2, id);
+		st.setString(3, country);
+		st.setString(4, name);
+		st.setString(5, population);
+		update(st);
+		return id;
+	}
+
+	/* The id of an area named in a command, or -1 after saying there is none. */
+	int areaId(String name, String country) {
+		int id = areaKeys.id(name, country);
+		if (id < 0) {
+			out.println("No such area: " + name + " (" + country + ")");
+		}
+		return id;
 	}
 
 	/* Given a town name, country and population, this function
@@ -67,36 +401,11 @@ public class Game
  	 * for the given attributes.
  	 */
 	void insertTown(Connection conn, String name, String country, String population) throws SQLException  {
-		try {
-			PreparedStatement stx2 = conn.prepareStatement("INSERT INTO Countries VALUES (?)");
-			stx2.setString(1, country);
-			int tmp = stx2.executeUpdate();
-			stx2.close();
-		    PreparedStatement st = conn.prepareStatement("INSERT INTO Areas VALUES (?,?,cast(? as INT))");
-		    st.setString(1, country);
-		    st.setString(2, name);
-		    st.setString(3, population);
-		    int rs = st.executeUpdate();
-		    st.close();
-		    PreparedStatement st2 = conn.prepareStatement("INSERT INTO Towns VALUES(?,?)");
-		    st2.setString(1, country);
-		    st2.setString(2, name);
-		    int rs2 = st2.executeUpdate();
-		    st2.close();
-		}
-		catch (SQLException se) {
-		    PreparedStatement st = conn.prepareStatement("INSERT INTO Areas VALUES (?,?,cast(? as INT))");
-		    st.setString(1, country);
-		    st.setString(2, name);
-		    st.setString(3, population);
-		    int rs = st.executeUpdate();
-		    st.close();
-		    PreparedStatement st2 = conn.prepareStatement("INSERT INTO Towns VALUES(?,?)");
-		    st2.setString(1, country);
-		    st2.setString(2, name);
-		    int rs2 = st2.executeUpdate();
-		    st2.close();
-		}
+		int id = insertArea(conn, name, country, population);
+		PreparedStatement st = prepare(conn, "INSERT INTO Towns VALUES(?,?)");
+		st.setInt(1, gameId);
+		st.setInt(2, id);
+		update(st);
 	}
 
 	/* Given a city name, country and population, this function
@@ -105,91 +414,92 @@ public class Game
  	 * The city visitbonus should be set to 0.
  	 */
 	void insertCity(Connection conn, String name, String country, String population) throws SQLException {
-		try {
-			PreparedStatement stx2 = conn.prepareStatement("INSERT INTO Countries VALUES (?)");
-			stx2.setString(1, country);
-			int tmp = stx2.executeUpdate();
-			stx2.close();
-			PreparedStatement st = conn.prepareStatement("INSERT INTO Areas VALUES (?,?,cast(? as INT))");
-		    st.setString(1, country);
-		    st.setString(2, name);
-		    st.setString(3, population);
-		    int rs = st.executeUpdate();
-		    st.close();
-		    PreparedStatement st2 = conn.prepareStatement("INSERT INTO Cities VALUES(?,?,cast(? as INT))");
-		    st2.setString(1, country);
-		    st2.setString(2, name);
-		    st2.setString(3, "0");
-		    int rs2 = st2.executeUpdate();
-		    st2.close();
-		}
-		catch (SQLException se) {
-		    PreparedStatement st = conn.prepareStatement("INSERT INTO Areas VALUES (?,?,cast(? as INT))");
-		    st.setString(1, country);
-		    st.setString(2, name);
-		    st.setString(3, population);
-		    int rs = st.executeUpdate();
-		    st.close();
-		    PreparedStatement st2 = conn.prepareStatement("INSERT INTO Cities VALUES(?,?,cast(? as INT))");
-		    st2.setString(1, country);
-		    st2.setString(2, name);
-		    st2.setString(3, "0");
-		    int rs2 = st2.executeUpdate();
-		    st2.close();
+		int id = insertArea(conn, name, country, population);
+		PreparedStatement st = prepare(conn, "INSERT INTO Cities VALUES(?,?,0)");
+		st.setInt(1, gameId);
+		st.setInt(2, id);
+		update(st);
+		if (cities != null) {
+			cities.add(id);
 		}
 	}
 
 	/* Given two areas, this function
  	 * should try to insert a government owned road with tax 0
- 	 * between these two areas.
+ 	 * between these two areas
+	 * and return 1 in case of a success and 0 otherwise.
  	 */
-	void insertRoad(Connection conn, String area1, String country1, String area2, String country2) throws SQLException {
+	int insertRoad(Connection conn, String area1, String country1, String area2, String country2) throws SQLException {
+		int a = areaId(area1, country1);
+		int b = areaId(area2, country2);
+		if (a < 0 || b < 0) {
+			return 0;
+		}
+		Savepoint sp = savepoint(conn);
 		try {
-			PreparedStatement st = conn.prepareStatement("INSERT INTO Roads VALUES (?,?,?,?,?,?,cast(? as INT))");
-			String empty = "";
-			st.setString(2, area1);
-			st.setString(1, country1);
-			st.setString(3, country2);
-			st.setString(4, area2);
-			st.setString(5, empty);
-			st.setString(6, empty);
-			st.setString(7, "0");
-			int rs = st.executeUpdate();
-			st.close();
+			PreparedStatement st = prepare(conn, "INSERT INTO Roads VALUES (?,?,?,?,0)");
+			st.setInt(1, gameId);
+			st.setInt(2, a);
+			st.setInt(3, b);
+			st.setInt(4, KeyTable.GOVERNMENT);
+			update(st);
+			if (graph != null) {
+				afterCommit(conn, () -> graph.addRoad(a, b, RoadGraph.GOVERNMENT, 0));
+			}
 		}
 		catch(SQLException se) {
-			System.out.println(se.getMessage());
+			rollback(conn, sp);
+			out.println(se.getMessage());
+			return 0;
 		}
+		return 1;
 	}
 
 	/* Given a player, this function
 	 * should return the area name of the player's current location.
 	 */
 	String getCurrentArea(Connection conn, Player person) throws SQLException {
-	    PreparedStatement st = conn.prepareStatement("SELECT locationarea FROM Persons WHERE(Persons.personnummer = ? AND Persons.country = ?)");
-	    st.setString(1, person.personnummer);
-	    st.setString(2, person.country);
-	    ResultSet rs = st.executeQuery();
-	    rs.next();
-	    String loccarea = rs.getString("locationarea");
-	    rs.close();
-	    st.close();
-	    return loccarea;
+		return areaKeys.first(getLocation(conn, person));
 	}
 
 	/* Given a player, this function
 	 * should return the country name of the player's current location.
 	 */
 	String getCurrentCountry(Connection conn, Player person) throws SQLException {
-		 PreparedStatement st = conn.prepareStatement("SELECT locationcountry FROM Persons WHERE(Persons.personnummer = ? AND Persons.country = ?)");
-		    st.setString(1, person.personnummer);
-		    st.setString(2, person.country);
-		    ResultSet rs = st.executeQuery();
-		    rs.next();
-		    String loccountry = rs.getString("locationcountry");
-		    rs.close();
-		    st.close();
-		    return loccountry;
+		return areaKeys.second(getLocation(conn, person));
+	}
+
+	/* Returns the area id of the player's location. */
+	int getLocation(Connection conn, Player person) throws SQLException {
+		if (!person.locationKnown) {
+			refreshPlayer(conn, person);
+		}
+		return person.location;
+	}
+
+	/* Given a player, this function returns the player's budget. */
+	BigDecimal getBudget(Connection conn, Player person) throws SQLException {
+		if (!person.budgetKnown) {
+			refreshPlayer(conn, person);
+		}
+		return person.budget;
+	}
+
+	/* Reads location and budget of the player with a single query. */
+	void refreshPlayer(Connection conn, Player person) throws SQLException {
+		PreparedStatement st = prepare(conn, "SELECT location,budget FROM Persons WHERE(Persons.game_id = ? AND Persons.id = ?)");
+		st.setInt(1, gameId);
+		st.setInt(2, person.id());
+		try (ResultSet rs = query(st)) {
+			if (!rs.next()) {
+				throw new SQLException("No such person: " + person.personnummer + " (" + person.country + ")");
+			}
+			rows(st, 1);
+			person.location = rs.getInt("location");
+			person.budget = rs.getBigDecimal("budget");
+			person.locationKnown = true;
+			person.budgetKnown = true;
+		}
 	}
 
 	/* Given a player, this function
@@ -198,57 +508,150 @@ public class Game
  	 * The location should be random and the budget should be 1000.
 	 */
 	int createPlayer(Connection conn, Player person) throws SQLException {
+		/* Players start in an area of their own country. */
+		int area = areaId(person.startingArea, person.country);
+		if (area < 0) {
+			return 0;
+		}
+		int id = personKeys.intern(person.country, person.personnummer);
+		Savepoint sp = savepoint(conn);
 		try {
-		    PreparedStatement st = conn.prepareStatement("INSERT INTO Persons VALUES(?,?,?,?,?,cast(? as INT))");
-		    st.setString(1, person.country);
-		    st.setString(2, person.personnummer);
-		    st.setString(3, person.playername);
-		    st.setString(4, person.country);
-		    st.setString(5, person.startingArea);
-		    st.setString(6, "1000");
-		    int rs = st.executeUpdate();
-		    System.out.println(st.toString());
-		}
-	    catch(SQLException se) {
-	    	System.out.println(se.getMessage());
-	    	return 0;
-	    }
+			PreparedStatement st = prepare(conn, "INSERT INTO Persons VALUES(?,?,?,?,?,?,1000)");
+			st.setInt(1, gameId);
+			st.setInt(2, id);
+			st.setString(3, person.country);
+			st.setString(4, person.personnummer);
+			st.setString(5, person.playername);
+			st.setInt(6, area);
+			update(st);
+		}
+		catch(SQLException se) {
+			rollback(conn, sp);
+			out.println(se.getMessage());
+			return 0;
+		}
+		person.personId = id;
+		person.location = area;
+		person.budget = new BigDecimal(1000);
+		person.locationKnown = true;
+		person.budgetKnown = true;
+		leaderboard.update(id, person.playername, person.country, person.personnummer, person.budget, person.budget);
 		return 1;
 	}
 
+	/* Reads budget and assets of all players with one query, after taxes
+	 * and hotel fees may have gone to any of them, and updates the cached
+	 * budgets and the leaderboard once the transaction commits.
+	 */
+	void refreshBudgets(Connection conn, List<Player> players) throws SQLException {
+		if (players.isEmpty()) {
+			return;
+		}
+		Integer[] ids = new Integer[players.size()];
+		HashMap<Integer, Player> byId = new HashMap<Integer, Player>();
+		for (int i = 0; i < players.size(); ++i) {
+			Player p = players.get(i);
+			ids[i] = p.id();
+			byId.put(ids[i], p);
+		}
+		PreparedStatement st = prepare(conn, "SELECT person, budget, assets FROM AssetSummary WHERE game_id = ? AND person = ANY(?)");
+		st.setInt(1, gameId);
+		st.setArray(2, conn.createArrayOf("integer", ids));
+		try (ResultSet rs = query(st)) {
+			long n = 0;
+			while (rs.next()) {
+				++n;
+				Player p = byId.get(rs.getInt(1));
+				if (p == null) {
+					continue;
+				}
+				BigDecimal budget = rs.getBigDecimal(2);
+				BigDecimal worth = budget.add(rs.getBigDecimal(3));
+				afterCommit(conn, () -> {
+					p.budget = budget;
+					p.budgetKnown = true;
+					leaderboard.update(p.id(), p.playername, p.country, p.personnummer, budget, worth);
+				});
+			}
+			rows(st, n);
+		}
+	}
+
+	/* Prints the player's rank by budget and by budget plus assets. */
+	void showRank(Player person) {
+		Leaderboard.Entry e = leaderboard.get(person.id());
+		if (e == null) {
+			out.println("Not ranked yet.");
+			return;
+		}
+		int n = leaderboard.size();
+		out.println("Rank " + leaderboard.rank(e, false) + " of " + n + " by budget (" + e.budget + "), rank "
+				+ leaderboard.rank(e, true) + " of " + n + " by budget and assets (" + e.worth + ")");
+	}
+
+	/* Prints the k highest budgets, with everyone tied with the last. */
+	void showTop(int k) {
+		for (Leaderboard.Entry e : leaderboard.top(k)) {
+			out.println(leaderboard.rank(e, false) + ". " + e.name + " (" + e.personnummer + ", " + e.country + "): " + e.budget);
+		}
+	}
+
 	/* Given a player and an area name and country name, this function
 	 * sould show all directly-reachable destinations for the player from the
 	 * area from the arguments.
 	 * The output should include area names, country names and the associated road-taxes
  	 */
 	void getNextMoves(Connection conn, Player person, String area, String country) throws SQLException {
-	    PreparedStatement st = conn.prepareStatement("SELECT destarea,destcountry,cost FROM NextMoves2 WHERE (personnummer = ? AND personcountry = ? AND fromar = ? AND fromcr = ?)");
-	    st.setString(1, person.personnummer);
-	    st.setString(2, person.country);
-	    st.setString(3, area);
-	    st.setString(4, country);
-	    ResultSet rs = st.executeQuery();
-	    while(rs.next()) {
-	    	System.out.println("Area: " + rs.getString("destarea") + " Country: " + rs.getString("destcountry") + " Cost : " + rs.getString("cost"));
-	    }
-	    rs.close();
-	    st.close();
+		int a = areaId(area, country);
+		if (a >= 0) {
+			getNextMoves(conn, person, a);
+		}
+	}
+
+	/* Shows the moves of the player from the area with the given id. */
+	void getNextMoves(Connection conn, Player person, int area) throws SQLException {
+		if (graph == null) {
+			for (String[] m : queryNextMoves(conn, person, area)) {
+				out.println("Area: " + m[0] + " Country: " + m[1] + " Cost : " + m[2]);
+			}
+			return;
+		}
+		ArrayList<String> moves = graph.printNextMoves(out, person.id(), area);
+		if (verifyGraph) {
+			ArrayList<String> expected = new ArrayList<String>();
+			for (String[] m : queryNextMoves(conn, person, area)) {
+				expected.add(m[0] + "," + m[1] + "," + RoadGraph.format(Double.parseDouble(m[2])));
+			}
+			if (!new HashSet<String>(expected).equals(new HashSet<String>(moves))) {
+				out.println("Road graph differs from next_moves(): expected " + expected + ", got " + moves);
+			}
+		}
  	}
 
+	/* Returns the moves from the next_moves() function as {area, country, cost}. */
+	ArrayList<String[]> queryNextMoves(Connection conn, Player person, int area) throws SQLException {
+		ArrayList<String[]> moves = new ArrayList<String[]>();
+		PreparedStatement st = prepare(conn, "SELECT destarea,cost FROM next_moves(?,?,?)");
+		st.setInt(1, gameId);
+		st.setInt(2, person.id());
+		st.setInt(3, area);
+		try (ResultSet rs = query(st)) {
+			while(rs.next()) {
+				int dest = rs.getInt("destarea");
+				moves.add(new String[] { areaKeys.first(dest), areaKeys.second(dest), rs.getString("cost") });
+			}
+			rows(st, moves.size());
+		}
+		return moves;
+	}
+
 	/* Given a player, this function
   	 * sould show all directly-reachable destinations for the player from
 	 * the player's current location.
 	 * The output should include area names, country names and the associated road-taxes
 	 */
 	void getNextMoves(Connection conn, Player person) throws SQLException {
-		PreparedStatement st = conn.prepareStatement("SELECT locationarea,locationcountry FROM Persons WHERE (personnummer = ? AND country = ?)");
-		st.setString(1, person.personnummer);
-		st.setString(2, person.country);
-		ResultSet rs = st.executeQuery();
-		rs.next();
-		getNextMoves(conn,person,rs.getString("locationarea"),rs.getString("locationcountry"));
-		rs.close();
-	    st.close();
+		getNextMoves(conn, person, getLocation(conn, person));
 	}
 
 	/* Given a personnummer and a country, this function
@@ -256,40 +659,84 @@ public class Game
 	 * that is identified by the tuple of personnummer and country.
 	 */
 	void listProperties(Connection conn, String personnummer, String country) throws SQLException {
-	    PreparedStatement st = conn.prepareStatement("SELECT * FROM Hotels WHERE (ownerpersonnummer = ? AND ownercountry = ?)");
-	    st.setString(1, personnummer);
-	    st.setString(2, country);
-	    ResultSet rs = st.executeQuery();
-	    while(rs.next()) {
-	    	System.out.println("Hotel: " + rs.getString("name") +" in "+ rs.getString("locationarea") + ", " + rs.getString("locationcountry"));
-	    }
-	    rs.close();
-	    st.close();
-
-	    PreparedStatement st2  = conn.prepareStatement("SELECT * FROM Roads WHERE (ownerpersonnummer = ? AND ownercountry = ?)");
-	    st2.setString(1, personnummer);
-	    st2.setString(2, country);
-	    ResultSet rs2 = st2.executeQuery();
-	    while(rs2.next()) {
-	    	System.out.println("Road: Between " + rs.getString("fromarea") + " ," + rs.getString("fromcountry") + " and " +rs.getString("toarea") + " ," + rs.getString("tocountry"));
-	    }
+		int person = personKeys.id(country, personnummer);
+		if (person < 0) {
+			out.println("No such person: " + personnummer + " (" + country + ")");
+			return;
+		}
+		listProperties(conn, person);
+	}
+
+	/* Lists the properties of the person with the given id. */
+	void listProperties(Connection conn, int person) throws SQLException {
+		/* Hotels and roads in one query streamed row by row. UNION ALL does
+		 * not promise an order, and sorting would hold back the first row
+		 * until all were read, so they may come mixed. */
+		PreparedStatement st = prepare(conn, "SELECT 'H', name, city, NULL FROM Hotels WHERE (game_id = ? AND owner = ?) "
+				+ "UNION ALL SELECT 'R', NULL, fromarea, toarea FROM Roads WHERE (game_id = ? AND owner = ?)");
+		st.setInt(1, gameId);
+		st.setInt(2, person);
+		st.setInt(3, gameId);
+		st.setInt(4, person);
+		st.setFetchSize(fetchSize);
+		try (ResultSet rs = query(st)) {
+			long n = 0;
+			while(rs.next()) {
+				++n;
+				int a = rs.getInt(3);
+				if ("H".equals(rs.getString(1))) {
+					listing.append("Hotel: ").append(rs.getString(2)).append(" in ").append(areaKeys.first(a)).append(", ").append(areaKeys.second(a));
+				} else {
+					int b = rs.getInt(4);
+					listing.append("Road: Between ").append(areaKeys.first(a)).append(" ,").append(areaKeys.second(a)).append(" and ").append(areaKeys.first(b)).append(" ,").append(areaKeys.second(b));
+				}
+				listing.append(NL);
+				if (listing.length() >= LISTING_BLOCK) {
+					flushListing();
+				}
+			}
+			rows(st, n);
+		} finally {
+			flushListing();
+		}
+	}
+
+	/* Writes the collected listing output to out. */
+	private void flushListing() {
+		if (listing.length() > 0) {
+			out.append(listing);
+			listing.setLength(0);
+		}
 	}
 
 	/* Given a player, this function
 	 * should list all properties of the player.
 	 */
 	void listProperties(Connection conn, Player person) throws SQLException {
-		listProperties(conn,person.personnummer,person.country);
+		listProperties(conn, person.id());
 	}
 
 	/* This function should print the budget, assets and refund values for all players.
 	 */
 	void showScores(Connection conn) throws SQLException {
-	    PreparedStatement st = conn.prepareStatement("SELECT * FROM AssetSummary");
-	    ResultSet rt = st.executeQuery();
-	    while(rt.next()) {
-	    	System.out.println("Person: " +  rt.getString("country") + "," + rt.getString("personnummer") + " has budget:  " + rt.getString("budget") + " and assets: " + rt.getString("assets")+ " and refund: " + rt.getString("reclaimable"));
-	    }
+		PreparedStatement st = prepare(conn, "SELECT person, budget, assets, reclaimable FROM AssetSummary WHERE game_id = ?");
+		st.setInt(1, gameId);
+		st.setFetchSize(fetchSize);
+		try (ResultSet rt = query(st)) {
+			long n = 0;
+			while(rt.next()) {
+				++n;
+				int person = rt.getInt(1);
+				listing.append("Person: ").append(personKeys.first(person)).append(",").append(personKeys.second(person)).append(" has budget:  ").append(rt.getString(2))
+						.append(" and assets: ").append(rt.getString(3)).append(" and refund: ").append(rt.getString(4)).append(NL);
+				if (listing.length() >= LISTING_BLOCK) {
+					flushListing();
+				}
+			}
+			rows(st, n);
+		} finally {
+			flushListing();
+		}
 	}
 
 	/* Given a player, a from area and a to area, this function
@@ -297,29 +744,37 @@ public class Game
 	 * and return 1 in case of a success and 0 otherwise.
 	 */
 	int sellRoad(Connection conn, Player person, String area1, String country1, String area2, String country2) throws SQLException {
-	    PreparedStatement st = conn.prepareStatement("DELETE FROM Roads WHERE(ownerpersonnummer = ? AND ownercountry = ? AND fromarea = ? AND fromcountry = ? AND toarea = ? AND tocountry = ?");
-	    st.setString(1, person.personnummer);
-	    st.setString(2, person.country);
-	    st.setString(3, area1);
-	    st.setString(4, country1);
-	    st.setString(5, area2);
-	    st.setString(6, country2);
-	    int rs = st.executeUpdate();
-	    st.close();
-	    PreparedStatement st2 = conn.prepareStatement("DELETE FROM Roads WHERE(ownerpersonnummer = ? AND ownercountry = ? AND fromarea = ? AND fromcountry = ? AND toarea = ? AND tocountry = ?");
-	    st2.setString(1, person.personnummer);
-	    st2.setString(2, person.country);
-	    st2.setString(5, area1);
-	    st2.setString(6, country1);
-	    st2.setString(3, area2);
-	    st2.setString(4, country2);
-	    int rs2 = st2.executeUpdate();
-	    if(rs2 == 1 || rs == 1) {
-	    	return 1;
-	    }
-	    else {
-	    	return 0;
-	    }
+		int a = areaId(area1, country1);
+		int b = areaId(area2, country2);
+		if (a < 0 || b < 0) {
+			return 0;
+		}
+		++writes;
+		try {
+			int deleted = retrying(conn, c -> {
+				/* The road may have been bought in either direction. */
+				PreparedStatement st = prepare(c, "DELETE FROM Roads WHERE(game_id = ? AND owner = ? AND ((fromarea = ? AND toarea = ?) OR (fromarea = ? AND toarea = ?)))");
+				st.setInt(1, gameId);
+				st.setInt(2, person.id());
+				st.setInt(3, a);
+				st.setInt(4, b);
+				st.setInt(5, b);
+				st.setInt(6, a);
+				return update(st);
+			});
+			if (deleted == 0) {
+				return 0;
+			}
+		}
+		catch(SQLException se) {
+			out.println(se.getMessage());
+			return 0;
+		}
+		if (graph != null) {
+			afterCommit(conn, () -> graph.removeRoad(a, b, person.id()));
+		}
+		person.invalidateBudget();
+		return 1;
 	}
 
 	/* Given a player and a city, this function
@@ -327,19 +782,28 @@ public class Game
 	 * and return 1 in case of a success and 0 otherwise.
 	 */
 	int sellHotel(Connection conn, Player person, String city, String country) throws SQLException {
+		int area = areaId(city, country);
+		if (area < 0) {
+			return 0;
+		}
+		++writes;
 		try {
-		    PreparedStatement st = conn.prepareStatement("DELETE FROM Hotels WHERE(ownercountry = ? AND ownerpersonnummer = ? AND locationname = ? AND locationcountry = ?)");
-		    st.setString(1, country);
-		    st.setString(3, city);
-		    st.setString(1, person.country);
-		    st.setString(2, person.personnummer);
-		    int rs = st.executeUpdate();
-		    st.close();
+			int deleted = retrying(conn, c -> {
+				PreparedStatement st = prepare(c, "DELETE FROM Hotels WHERE(game_id = ? AND owner = ? AND city = ?)");
+				st.setInt(1, gameId);
+				st.setInt(2, person.id());
+				st.setInt(3, area);
+				return update(st);
+			});
+			if (deleted == 0) {
+				return 0;
+			}
 		}
 		catch(SQLException se) {
-			System.out.println(se.getMessage());
+			out.println(se.getMessage());
 			return 0;
 		}
+		person.invalidateBudget();
 		return 1;
 	}
 
@@ -348,22 +812,35 @@ public class Game
 	 * and return 1 in case of a success and 0 otherwise.
 	 */
 	int buyRoad(Connection conn, Player person, String area1, String country1, String area2, String country2) throws SQLException {
+		int a = areaId(area1, country1);
+		int b = areaId(area2, country2);
+		if (a < 0 || b < 0) {
+			return 0;
+		}
+		++writes;
 		try {
-		    PreparedStatement st = conn.prepareStatement("INSERT INTO Roads VALUES(?,?,?,?,?,?)");
-		    st.setString(2, area1);
-		    st.setString(1, country1);
-		    st.setString(4, area2);
-		    st.setString(3, country2);
-		    st.setString(5, person.country);
-		    st.setString(6, person.personnummer);
-		    int rs = st.executeUpdate();
-		    st.close();
-			}
-			catch(SQLException se) {
-				System.out.println(se.getMessage());
-				return 0;
+			double roadtax = retrying(conn, c -> {
+				PreparedStatement st = prepare(c, "INSERT INTO Roads VALUES(?,?,?,?) RETURNING roadtax");
+				st.setInt(1, gameId);
+				st.setInt(2, a);
+				st.setInt(3, b);
+				st.setInt(4, person.id());
+				try (ResultSet rs = query(st)) {
+					rs.next();
+					rows(st, 1);
+					return rs.getDouble(1);
+				}
+			});
+			if (graph != null) {
+				afterCommit(conn, () -> graph.addRoad(a, b, person.id(), roadtax));
 			}
-			return 1;
+		}
+		catch(SQLException se) {
+			out.println(se.getMessage());
+			return 0;
+		}
+		person.invalidateBudget();
+		return 1;
 	}
 
 	/* Given a player and a city, this function
@@ -371,20 +848,26 @@ public class Game
 	 * and return 1 in case of a success and 0 otherwise.
 	 */
 	int buyHotel(Connection conn, Player person, String name, String city, String country) throws SQLException {
+		int area = areaId(city, country);
+		if (area < 0) {
+			return 0;
+		}
+		++writes;
 		try {
-		    PreparedStatement st = conn.prepareStatement("INSERT INTO Hotels VALUES(?,?,?,?,?)");
-		    st.setString(1, name);
-		    st.setString(2, country);
-		    st.setString(3, city);
-		    st.setString(4, person.country);
-		    st.setString(5, person.personnummer);
-		    int rs = st.executeUpdate();
-		    st.close();
+			retrying(conn, c -> {
+				PreparedStatement st = prepare(c, "INSERT INTO Hotels VALUES(?,?,?,?)");
+				st.setInt(1, gameId);
+				st.setString(2, name);
+				st.setInt(3, area);
+				st.setInt(4, person.id());
+				return update(st);
+			});
 		}
 		catch(SQLException se) {
-			System.out.println(se.getMessage());
+			out.println(se.getMessage());
 			return 0;
 		}
+		person.invalidateBudget();
 		return 1;
 	}
 
@@ -393,58 +876,428 @@ public class Game
 	 * and return 1 in case of a success and 0 otherwise.
 	 */
 	int changeLocation(Connection conn, Player person, String area, String country) throws SQLException {
+		int a = areaId(area, country);
+		if (a < 0) {
+			return 0;
+		}
+		return changeLocation(conn, person, a);
+	}
+
+	/* Moves the player to the area with the given id. */
+	int changeLocation(Connection conn, Player person, int area) throws SQLException {
+		++writes;
+		if (moveProcedure) {
+			return movePlayer(conn, person, area);
+		}
 		try {
-			PreparedStatement st = conn.prepareStatement("UPDATE Persons SET locationcountry = ?,locationarea = ? WHERE(personnummer = ? AND country = ?)");
-			st.setString(1, country);
-			st.setString(2, area);
-			st.setString(3, person.personnummer);
-			st.setString(4, person.country);
-			int rs = st.executeUpdate();
-			st.close();
+			retrying(conn, c -> {
+				/* The triggers update the owners' rows; lock them in key order first. */
+				PreparedStatement st = prepare(c, "SELECT lock_move(?, ?, ?)");
+				st.setInt(1, gameId);
+				st.setInt(2, person.id());
+				st.setInt(3, area);
+				query(st).close();
+				rows(st, 1);
+				st = prepare(c, "UPDATE Persons SET location = ? WHERE(game_id = ? AND id = ?)");
+				st.setInt(1, area);
+				st.setInt(2, gameId);
+				st.setInt(3, person.id());
+				return update(st);
+			});
+		}
+		catch (SQLException se) {
+			out.println(se.getMessage());
+			return 0;
+		}
+		/* Road tax, hotel fees and the visit bonus were settled by triggers. */
+		person.location = area;
+		person.locationKnown = true;
+		person.invalidateBudget();
+		return 1;
+	}
+
+	/* Prints the cheapest route from the player's location to an area,
+	 * computed on the road graph with the same costs as a move.
+	 */
+	void showRoute(Connection conn, Player person, String area, String country) throws SQLException {
+		if (graph == null) {
+			out.println("Routes need the road graph (ROAD_GRAPH=on).");
+			return;
+		}
+		graph.printRoute(out, person.id(), getLocation(conn, person), areaKeys.id(area, country));
+	}
+
+	/* Prints the areas the player can reach for at most budget,
+	 * or for the player's budget when budget is negative.
+	 */
+	void showReachable(Connection conn, Player person, double budget) throws SQLException {
+		if (graph == null) {
+			out.println("Routes need the road graph (ROAD_GRAPH=on).");
+			return;
+		}
+		if (budget < 0) {
+			budget = getBudget(conn, person).doubleValue();
+		}
+		int n = graph.printReachable(out, person.id(), getLocation(conn, person), budget, 50);
+		out.println(n + " areas within " + RoadGraph.format(budget));
+	}
+
+	/* Moves the player with the move_player() procedure, which settles road
+	 * tax, hotel fees and the visit bonus in one call and returns the new
+	 * budget, so neither the location nor the budget has to be read again.
+	 */
+	int movePlayer(Connection conn, Player person, int area) throws SQLException {
+		try {
+			return retrying(conn, c -> {
+				CallableStatement st = prepareCall(c, "{call move_player(?, ?, ?)}");
+				st.setInt(1, gameId);
+				st.setInt(2, person.id());
+				st.setInt(3, area);
+				try (ResultSet rs = query(st)) {
+					if (!rs.next()) {
+						rows(st, 0);
+						return 0;
+					}
+					rows(st, 1);
+					person.location = rs.getInt("location");
+					person.locationKnown = true;
+					person.budget = rs.getBigDecimal("budget");
+					person.budgetKnown = true;
+				}
+				return 1;
+			});
+		}
+		catch (SQLException se) {
+			out.println(se.getMessage());
+			return 0;
 		}
-	   catch (SQLException se) {
-		   System.out.println(se.getMessage());
-		   return 0;
-	   }
-	   return 1;
 	}
 
 	/* This function should add the visitbonus of 1000 to a random city
  	 */
 	void setVisitingBonus(Connection conn) throws SQLException {
 		try {
-		 PreparedStatement st = conn.prepareStatement("SELECT * FROM Cities ORDER BY RANDOM()");
-		 ResultSet rs = st.executeQuery();
-		 rs.next();
-		 String rndcit = rs.getString("name");
-		 String rndcont = rs.getString("country");
-		 rs.close();
-		 st.close();
-		 PreparedStatement st2 = conn.prepareStatement("UPDATE Cities SET visitbonus = 1000 WHERE(country = ? AND name = ?)");
-		 st2.setString(1, rndcont);
-		 st2.setString(2, rndcit);
-		 int rs2 = st2.executeUpdate();
-		 st2.close();
+			/* The city is picked from the in-memory list with the game's
+			 * random numbers, so only the UPDATE goes to the database. */
+			if (cities == null) {
+				cities = CityList.load(conn, gameId);
+			}
+			int city = cities.pick(random);
+			if (city < 0) {
+				return;
+			}
+			setVisitBonus(conn, city);
 		}
 		catch(SQLException se) {
-			System.out.println(se.getMessage());
+			out.println(se.getMessage());
 		}
 	}
 
+	/* Puts the visit bonus of 1000 on the city with the given area id. */
+	void setVisitBonus(Connection conn, int city) throws SQLException {
+		PreparedStatement st = prepare(conn, "UPDATE Cities SET visitbonus = 1000 WHERE(game_id = ? AND area = ?)");
+		st.setInt(1, gameId);
+		st.setInt(2, city);
+		update(st);
+	}
+
 	/* This function should print the winner of the game based on the currently highest budget.
  	 */
 	void announceWinner(Connection conn) throws SQLException {
-	    PreparedStatement st = conn.prepareStatement("SELECT name, country,personnummer,budget FROM Persons WHERE (budget =(SELECT MAX(budget) FROM Persons WHERE personnummer <> ''))");
-	    ResultSet rs = st.executeQuery();
-	    rs.next();
-	    System.out.println("Winner is: " + rs.getString("name") + " from " + rs.getString("country") + " , " + rs.getString("personnummer") + " with "+ rs.getString("budget"));
-	    rs.close();
-	    st.close();
+		/* Everyone sharing the highest budget wins. */
+		if (leaderboard.size() > 0) {
+			for (Leaderboard.Entry e : leaderboard.leaders()) {
+				out.println("Winner is: " + e.name + " from " + e.country + " , " + e.personnummer + " with " + e.budget);
+			}
+			return;
+		}
+		PreparedStatement st = prepare(conn, "SELECT name, country,personnummer,budget FROM Persons WHERE (game_id = ? AND budget =(SELECT MAX(budget) FROM Persons WHERE game_id = ? AND id <> 0))");
+		st.setInt(1, gameId);
+		st.setInt(2, gameId);
+		try (ResultSet rs = query(st)) {
+			long n = 0;
+			while (rs.next()) {
+				++n;
+				out.println("Winner is: " + rs.getString("name") + " from " + rs.getString("country") + " , " + rs.getString("personnummer") + " with "+ rs.getString("budget"));
+			}
+			rows(st, n);
+			if (n == 0) {
+				out.println("There is no winner.");
+			}
+		}
 	}
 
-	void play (String worldfile) throws IOException {
+	/* Sets a savepoint before an action that may fail inside a transaction
+	 * (a turn, or a group of world file lines), so that a failure only rolls
+	 * back the action and the transaction goes on. Null in autocommit mode.
+	 */
+	Savepoint savepoint(Connection conn) throws SQLException {
+		return conn.getAutoCommit() ? null : conn.setSavepoint();
+	}
+
+	void rollback(Connection conn, Savepoint sp) throws SQLException {
+		if (sp != null) {
+			conn.rollback(sp);
+		}
+	}
+
+	/* Applies a change of the shared in-memory state (road graph, cached
+	 * budgets, leaderboard) that mirrors a write on conn. In autocommit
+	 * mode the write is already committed and the change applied at once;
+	 * otherwise it waits for committed(), or is dropped by rolledBack().
+	 */
+	void afterCommit(Connection conn, Runnable change) throws SQLException {
+		if (conn.getAutoCommit()) {
+			change.run();
+		} else {
+			uncommitted.add(change);
+		}
+	}
+
+	/* Call after a successful commit of this session's transaction. */
+	void committed() {
+		for (Runnable change : uncommitted) {
+			change.run();
+		}
+		uncommitted.clear();
+	}
+
+	/* Call when this session's transaction was rolled back or failed to commit. */
+	void rolledBack() {
+		uncommitted.clear();
+	}
+
+	/* Runs an action behind a savepoint. If it deadlocks with another
+	 * session or fails to serialize (SQLSTATE 40P01, 40001) it is rolled
+	 * back to the savepoint and tried again, up to MAX_RETRIES times with
+	 * an exponential, jittered backoff from RETRY_BACKOFF_MS. Any other
+	 * error, or the last failure, is rolled back and thrown.
+	 */
+	<T> T retrying(Connection conn, Action<T> action) throws SQLException {
+		for (int attempt = 1; ; ++attempt) {
+			Savepoint sp = savepoint(conn);
+			try {
+				return action.run(conn);
+			} catch (SQLException e) {
+				rollback(conn, sp);
+				if (!isRetryable(e) || attempt > maxRetries) {
+					throw e;
+				}
+				Stats.retry(e.getSQLState());
+				long sleep = retryBackoff << Math.min(attempt - 1, 10);
+				try {
+					Thread.sleep(sleep / 2 + ThreadLocalRandom.current().nextLong(sleep + 1));
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					throw e;
+				}
+			}
+		}
+	}
+
+	static boolean isRetryable(SQLException e) {
+		return "40P01".equals(e.getSQLState()) || "40001".equals(e.getSQLState());
+	}
+
+	/* A database action, run on a pooled connection by withConnection(). */
+	interface Action<T>
+	{
+		T run(Connection conn) throws SQLException;
+	}
+
+	/* Runs the action on a connection from the pool. If the connection
+	 * turns out to be broken (e.g. because the database was restarted) it
+	 * is dropped and the error is thrown: a write may have been committed
+	 * before the connection broke, so running the action again could apply
+	 * it twice. The pool validates connections before handing them out.
+	 */
+	<T> T withConnection(Action<T> action) throws SQLException {
+		return withConnection(action, 1);
+	}
+
+	/* As withConnection, but a broken connection is dropped and the action
+	 * is run once more on a new one. Only for actions that may run twice,
+	 * such as reads. */
+	<T> T withRetriedConnection(Action<T> action) throws SQLException {
+		return withConnection(action, 2);
+	}
+
+	private <T> T withConnection(Action<T> action, int attempts) throws SQLException {
+		for (int attempt = 1; ; ++attempt) {
+			Connection conn = pool.getConnection();
+			try {
+				return action.run(conn);
+			} catch (SQLException e) {
+				if (!ConnectionPool.isConnectionError(e)) {
+					throw e;
+				}
+				pool.invalidate(conn);
+				if (attempt >= attempts) {
+					throw e;
+				}
+				out.println("Lost the database connection (" + e.getMessage() + "), reconnecting...");
+			} finally {
+				conn.close();
+			}
+		}
+	}
 
-		// Read username and password from config.cfg
+	/* Executes one command of a turn for player i.
+	 * Returns true if the turn of the player ends.
+	 */
+	boolean turnCommand(Connection conn, ArrayList<Player> players, int i, String[] cmd) throws SQLException {
+		if ("next moves".startsWith(cmd[0]) && (cmd.length == 1 || cmd.length == 3)) {
+			/* Show next moves from a location or current location. Turn continues. */
+			if (cmd.length == 1) {
+				getNextMoves(conn, players.get(i));
+			} else {
+				getNextMoves(conn, players.get(i), cmd[1], cmd[2]);
+			}
+		} else if ("list properties".startsWith(cmd[0]) && (cmd.length == 1 || cmd.length == 3)) {
+			/* List properties of a player. Can be a specified player
+			   or the player himself. Turn continues. */
+			if (cmd.length == 1) {
+				listProperties(conn, players.get(i));
+			} else {
+				listProperties(conn, cmd[1], cmd[2]);
+			}
+		} else if ("scores".startsWith(cmd[0]) && cmd.length == 1) {
+			/* Show scores for all players. Turn continues. */
+			showScores(conn);
+		} else if ("stats".startsWith(cmd[0]) && cmd.length == 1) {
+			/* Show command and SQL latencies. Turn continues. */
+			out.print(Stats.report());
+		} else if ("players".startsWith(cmd[0]) && cmd.length == 1) {
+			/* Show scores for all players. Turn continues. */
+			out.println("\nPlayers:");
+			for (int k = 0; k < players.size(); ++k) {
+				out.println("\t" + players.get(k).playername + ": " + players.get(k).personnummer + " (" + players.get(k).country + ") ");
+			}
+		} else if ("refund".startsWith(cmd[0]) && (cmd.length == 3 || cmd.length == 5)) {
+			if (cmd.length == 5) {
+				/* Sell road from arguments. If no road was sold the turn
+				   continues. Otherwise the turn ends. */
+				if (sellRoad(conn, players.get(i), cmd[1], cmd[2], cmd[3], cmd[4]) == 1) {
+					return true;
+				} else {
+					out.println("\nTry something else.");
+				}
+			} else {
+				/* Sell hotel from arguments. If no hotel was sold the turn
+				   continues. Otherwise the turn ends. */
+				if (sellHotel(conn, players.get(i), cmd[1], cmd[2]) == 1) {
+					return true;
+				} else {
+					out.println("\nTry something else.");
+				}
+			}
+		} else if ("route".startsWith(cmd[0]) && cmd.length == 3) {
+			/* Show the cheapest route to an area. Turn continues. */
+			showRoute(conn, players.get(i), cmd[1], cmd[2]);
+		} else if ("reach".startsWith(cmd[0]) && (cmd.length == 1 || cmd.length == 2)) {
+			/* Show what can be reached with the budget. Turn continues. */
+			try {
+				showReachable(conn, players.get(i), cmd.length == 2 ? Double.parseDouble(cmd[1]) : -1);
+			} catch (NumberFormatException e) {
+				out.println("\nInvalid budget.");
+			}
+		} else if ("rank".startsWith(cmd[0]) && cmd.length == 1) {
+			/* Show the player's rank. Turn continues. */
+			showRank(players.get(i));
+		} else if ("top".startsWith(cmd[0]) && cmd.length == 2) {
+			/* Show the leading players. Turn continues. */
+			try {
+				showTop(Integer.parseInt(cmd[1]));
+			} catch (NumberFormatException e) {
+				out.println("\nInvalid number.");
+			}
+		} else if ("buy".startsWith(cmd[0]) && (cmd.length == 4 || cmd.length == 5)) {
+			if (cmd.length == 5) {
+				/* Buy road from arguments. If no road was bought the turn
+				   continues. Otherwise the turn ends. */
+				if (buyRoad(conn, players.get(i), cmd[1], cmd[2], cmd[3], cmd[4]) == 1) {
+					return true;
+				} else {
+					out.println("\nTry something else.");
+				}
+			} else {
+				/* Buy hotel from arguments. If no hotel was bought the turn
+				   continues. Otherwise the turn ends. */
+				if (buyHotel(conn, players.get(i), cmd[1], cmd[2], cmd[3]) == 1) {
+					return true;
+				} else {
+					out.println("\nTry something else.");
+				}
+			}
+		} else if ("move".startsWith(cmd[0]) && cmd.length == 3) {
+			/* Change the location of the player to the area from the arguments.
+			   If the move was legal the turn ends. Otherwise the turn continues. */
+			if (changeLocation(conn, players.get(i), cmd[1], cmd[2]) == 1) {
+				return true;
+			} else {
+				out.println("\nTry something else.");
+			}
+		} else if ("quit".startsWith(cmd[0]) && cmd.length == 1) {
+			/* End the move of the player without any action */
+			return true;
+		} else {
+			out.println("\nYou chose an invalid option. Try again.");
+		}
+		return false;
+	}
+
+	/* This block creates the government entry and the necessary
+	 * country and area for that.
+	 */
+	void insertGovernment(Connection conn) throws SQLException {
+		createGame(conn);
+		PreparedStatement statement = prepare(conn, "INSERT INTO Countries (game_id, name) VALUES (?, ?)");
+		statement.setInt(1, gameId);
+		statement.setString(2, "");
+		update(statement);
+		/* Id 0 in both KeyTables. */
+		statement = prepare(conn, "INSERT INTO Areas (game_id, id, country, name, population) VALUES (?, ?, ?, ?, cast(? as INT))");
+		statement.setInt(1, gameId);
+		statement.setInt(2, KeyTable.GOVERNMENT);
+		statement.setString(3, "");
+		statement.setString(4, "");
+		statement.setString(5, "1");
+		update(statement);
+		statement = prepare(conn, "INSERT INTO Persons (game_id, id, country, personnummer, name, location, budget) VALUES (?, ?, ?, ?, ?, ?, cast(? as NUMERIC))");
+		statement.setInt(1, gameId);
+		statement.setInt(2, KeyTable.GOVERNMENT);
+		statement.setString(3, "");
+		statement.setString(4, "");
+		statement.setString(5, "Government");
+		statement.setInt(6, KeyTable.GOVERNMENT);
+		statement.setString(7, "0");
+		update(statement);
+	}
+
+	/* Creates the partitions of this game in every table, unless they
+	 * exist already. */
+	void createGame(Connection conn) throws SQLException {
+		PreparedStatement st = prepare(conn, "SELECT create_game(?)");
+		st.setInt(1, gameId);
+		query(st).close();
+		rows(st, 1);
+	}
+
+	/* Drops this game with everything in it by detaching and dropping its
+	 * partitions; the other games are not touched. */
+	void dropGame(Connection conn) throws SQLException {
+		PreparedStatement st = prepare(conn, "SELECT drop_game(?)");
+		st.setInt(1, gameId);
+		query(st).close();
+		rows(st, 1);
+	}
+
+	/* Reads username and password from config.cfg, followed by optional
+	 * KEY=VALUE lines (URL, POOL_MIN, POOL_MAX, ...). Returns the settings,
+	 * or null if the file has the wrong format.
+	 */
+	Properties readConfig() {
+		Properties config = new Properties();
 		try {
 			BufferedReader nf = new BufferedReader(new FileReader("config.cfg"));
 			String line;
@@ -454,218 +1307,218 @@ public class Game
 			if ((line = nf.readLine()) != null) {
 				PASSWORD = line;
 			}
+			while ((line = nf.readLine()) != null) {
+				int eq = line.indexOf('=');
+				if (eq > 0) {
+					config.setProperty(line.substring(0, eq).trim(), line.substring(eq + 1).trim());
+				}
+			}
+			nf.close();
 		} catch (Exception e) {
-			System.out.println(e.getMessage());
+			out.println(e.getMessage());
 		}
 
 		if (USERNAME.equals("USERNAME") || PASSWORD.equals("PASSWORD")) {
-			System.out.println("CONFIG FILE HAS WRONG FORMAT");
-			return;
+			out.println("CONFIG FILE HAS WRONG FORMAT");
+			return null;
 		}
+		return config;
+	}
 
+	/* Creates the connection pool for the settings from readConfig(). */
+	ConnectionPool connect(Properties config) {
 		try {
-			try {
-				Class.forName("org.postgresql.Driver");
-			} catch (Exception e) {
-				System.out.println(e.getMessage());
-			}
-			String url = "jdbc:postgresql://ate.ita.chalmers.se/";
-			Properties props = new Properties();
-			props.setProperty("user",USERNAME);
-			props.setProperty("password",PASSWORD);
+			Class.forName("org.postgresql.Driver");
+		} catch (Exception e) {
+			out.println(e.getMessage());
+		}
+		String url = config.getProperty("URL", "jdbc:postgresql://ate.ita.chalmers.se/");
+		Properties props = new Properties();
+		props.setProperty("user",USERNAME);
+		props.setProperty("password",PASSWORD);
+		/* Use named server-side statements from the first execution,
+		 * they are cached per connection by StatementCache. */
+		props.setProperty("prepareThreshold", "1");
+		/* SYNCHRONOUS_COMMIT=off lets commits return before the WAL is flushed;
+		 * a crash can lose the last commits but never leaves half a turn. */
+		String sync = config.getProperty("SYNCHRONOUS_COMMIT");
+		if (sync != null) {
+			props.setProperty("options", "-c synchronous_commit=" + sync);
+		}
+		return ConnectionPool.fromConfig(url, props, config);
+	}
 
-			final Connection conn = DriverManager.getConnection(url, props);
+	void play (String worldfile) throws IOException {
 
-			/* This block creates the government entry and the necessary
-			 * country and area for that.
-			 */
+		Properties config = readConfig();
+		if (config == null) {
+			return;
+		}
+
+		pool = connect(config);
+		configure(config);
+		if (quiet) {
+			out = new PrintStream(OutputStream.nullOutputStream());
+		}
+		if (input == null) {
+			input = new BufferedReader(new InputStreamReader(System.in));
+		}
+		try {
+			GameEngine engine = new GameEngine(this, 5, false);
 			try {
-				PreparedStatement statement = conn.prepareStatement("INSERT INTO Countries (name) VALUES (?)");
-				statement.setString(1, "");
-				statement.executeUpdate();
-				statement = conn.prepareStatement("INSERT INTO Areas (country, name, population) VALUES (?, ?, cast(? as INT))");
-				statement.setString(1, "");
-				statement.setString(2, "");
-				statement.setString(3, "1");
-				statement.executeUpdate();
-				statement = conn.prepareStatement("INSERT INTO Persons (country, personnummer, name, locationcountry, locationarea, budget) VALUES (?, ?, ?, ?, ?, cast(? as NUMERIC))");
-				statement.setString(1, "");
-				statement.setString(2, "");
-				statement.setString(3, "Government");
-				statement.setString(4, "");
-				statement.setString(5, "");
-				statement.setString(6, "0");
-				statement.executeUpdate();
+				withRetriedConnection(conn -> { loadKeys(conn); return null; });
 			} catch (SQLException e) {
-				System.out.println(e.getMessage());
+				out.println(e.getMessage());
 			}
-
-			// Initialize the database from the worldfile
-			try {
-				BufferedReader br = new BufferedReader(new FileReader(worldfile));
-				String line;
-				while ((line = br.readLine()) != null) {
-				String[] cmd = line.split(" +");
-					if ("ROAD".equals(cmd[0]) && (cmd.length == 5)) {
-						insertRoad(conn, cmd[1], cmd[2], cmd[3], cmd[4]);
-					} else if ("TOWN".equals(cmd[0]) && (cmd.length == 4)) {
-						/* Create an area and a town entry in the database */
-						insertTown(conn, cmd[1], cmd[2], cmd[3]);
-					} else if ("CITY".equals(cmd[0]) && (cmd.length == 4)) {
-						/* Create an area and a city entry in the database */
-						insertCity(conn, cmd[1], cmd[2], cmd[3]);
-					}
+			if (restoreFile != null) {
+				/* The snapshot has the government and the world. */
+				try {
+					engine.restore(restoreFile);
+				} catch (SQLException e) {
+					out.println(e.getMessage());
 				}
-			} catch (Exception e) {
-				System.out.println(e.getMessage());
-			}
-
-			ArrayList<Player> players = new ArrayList<Player>();
-
-			while(true) {
-				optionssetup();
-				String mode = readLine("? > ");
-				String[] cmd = mode.split(" +");
-				cmd[0] = cmd[0].toLowerCase();
-				if ("new player".startsWith(cmd[0]) && (cmd.length == 5)) {
-					Player nextplayer = new Player(cmd[1], cmd[2], cmd[3], cmd[4]);
-					if (createPlayer(conn, nextplayer) == 1) {
-						players.add(nextplayer);
-					}
-				} else if ("done".startsWith(cmd[0]) && (cmd.length == 1)) {
-					break;
-				} else {
-					System.out.println("\nInvalid option.");
+			} else {
+				try (Connection conn = pool.getConnection()) {
+					insertGovernment(conn);
+				} catch (SQLException e) {
+					out.println(e.getMessage());
 				}
-			}
 
-			System.out.println("\nGL HF!");
-			int roundcounter = 1;
-			int maxrounds = 5;
-			while(roundcounter <= maxrounds) {
-				System.out.println("\nWe are starting the " + roundcounter + ". round!!!");
-				/* for each player from the playerlist */
-				for (int i = 0; i < players.size(); ++i) {
-					System.out.println("\nIt's your turn " + players.get(i).playername + "!");
-					System.out.println("You are currently located in " + getCurrentArea(conn, players.get(i)) + " (" + getCurrentCountry(conn, players.get(i)) + ")");
-					while (true) {
-						options();
-						String mode = readLine("? > ");
-						String[] cmd = mode.split(" +");
-						cmd[0] = cmd[0].toLowerCase();
-						if ("next moves".startsWith(cmd[0]) && (cmd.length == 1 || cmd.length == 3)) {
-							/* Show next moves from a location or current location. Turn continues. */
-							if (cmd.length == 1) {
-								String area = getCurrentArea(conn, players.get(i));
-								String country = getCurrentCountry(conn, players.get(i));
-								getNextMoves(conn, players.get(i));
-							} else {
-								getNextMoves(conn, players.get(i), cmd[1], cmd[2]);
-							}
-						} else if ("list properties".startsWith(cmd[0]) && (cmd.length == 1 || cmd.length == 3)) {
-							/* List properties of a player. Can be a specified player
-							   or the player himself. Turn continues. */
-							if (cmd.length == 1) {
-								listProperties(conn, players.get(i));
-							} else {
-								listProperties(conn, cmd[1], cmd[2]);
-							}
-						} else if ("scores".startsWith(cmd[0]) && cmd.length == 1) {
-							/* Show scores for all players. Turn continues. */
-							showScores(conn);
-						} else if ("players".startsWith(cmd[0]) && cmd.length == 1) {
-							/* Show scores for all players. Turn continues. */
-							System.out.println("\nPlayers:");
-							for (int k = 0; k < players.size(); ++k) {
-								System.out.println("\t" + players.get(k).playername + ": " + players.get(k).personnummer + " (" + players.get(k).country + ") ");
-							}
-						} else if ("refund".startsWith(cmd[0]) && (cmd.length == 3 || cmd.length == 5)) {
-							if (cmd.length == 5) {
-								/* Sell road from arguments. If no road was sold the turn
-								   continues. Otherwise the turn ends. */
-								if (sellRoad(conn, players.get(i), cmd[1], cmd[2], cmd[3], cmd[4]) == 1) {
-									break;
-								} else {
-									System.out.println("\nTry something else.");
-								}
-							} else {
-								/* Sell hotel from arguments. If no hotel was sold the turn
-								   continues. Otherwise the turn ends. */
-								if (sellHotel(conn, players.get(i), cmd[1], cmd[2]) == 1) {
-									break;
-								} else {
-									System.out.println("\nTry something else.");
-								}
-							}
-						} else if ("buy".startsWith(cmd[0]) && (cmd.length == 4 || cmd.length == 5)) {
-							if (cmd.length == 5) {
-								/* Buy road from arguments. If no road was bought the turn
-								   continues. Otherwise the turn ends. */
-								if (buyRoad(conn, players.get(i), cmd[1], cmd[2], cmd[3], cmd[4]) == 1) {
-									break;
-								} else {
-									System.out.println("\nTry something else.");
-								}
-							} else {
-								/* Buy hotel from arguments. If no hotel was bought the turn
-								   continues. Otherwise the turn ends. */
-								if (buyHotel(conn, players.get(i), cmd[1], cmd[2], cmd[3]) == 1) {
-									break;
-								} else {
-									System.out.println("\nTry something else.");
+				// Initialize the database from the worldfile
+				try (Connection conn = pool.getConnection()) {
+					if (bulkload) {
+						new WorldLoader(conn, gameId, areaKeys, out).load(worldfile);
+					} else {
+						/* Commit every LOAD_COMMIT_LINES lines instead of after every
+						 * statement; a line that fails is rolled back to its savepoint. */
+						int group = Integer.parseInt(config.getProperty("LOAD_COMMIT_LINES", "10000"));
+						conn.setAutoCommit(false);
+						BufferedReader br = new BufferedReader(new FileReader(worldfile));
+						String line;
+						long lines = 0;
+						while ((line = br.readLine()) != null) {
+						String[] cmd = line.split(" +");
+							if ("ROAD".equals(cmd[0]) && (cmd.length == 5)) {
+								insertRoad(conn, cmd[1], cmd[2], cmd[3], cmd[4]);
+							} else if (("TOWN".equals(cmd[0]) || "CITY".equals(cmd[0])) && (cmd.length == 4)) {
+								Savepoint sp = savepoint(conn);
+								try {
+									if ("TOWN".equals(cmd[0])) {
+										/* Create an area and a town entry in the database */
+										insertTown(conn, cmd[1], cmd[2], cmd[3]);
+									} else {
+										/* Create an area and a city entry in the database */
+										insertCity(conn, cmd[1], cmd[2], cmd[3]);
+									}
+								} catch (SQLException se) {
+									rollback(conn, sp);
+									out.println(se.getMessage());
 								}
 							}
-						} else if ("move".startsWith(cmd[0]) && cmd.length == 3) {
-							/* Change the location of the player to the area from the arguments.
-							   If the move was legal the turn ends. Otherwise the turn continues. */
-							if (changeLocation(conn, players.get(i), cmd[1], cmd[2]) == 1) {
-								break;
-							} else {
-								System.out.println("\nTry something else.");
+							if (++lines % group == 0) {
+								conn.commit();
+								committed();
 							}
-						} else if ("quit".startsWith(cmd[0]) && cmd.length == 1) {
-							/* End the move of the player without any action */
-							break;
-						} else {
-							System.out.println("\nYou chose an invalid option. Try again.");
 						}
+						conn.commit();
+						committed();
+						br.close();
 					}
+				} catch (Exception e) {
+					rolledBack();
+					out.println(e.getMessage());
 				}
-				setVisitingBonus(conn);
-				++roundcounter;
 			}
-			announceWinner(conn);
-			System.out.println("\nGG!\n");
 
-			conn.close();
-		} catch (SQLException e) {
-			System.err.println(e);
-			System.exit(2);
+			loadRoadGraph(config);
+			loadCities();
+
+			long commands = 0;
+			long begin = System.nanoTime();
+			while (!engine.isOver()) {
+				if (engine.inSetup()) {
+					optionssetup();
+				} else {
+					options();
+				}
+				Stats.CommandEvent event = Stats.beginCommand();
+				long start = System.nanoTime();
+				String line = readLine("? > ");
+				Stats.command("readLine", null, start, event, false);
+				if (line == null) {
+					/* End of input. */
+					break;
+				}
+				engine.execute(line);
+				++commands;
+			}
+			engine.close();
+			out.println(StatementCache.summary());
+			if (replay) {
+				double secs = (System.nanoTime() - begin) / 1e9;
+				System.out.println("Replayed " + commands + " commands in " + String.format("%.2f", secs) + " s, "
+						+ String.format("%.0f", commands / secs) + " commands/s");
+			}
+		} finally {
+			pool.close();
 		}
 	}
 
+	/* Reads the next command, or null at the end of the input. In replay
+	 * mode empty lines and lines starting with # are skipped, and the
+	 * command is echoed after the prompt.
+	 */
 	private String readLine(String s) throws IOException {
-		System.out.print(s);
-		BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(System.in));
-		char c;
-		StringBuilder stringBuilder = new StringBuilder();
-		do {
-			c = (char) bufferedReader.read();
-			stringBuilder.append(c);
-		} while(String.valueOf(c).matches(".")); // Without the DOTALL switch, the dot in a java regex matches all characters except newlines
-
-		System.out.println("");
-		stringBuilder.deleteCharAt(stringBuilder.length()-1);
-
-		return stringBuilder.toString();
+		out.print(s);
+		String line = input.readLine();
+		while (replay && line != null && (line.trim().isEmpty() || line.startsWith("#"))) {
+			line = input.readLine();
+		}
+		if (replay && line != null) {
+			out.print(line);
+		}
+		out.println("");
+		return line;
 	}
 
 	/* main: parses the input commands.
  	* /!\ You don't need to change this function! */
 	public static void main(String[] args) throws Exception
 	{
-		String worldfile = args[0];
 		Game g = new Game();
+		if ("-drop".equals(args[0]) && args.length == 2) {
+			/* java Game -drop <game id> removes a finished game. */
+			g.gameId = Integer.parseInt(args[1]);
+			Properties config = g.readConfig();
+			if (config == null) {
+				return;
+			}
+			g.pool = g.connect(config);
+			try {
+				g.withConnection(conn -> { g.dropGame(conn); return null; });
+			} finally {
+				g.pool.close();
+			}
+			return;
+		}
+		String worldfile = args[0];
+		for (int i = 1; i < args.length; ++i) {
+			if ("-bulk".equals(args[i])) {
+				g.bulkload = true;
+			} else if ("-quiet".equals(args[i])) {
+				g.quiet = true;
+			} else if ("-game".equals(args[i]) && i + 1 < args.length) {
+				g.gameId = Integer.parseInt(args[++i]);
+				g.gameFixed = true;
+			} else if ("-restore".equals(args[i]) && i + 1 < args.length) {
+				g.restoreFile = args[++i];
+			} else if ("-replay".equals(args[i]) && i + 1 < args.length) {
+				/* A script of setup and turn commands, - for standard input. */
+				String script = args[++i];
+				g.replay = true;
+				g.input = new BufferedReader("-".equals(script) ? new InputStreamReader(System.in) : new FileReader(script), 1 << 16);
+			}
+		}
 		g.play(worldfile);
 	}
 }
@@ -0,0 +1,428 @@
+/* Headless game engine.
+ *
+ * Holds the state of one game (players, whose turn it is, the round
+ * counter) and executes one command line at a time, the same commands
+ * that play() reads from the console. A turn is one transaction on one
+ * pooled connection, taken at the start of the turn: the commands of the
+ * turn run in it, an action that fails is rolled back to a savepoint by
+ * Game and the turn continues, and the command that ends the turn
+ * commits. Only an unexpected error rolls back the whole turn.
+ *
+ * snapshot and restore save and load the whole game, tables and engine
+ * state, through Snapshot.
+ *
+ * Unless PREFETCH=off is configured, the start of a turn also fetches the
+ * next moves, the player's properties and the scores in the background
+ * (TurnCache), and n, l and s print those until the turn writes.
+ *
+ * The engine writes to game.out. A headless engine captures that output
+ * and returns it in the Response; the console game lets it go straight
+ * to System.out.
+ */
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.sql.*;
+import java.util.ArrayList;
+
+public class GameEngine
+{
+	static class Response
+	{
+		final String text;
+		final boolean turnEnded;
+		final boolean gameOver;
+
+		Response(String text, boolean turnEnded, boolean gameOver) {
+			this.text = text;
+			this.turnEnded = turnEnded;
+			this.gameOver = gameOver;
+		}
+	}
+
+	private final Game game;
+	private final int maxrounds;
+	private final ByteArrayOutputStream capture;
+	final ArrayList<Game.Player> players = new ArrayList<Game.Player>();
+
+	private boolean setup = true;
+	private boolean over;
+	int roundcounter = 1;
+	int turn;
+
+	/* Connection of the current turn, in a transaction, or null between turns. */
+	private Connection turnConn;
+
+	/* Reads prefetched for the current turn, created with the first turn. */
+	private TurnCache cache;
+
+	/* Statements executed during turns, to measure round trips per turn. */
+	long turns;
+	long turnStatements;
+	private long turnStart;
+
+	/* A headless engine captures the output of every command in its Response. */
+	public GameEngine(Game game, int maxrounds, boolean headless) {
+		this.game = game;
+		this.maxrounds = maxrounds;
+		if (headless) {
+			capture = new ByteArrayOutputStream();
+			game.out = new PrintStream(capture, true);
+		} else {
+			capture = null;
+		}
+	}
+
+	boolean inSetup() {
+		return setup;
+	}
+
+	boolean isOver() {
+		return over;
+	}
+
+	/* The player whose turn it is, or null during setup and after the game. */
+	Game.Player currentPlayer() {
+		return setup || over ? null : players.get(turn);
+	}
+
+	/* Executes one command line and returns its output. */
+	Response execute(String line) {
+		String[] cmd = words(line);
+		cmd[0] = cmd[0].toLowerCase();
+		String name = commandName(cmd);
+		Game.Player player = currentPlayer();
+		Stats.CommandEvent event = Stats.beginCommand();
+		long start = System.nanoTime();
+		boolean ended = false;
+		boolean failed = false;
+		try {
+			if (over) {
+				game.out.println("\nThe game is over.");
+			} else if (stateCommand(cmd)) {
+				// Done.
+			} else if (setup) {
+				setupCommand(cmd);
+			} else {
+				ended = runTurnCommand(cmd);
+				if (ended) {
+					nextTurn();
+				}
+			}
+		} catch (SQLException e) {
+			failed = true;
+			game.out.println(e.getMessage());
+		}
+		Stats.command(name, player == null ? null : player.playername, start, event, failed);
+		return respond(ended);
+	}
+
+	/* Splits a command line into words at whitespace, without a regex. */
+	static String[] words(String line) {
+		ArrayList<String> words = new ArrayList<String>();
+		int n = line.length();
+		int i = 0;
+		while (i < n) {
+			while (i < n && line.charAt(i) <= ' ') {
+				++i;
+			}
+			int start = i;
+			while (i < n && line.charAt(i) > ' ') {
+				++i;
+			}
+			if (i > start) {
+				words.add(line.substring(start, i));
+			}
+		}
+		if (words.isEmpty()) {
+			words.add("");
+		}
+		return words.toArray(new String[words.size()]);
+	}
+
+	/* Command names for Stats, in the order Game.turnCommand matches them. */
+	private static final String[] COMMANDS = { "next moves", "list properties", "scores", "stats", "players", "refund", "route", "reach", "rank", "top", "buy", "move", "quit" };
+
+	private String commandName(String[] cmd) {
+		if (isSnapshot(cmd)) {
+			return "snapshot";
+		}
+		if (isRestore(cmd)) {
+			return "restore";
+		}
+		if (setup) {
+			if ("new player".startsWith(cmd[0])) {
+				return "new player";
+			}
+			return "done".startsWith(cmd[0]) ? "done" : "invalid";
+		}
+		for (String c : COMMANDS) {
+			if (c.startsWith(cmd[0])) {
+				if ("buy".equals(c) || "refund".equals(c)) {
+					return c + (cmd.length == 5 ? " road" : " hotel");
+				}
+				return c;
+			}
+		}
+		return "invalid";
+	}
+
+	private Response respond(boolean ended) {
+		String text = "";
+		if (capture != null) {
+			text = capture.toString();
+			capture.reset();
+		}
+		return new Response(text, ended, over);
+	}
+
+	private void setupCommand(String[] cmd) throws SQLException {
+		if ("new player".startsWith(cmd[0]) && (cmd.length == 5)) {
+			final Game.Player nextplayer = game.new Player(cmd[1], cmd[2], cmd[3], cmd[4]);
+			if (game.withConnection(conn -> game.createPlayer(conn, nextplayer)) == 1) {
+				players.add(nextplayer);
+			}
+		} else if ("done".startsWith(cmd[0]) && (cmd.length == 1)) {
+			setup = false;
+			game.out.println("\nGL HF!");
+			startRound();
+		} else {
+			game.out.println("\nInvalid option.");
+		}
+	}
+
+	private static boolean isSnapshot(String[] cmd) {
+		return cmd.length == 2 && cmd[0].length() >= 2 && "snapshot".startsWith(cmd[0]);
+	}
+
+	/* At least "res", "r" and "re" are refund. */
+	private static boolean isRestore(String[] cmd) {
+		return cmd.length == 2 && cmd[0].length() >= 3 && "restore".startsWith(cmd[0]);
+	}
+
+	/* snapshot and restore, which work in setup and during turns alike. */
+	private boolean stateCommand(String[] cmd) throws SQLException {
+		if (isSnapshot(cmd)) {
+			snapshot(cmd[1]);
+		} else if (isRestore(cmd)) {
+			restore(cmd[1]);
+		} else {
+			return false;
+		}
+		return true;
+	}
+
+	/* Writes the tables and the state of this game to file (see Snapshot). */
+	void snapshot(String file) throws SQLException {
+		Snapshot.State state = new Snapshot.State();
+		state.setup = setup;
+		state.round = roundcounter;
+		state.turn = turn;
+		state.players.addAll(Snapshot.players(players));
+		long start = System.nanoTime();
+		try {
+			long rows = Snapshot.write(game, state, file);
+			game.out.println("\nSnapshot of " + rows + " rows written to " + file + " in " + (System.nanoTime() - start) / 1000000 + " ms");
+		} catch (IOException e) {
+			game.out.println(e.getMessage());
+		}
+	}
+
+	/* Replaces the tables and the state of this game with the snapshot in
+	 * file. An unfinished turn is given up first, and the TurnCache with
+	 * its session is thrown away, so that the next turn reads the restored
+	 * game through a fresh one.
+	 */
+	void restore(String file) throws SQLException {
+		abortTurn(new SQLException("restore"));
+		if (cache != null) {
+			cache.drop();
+			cache = null;
+		}
+		long start = System.nanoTime();
+		Snapshot.State state;
+		try {
+			state = Snapshot.restore(game, file);
+		} catch (IOException e) {
+			game.out.println(e.getMessage());
+			return;
+		}
+		game.reloadWorld();
+		players.clear();
+		for (String[] p : state.players) {
+			players.add(game.new Player(p[0], p[1], p[2], null));
+		}
+		game.leaderboard.clear();
+		game.withRetriedConnection(conn -> { game.refreshBudgets(conn, players); return null; });
+		setup = state.setup;
+		roundcounter = state.round;
+		turn = state.turn < players.size() ? state.turn : 0;
+		game.out.println("\nRestored " + file + " in " + (System.nanoTime() - start) / 1000000 + " ms, round " + roundcounter
+				+ ", " + players.size() + " players");
+		if (!setup) {
+			if (players.isEmpty()) {
+				startRound();
+			} else {
+				startTurn();
+			}
+		}
+	}
+
+	/* The TurnCache read that answers the command, or -1; in the order
+	 * Game.turnCommand matches them. */
+	private static int cachedRead(String[] cmd) {
+		if (cmd.length != 1) {
+			return -1;
+		}
+		if ("next moves".startsWith(cmd[0])) {
+			return TurnCache.NEXT_MOVES;
+		}
+		if ("list properties".startsWith(cmd[0])) {
+			return TurnCache.PROPERTIES;
+		}
+		if ("scores".startsWith(cmd[0])) {
+			return TurnCache.SCORES;
+		}
+		return -1;
+	}
+
+	/* Runs a command in the turn's transaction and commits if it ends the turn. */
+	private boolean runTurnCommand(String[] cmd) throws SQLException {
+		int read = cachedRead(cmd);
+		if (cache != null && read >= 0) {
+			String text = cache.take(read);
+			if (text != null) {
+				game.out.print(text);
+				return false;
+			}
+		}
+		long writes = game.writes;
+		try {
+			boolean ended = game.turnCommand(turnConnection(), players, turn, cmd);
+			if (cache != null && (ended || game.writes != writes)) {
+				cache.drop();
+			}
+			if (ended) {
+				/* Taxes and hotel fees may have gone to anyone. */
+				game.refreshBudgets(turnConn, players);
+				Connection conn = turnConn;
+				turnConn = null;
+				try {
+					conn.commit();
+					game.committed();
+				} finally {
+					conn.close();
+				}
+			}
+			return ended;
+		} catch (SQLException e) {
+			if (cache != null) {
+				cache.drop();
+			}
+			abortTurn(e);
+			players.get(turn).invalidate();
+			throw e;
+		}
+	}
+
+	private Connection turnConnection() throws SQLException {
+		if (turnConn == null) {
+			turnConn = game.pool.getConnection();
+			turnConn.setAutoCommit(false);
+		}
+		return turnConn;
+	}
+
+	/* Gives up the turn's transaction; the pool rolls it back, and the
+	 * changes to the road graph and budgets waiting for its commit are
+	 * dropped. The player keeps the turn and the next command starts a new
+	 * transaction.
+	 */
+	private void abortTurn(SQLException cause) {
+		game.rolledBack();
+		Connection conn = turnConn;
+		turnConn = null;
+		if (conn == null) {
+			return;
+		}
+		if (ConnectionPool.isConnectionError(cause)) {
+			game.pool.invalidate(conn);
+		}
+		try {
+			conn.close();
+		} catch (SQLException e) {
+			// Already gone.
+		}
+	}
+
+	/* Releases the connection of an unfinished turn, e.g. when a session ends. */
+	void close() {
+		if (cache != null) {
+			cache.drop();
+		}
+		abortTurn(new SQLException("closed"));
+	}
+
+	private void startRound() throws SQLException {
+		/* Without players the rounds just pass. */
+		while (players.isEmpty() && !over) {
+			endRound();
+		}
+		if (!over) {
+			game.out.println("\nWe are starting the " + roundcounter + ". round!!!");
+			turn = 0;
+			startTurn();
+		}
+	}
+
+	private void startTurn() throws SQLException {
+		final Game.Player player = players.get(turn);
+		turnStart = game.statements;
+		game.out.println("\nIt's your turn " + player.playername + "!");
+		/* Location and budget are known from the end of the last turn,
+		 * otherwise one read; the rest of the turn uses the cache. */
+		if (!player.locationKnown || !player.budgetKnown) {
+			try {
+				game.refreshPlayer(turnConnection(), player);
+			} catch (SQLException e) {
+				abortTurn(e);
+				throw e;
+			}
+		}
+		game.out.println("You are currently located in " + player.locationArea() + " (" + player.locationCountry() + ")");
+		/* The player reads the line above and types; meanwhile the usual first reads run. */
+		if (game.prefetch) {
+			if (cache == null) {
+				cache = new TurnCache(game);
+			}
+			cache.prefetch(player);
+		}
+	}
+
+	double statementsPerTurn() {
+		return turns == 0 ? 0.0 : (double) turnStatements / turns;
+	}
+
+	private void nextTurn() throws SQLException {
+		++turns;
+		turnStatements += game.statements - turnStart;
+		if (++turn < players.size()) {
+			startTurn();
+			return;
+		}
+		endRound();
+		if (!over) {
+			startRound();
+		}
+	}
+
+	private void endRound() throws SQLException {
+		game.withConnection(conn -> { game.setVisitingBonus(conn); return null; });
+		if (++roundcounter > maxrounds) {
+			over = true;
+			game.withRetriedConnection(conn -> { game.announceWinner(conn); return null; });
+			game.out.println("\nGG!\n");
+			game.out.println(String.format("Database statements per turn: %.2f", statementsPerTurn()));
+		}
+	}
+}
@@ -0,0 +1,71 @@
+/* The game's data and rules behind one interface.
+ *
+ * SqlStore runs every operation through Game's JDBC methods, where the
+ * rules live in the triggers and move_player() of task3.sql. MemoryStore
+ * applies the same rules to arrays in the JVM, for bot runs that do not
+ * need a database. StoreCheck plays the same random actions on both and
+ * compares the results.
+ *
+ * Persons are named by (country, personnummer) as in the database. An
+ * action returns false when it was refused (a constraint or trigger
+ * failed, or nothing matched) and then changes nothing.
+ */
+import java.sql.SQLException;
+import java.util.List;
+
+interface GameStore
+{
+	/* A move from next moves: destination area and its cost. */
+	class Move
+	{
+		final String area;
+		final String country;
+		final double cost;
+
+		Move(String area, String country, double cost) {
+			this.area = area;
+			this.country = country;
+			this.cost = cost;
+		}
+	}
+
+	/* World file lines: an area with its country, as a town or a city,
+	 * and a government road. */
+	boolean addTown(String name, String country, int population) throws SQLException;
+
+	boolean addCity(String name, String country, int population) throws SQLException;
+
+	boolean addRoad(String area1, String country1, String area2, String country2) throws SQLException;
+
+	/* A player with a budget of 1000 in an area of their own country. */
+	boolean createPlayer(String name, String personnummer, String country, String area) throws SQLException;
+
+	/* {area, country} of the person, or null if there is no such person. */
+	String[] location(String country, String personnummer) throws SQLException;
+
+	double budget(String country, String personnummer) throws SQLException;
+
+	/* {assets, reclaimable} as in AssetSummary. */
+	double[] assets(String country, String personnummer) throws SQLException;
+
+	/* Moves from the person's location, as next_moves(). */
+	List<Move> nextMoves(String country, String personnummer) throws SQLException;
+
+	/* The person's hotels and roads, one line each, in no particular order. */
+	List<String> properties(String country, String personnummer) throws SQLException;
+
+	double visitBonus(String city, String country) throws SQLException;
+
+	boolean buyRoad(String country, String personnummer, String area1, String country1, String area2, String country2) throws SQLException;
+
+	boolean sellRoad(String country, String personnummer, String area1, String country1, String area2, String country2) throws SQLException;
+
+	boolean buyHotel(String country, String personnummer, String name, String city, String cityCountry) throws SQLException;
+
+	boolean sellHotel(String country, String personnummer, String city, String cityCountry) throws SQLException;
+
+	boolean move(String country, String personnummer, String area, String areaCountry) throws SQLException;
+
+	/* Puts the visit bonus of 1000 on a city. */
+	void setVisitBonus(String city, String country) throws SQLException;
+}
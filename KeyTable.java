@@ -0,0 +1,109 @@
+/* Bidirectional intern table of the two-part text keys of a game: areas
+ * by (name, country) and persons by (country, personnummer).
+ *
+ * Every key has an int id, which is the surrogate key the database stores
+ * (Areas.id, Persons.id) and which every foreign key, index and in-memory
+ * structure uses instead of the text. Ids are assigned here, as the world
+ * is loaded and players are created, counting up from 0, the government's
+ * key ('', ''). At game start the table is read back from the database,
+ * so numbering goes on after the ids already there. Names are only looked
+ * up at the console: commands are turned into ids with id(), and ids back
+ * into names for the output with first() and second().
+ *
+ * Only one process should create areas and players of a game at a time,
+ * otherwise two of them can pick the same id; the primary key refuses the
+ * second one. An id whose insert failed stays assigned, and is reused if
+ * the key is inserted again.
+ */
+import java.sql.*;
+import java.util.Arrays;
+import java.util.HashMap;
+
+public class KeyTable
+{
+	/* Id of the government's area and of the government. */
+	static final int GOVERNMENT = 0;
+
+	private final HashMap<String, Integer> ids = new HashMap<String, Integer>();
+	private String[] first = new String[1024];
+	private String[] second = new String[1024];
+	/* Ids in use are below next. */
+	private int next;
+
+	public KeyTable() {
+		intern("", "");
+	}
+
+	private static String key(String a, String b) {
+		return a + '\u0000' + b;
+	}
+
+	/* The id of a key, or -1 if it has none. */
+	synchronized int id(String a, String b) {
+		Integer id = ids.get(key(a, b));
+		return id == null ? -1 : id;
+	}
+
+	/* The id of a key, assigning the next free one if it has none. */
+	synchronized int intern(String a, String b) {
+		Integer id = ids.get(key(a, b));
+		if (id != null) {
+			return id;
+		}
+		int n = next;
+		put(n, a, b);
+		return n;
+	}
+
+	private void put(int id, String a, String b) {
+		if (id >= first.length) {
+			int n = Math.max(id + 1, first.length * 2);
+			first = Arrays.copyOf(first, n);
+			second = Arrays.copyOf(second, n);
+		}
+		first[id] = a;
+		second[id] = b;
+		ids.put(key(a, b), id);
+		next = Math.max(next, id + 1);
+	}
+
+	/* The parts of the key with the given id, or null for an unknown id. */
+	synchronized String first(int id) {
+		return id >= 0 && id < next ? first[id] : null;
+	}
+
+	synchronized String second(int id) {
+		return id >= 0 && id < next ? second[id] : null;
+	}
+
+	/* One more than the highest id, so arrays indexed by id can be sized. */
+	synchronized int size() {
+		return next;
+	}
+
+	/* Replaces the contents with the keys of a game from the database; the
+	 * query selects id and the two parts, with the game as its parameter.
+	 * Sessions share one table, so it is refilled in place.
+	 */
+	void load(Connection conn, String sql, int game) throws SQLException {
+		try (Stats.Timer timer = Stats.time(sql); PreparedStatement st = conn.prepareStatement(sql)) {
+			st.setInt(1, game);
+			st.setFetchSize(10000);
+			synchronized (this) {
+				ids.clear();
+				Arrays.fill(first, null);
+				Arrays.fill(second, null);
+				next = 0;
+				intern("", "");
+				long rows = 0;
+				try (ResultSet rs = st.executeQuery()) {
+					while (rs.next()) {
+						put(rs.getInt(1), rs.getString(2), rs.getString(3));
+						++rows;
+					}
+				}
+				timer.done(rows);
+			}
+		}
+	}
+}
@@ -0,0 +1,97 @@
+/* Thread-safe latency histogram with log-linear buckets, in the style of
+ * HdrHistogram: every power of two is split into 16 sub-buckets, which
+ * keeps the relative error of a reported percentile below ~6% for values
+ * from 1 ns up to hours, with a fixed array of counters.
+ */
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class LatencyHistogram
+{
+	private static final int SUB_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong total = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/* Records one value, normally a duration in nanoseconds. */
+	void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		counts.incrementAndGet(index(value));
+		total.incrementAndGet();
+		sum.addAndGet(value);
+		long m;
+		while (value > (m = max.get()) && !max.compareAndSet(m, value)) {
+		}
+	}
+
+	private static int index(long v) {
+		if (v < SUB_BUCKETS) {
+			return (int) v;
+		}
+		/* v >>> shift keeps the top SUB_BITS + 1 bits, in [16, 32). */
+		int shift = 63 - Long.numberOfLeadingZeros(v) - SUB_BITS;
+		return shift * SUB_BUCKETS + (int) (v >>> shift);
+	}
+
+	/* Largest value that falls into the given bucket. */
+	private static long upperBound(int i) {
+		if (i < SUB_BUCKETS) {
+			return i;
+		}
+		int shift = i / SUB_BUCKETS - 1;
+		long top = i % SUB_BUCKETS + SUB_BUCKETS;
+		return ((top + 1) << shift) - 1;
+	}
+
+	long count() {
+		return total.get();
+	}
+
+	long max() {
+		return max.get();
+	}
+
+	double mean() {
+		long n = total.get();
+		return n == 0 ? 0.0 : (double) sum.get() / n;
+	}
+
+	/* Returns the value at the given percentile (0-100). */
+	long percentile(double p) {
+		long n = total.get();
+		if (n == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(p / 100.0 * n));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; ++i) {
+			seen += counts.get(i);
+			if (seen >= rank) {
+				return Math.min(upperBound(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	void reset() {
+		for (int i = 0; i < BUCKETS; ++i) {
+			counts.set(i, 0);
+		}
+		total.set(0);
+		sum.set(0);
+		max.set(0);
+	}
+
+	/* One line summary with values converted from ns to microseconds. */
+	String summary() {
+		return String.format("count=%d mean=%.1fus p50=%.1fus p99=%.1fus p999=%.1fus max=%.1fus",
+				count(), mean() / 1e3, percentile(50) / 1e3, percentile(99) / 1e3,
+				percentile(99.9) / 1e3, max() / 1e3);
+	}
+}
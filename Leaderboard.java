@@ -0,0 +1,222 @@
+/* Ranking of the players of a game by budget (who wins) and by budget
+ * plus assets (what they are worth, as in the scores).
+ *
+ * Each ranking is an order-statistic treap: nodes ordered by score,
+ * highest first, ties by insertion order, with subtree sizes so that
+ * the rank of a score and the k-th entry are found in O(log n). Players
+ * with the same score share a rank (1, 2, 2, 4). Game updates an entry
+ * whenever it learns a player's budget and assets.
+ */
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class Leaderboard
+{
+	static class Entry
+	{
+		final int id;
+		final String name;
+		final String country;
+		final String personnummer;
+		BigDecimal budget;
+		BigDecimal worth;
+
+		Entry(int id, String name, String country, String personnummer) {
+			this.id = id;
+			this.name = name;
+			this.country = country;
+			this.personnummer = personnummer;
+		}
+	}
+
+	private static class Node
+	{
+		final BigDecimal score;
+		final int id;
+		final int priority;
+		int size = 1;
+		Node left;
+		Node right;
+
+		Node(BigDecimal score, int id, int priority) {
+			this.score = score;
+			this.id = id;
+			this.priority = priority;
+		}
+	}
+
+	/* Treap of (score, id), highest score first. */
+	private static class Tree
+	{
+		private Node root;
+		private final Random random = new Random(1);
+
+		private static int size(Node n) {
+			return n == null ? 0 : n.size;
+		}
+
+		private static Node update(Node n) {
+			n.size = 1 + size(n.left) + size(n.right);
+			return n;
+		}
+
+		/* Does n come before (score, id)? With inclusive also if it is (score, id). */
+		private static boolean before(Node n, BigDecimal score, int id, boolean inclusive) {
+			int c = n.score.compareTo(score);
+			return c > 0 || (c == 0 && (n.id < id || (inclusive && n.id == id)));
+		}
+
+		/* Splits t into the nodes before (score, id) and the rest. */
+		private static Node[] split(Node t, BigDecimal score, int id, boolean inclusive) {
+			if (t == null) {
+				return new Node[2];
+			}
+			if (before(t, score, id, inclusive)) {
+				Node[] r = split(t.right, score, id, inclusive);
+				t.right = r[0];
+				r[0] = update(t);
+				return r;
+			}
+			Node[] l = split(t.left, score, id, inclusive);
+			t.left = l[1];
+			l[1] = update(t);
+			return l;
+		}
+
+		private static Node merge(Node a, Node b) {
+			if (a == null) {
+				return b;
+			}
+			if (b == null) {
+				return a;
+			}
+			if (a.priority > b.priority) {
+				a.right = merge(a.right, b);
+				return update(a);
+			}
+			b.left = merge(a, b.left);
+			return update(b);
+		}
+
+		void insert(BigDecimal score, int id) {
+			Node[] s = split(root, score, id, false);
+			root = merge(merge(s[0], new Node(score, id, random.nextInt())), s[1]);
+		}
+
+		void remove(BigDecimal score, int id) {
+			Node[] s = split(root, score, id, false);
+			Node[] t = split(s[1], score, id, true);
+			root = merge(s[0], t[1]);
+		}
+
+		/* Number of entries with a higher score. */
+		int above(BigDecimal score) {
+			int n = 0;
+			Node t = root;
+			while (t != null) {
+				if (t.score.compareTo(score) > 0) {
+					n += size(t.left) + 1;
+					t = t.right;
+				} else {
+					t = t.left;
+				}
+			}
+			return n;
+		}
+
+		/* The k-th node, 0 being the highest score. */
+		Node get(int k) {
+			Node t = root;
+			while (t != null) {
+				int l = size(t.left);
+				if (k < l) {
+					t = t.left;
+				} else if (k == l) {
+					return t;
+				} else {
+					k -= l + 1;
+					t = t.right;
+				}
+			}
+			return null;
+		}
+
+		int size() {
+			return size(root);
+		}
+	}
+
+	/* Entries by person id (KeyTable), and in insertion order. */
+	private Entry[] entries = new Entry[64];
+	private final ArrayList<Entry> byId = new ArrayList<Entry>();
+	private final Tree budgets = new Tree();
+	private final Tree worths = new Tree();
+
+	/* Sets the budget and the worth (budget plus assets) of a player. */
+	synchronized void update(int person, String name, String country, String personnummer, BigDecimal budget, BigDecimal worth) {
+		if (person >= entries.length) {
+			entries = Arrays.copyOf(entries, Math.max(person + 1, entries.length * 2));
+		}
+		Entry e = entries[person];
+		if (e == null) {
+			e = new Entry(byId.size(), name, country, personnummer);
+			entries[person] = e;
+			byId.add(e);
+		} else {
+			if (budget.compareTo(e.budget) == 0 && worth.compareTo(e.worth) == 0) {
+				return;
+			}
+			budgets.remove(e.budget, e.id);
+			worths.remove(e.worth, e.id);
+		}
+		e.budget = budget;
+		e.worth = worth;
+		budgets.insert(budget, e.id);
+		worths.insert(worth, e.id);
+	}
+
+	synchronized void clear() {
+		Arrays.fill(entries, null);
+		byId.clear();
+		budgets.root = null;
+		worths.root = null;
+	}
+
+	synchronized int size() {
+		return byId.size();
+	}
+
+	synchronized Entry get(int person) {
+		return person >= 0 && person < entries.length ? entries[person] : null;
+	}
+
+	/* Rank by budget, or by worth, of the given entry; equal scores share a rank. */
+	synchronized int rank(Entry e, boolean byWorth) {
+		return byWorth ? worths.above(e.worth) + 1 : budgets.above(e.budget) + 1;
+	}
+
+	/* The k highest budgets, and everyone tied with the last of them. */
+	synchronized List<Entry> top(int k) {
+		List<Entry> l = new ArrayList<Entry>();
+		if (k <= 0) {
+			return l;
+		}
+		int n = budgets.size();
+		for (int i = 0; i < n; ++i) {
+			Node node = budgets.get(i);
+			if (i >= k && node.score.compareTo(l.get(l.size() - 1).budget) != 0) {
+				break;
+			}
+			l.add(byId.get(node.id));
+		}
+		return l;
+	}
+
+	/* Everyone with the highest budget. */
+	List<Entry> leaders() {
+		return top(1);
+	}
+}
@@ -0,0 +1,241 @@
+/* Multi-bot load test.
+ *
+ * java LoadDriver [-games n] [-players n] [-rounds n] [-strategy walk|trade|mixed] [-seed n]
+ *                 [-local [-pg <bin dir>] [-areas n] [-density roads per area] [-countries n] [-cityratio r]]
+ *
+ * Runs a number of games at once in a SessionManager. Every game gets
+ * its players through the "new player" command (createPlayer) and is
+ * played by bots until the last round is over:
+ *   walk   looks at the next moves and takes a random road
+ *   trade  also buys roads to neighbouring areas and hotels, and refunds
+ *          what it bought earlier
+ *   mixed  picks walk or trade at random every turn
+ * Every game is a copy of the world (Game.newGame) that is dropped
+ * when it is over. Per command the throughput and the latency
+ * distribution are reported.
+ *
+ * Without -local the world in the config.cfg database is used. With
+ * -local a scratch server (LocalPostgres) is started and a world from
+ * WorldGenerator is bulk loaded into it first.
+ */
+import java.io.File;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class LoadDriver
+{
+	enum Strategy { WALK, TRADE, MIXED }
+
+	/* Commands in report order. */
+	private static final String[] COMMANDS = { "new", "done", "next", "move", "buy road", "buy hotel", "refund", "quit" };
+
+	int games = 100;
+	int players = 4;
+	int rounds = 5;
+	Strategy strategy = Strategy.MIXED;
+	long seed = 1;
+
+	private final ConcurrentHashMap<String, LatencyHistogram> latency = new ConcurrentHashMap<String, LatencyHistogram>();
+	private final AtomicLong turns = new AtomicLong();
+	private final AtomicLong turnStatements = new AtomicLong();
+
+	public static void main(String[] args) throws Exception {
+		LoadDriver d = new LoadDriver();
+		WorldGenerator world = new WorldGenerator();
+		boolean local = false;
+		String bindir = null;
+		for (int i = 0; i < args.length; ++i) {
+			if ("-local".equals(args[i])) {
+				local = true;
+			} else if ("-games".equals(args[i]) && i + 1 < args.length) {
+				d.games = Integer.parseInt(args[++i]);
+			} else if ("-players".equals(args[i]) && i + 1 < args.length) {
+				d.players = Integer.parseInt(args[++i]);
+			} else if ("-rounds".equals(args[i]) && i + 1 < args.length) {
+				d.rounds = Integer.parseInt(args[++i]);
+			} else if ("-strategy".equals(args[i]) && i + 1 < args.length) {
+				d.strategy = Strategy.valueOf(args[++i].toUpperCase());
+			} else if ("-seed".equals(args[i]) && i + 1 < args.length) {
+				d.seed = Long.parseLong(args[++i]);
+			} else if ("-pg".equals(args[i]) && i + 1 < args.length) {
+				bindir = args[++i];
+			} else if ("-areas".equals(args[i]) && i + 1 < args.length) {
+				world.areas = Integer.parseInt(args[++i]);
+			} else if ("-density".equals(args[i]) && i + 1 < args.length) {
+				world.roadsPerArea = Double.parseDouble(args[++i]);
+			} else if ("-countries".equals(args[i]) && i + 1 < args.length) {
+				world.countries = Integer.parseInt(args[++i]);
+			} else if ("-cityratio".equals(args[i]) && i + 1 < args.length) {
+				world.cityRatio = Double.parseDouble(args[++i]);
+			}
+		}
+
+		Game g = new Game();
+		if (!local) {
+			Properties config = g.readConfig();
+			if (config == null) {
+				return;
+			}
+			g.pool = g.connect(config);
+			g.configure(config);
+			d.run(g, config);
+			return;
+		}
+		try (LocalPostgres pg = LocalPostgres.start(bindir)) {
+			g.USERNAME = LocalPostgres.USER;
+			g.PASSWORD = "";
+			Properties config = pg.config();
+			g.pool = g.connect(config);
+			File file = File.createTempFile("world", ".txt");
+			try (Connection conn = g.pool.getConnection()) {
+				LocalPostgres.createSchema(conn);
+				g.insertGovernment(conn);
+				world.seed = d.seed;
+				world.write(file.getPath());
+				new WorldLoader(conn, g.gameId, g.areaKeys, g.out).load(file.getPath());
+			} finally {
+				file.delete();
+			}
+			d.run(g, config);
+		}
+	}
+
+	/* Plays the games on the world in g's database and prints the report.
+	 * Closes g's pool at the end.
+	 */
+	void run(Game g, Properties config) throws Exception {
+		final List<String[]> areas = new ArrayList<String[]>();
+		try {
+			g.withRetriedConnection(conn -> {
+				g.loadKeys(conn);
+				PreparedStatement st = g.prepare(conn, "SELECT country, name FROM Areas WHERE game_id = ? AND id <> 0 LIMIT 10000");
+				st.setInt(1, g.gameId);
+				try (ResultSet rs = g.query(st)) {
+					while (rs.next()) {
+						areas.add(new String[] { rs.getString(1), rs.getString(2) });
+					}
+					g.rows(st, areas.size());
+				}
+				return null;
+			});
+			if (areas.isEmpty()) {
+				System.out.println("Load a world first, there are no areas.");
+				return;
+			}
+			g.loadRoadGraph(config);
+			g.loadCities();
+
+			final SessionManager manager = new SessionManager(g, rounds);
+			ExecutorService bots = SessionManager.newSessionExecutor();
+			List<Future<?>> done = new ArrayList<Future<?>>();
+			long start = System.nanoTime();
+			for (int n = 0; n < games; ++n) {
+				final int gameNo = n;
+				done.add(bots.submit(() -> {
+					play(manager, gameNo, areas);
+					return null;
+				}));
+			}
+			for (Future<?> f : done) {
+				try {
+					f.get();
+				} catch (ExecutionException e) {
+					System.out.println("Game failed: " + e.getCause());
+				}
+			}
+			double secs = (System.nanoTime() - start) / 1e9;
+			bots.shutdown();
+			manager.shutdown();
+			report(secs);
+		} finally {
+			g.pool.close();
+		}
+	}
+
+	/* Plays one game with bots from start to end. */
+	private void play(SessionManager manager, int gameNo, List<String[]> areas) throws Exception {
+		Random rnd = new Random(seed * 1000003 + gameNo);
+		long id = manager.open();
+		GameEngine engine = manager.engine(id);
+		try {
+			for (int p = 0; p < players; ++p) {
+				String[] area = areas.get(rnd.nextInt(areas.size()));
+				timed(manager, id, "new", "n bot" + p + " " + String.format("99%06d-%04d", gameNo, p) + " " + area[0] + " " + area[1]);
+			}
+			/* Refund commands for what each player has bought. */
+			Map<Game.Player, List<String>> owned = new HashMap<Game.Player, List<String>>();
+			GameEngine.Response r = timed(manager, id, "done", "d");
+			while (!r.gameOver) {
+				Game.Player player = engine.currentPlayer();
+				r = timed(manager, id, "next", "n");
+				List<String> moves = new ArrayList<String>();
+				for (String line : r.text.split("\n")) {
+					if (line.startsWith("Area: ")) {
+						int c = line.indexOf(" Country: ");
+						int k = line.indexOf(" Cost : ");
+						moves.add(line.substring(6, c) + " " + line.substring(c + 10, k));
+					}
+				}
+				Strategy s = strategy == Strategy.MIXED ? (rnd.nextBoolean() ? Strategy.WALK : Strategy.TRADE) : strategy;
+				List<String> mine = owned.computeIfAbsent(player, k -> new ArrayList<String>());
+				String here = player.locationArea() + " " + player.locationCountry();
+				int choice = s == Strategy.TRADE ? rnd.nextInt(4) : 3;
+				if (choice == 0 && !moves.isEmpty()) {
+					String to = moves.get(rnd.nextInt(moves.size()));
+					r = timed(manager, id, "buy road", "b " + here + " " + to);
+					if (r.turnEnded) {
+						mine.add("r " + here + " " + to);
+					}
+				} else if (choice == 1) {
+					r = timed(manager, id, "buy hotel", "b Inn " + here);
+					if (r.turnEnded) {
+						mine.add("r " + here);
+					}
+				} else if (choice == 2 && !mine.isEmpty()) {
+					r = timed(manager, id, "refund", mine.remove(rnd.nextInt(mine.size())));
+				} else if (!moves.isEmpty()) {
+					r = timed(manager, id, "move", "m " + moves.get(rnd.nextInt(moves.size())));
+				}
+				if (!r.turnEnded && !r.gameOver) {
+					r = timed(manager, id, "quit", "q");
+				}
+			}
+			turns.addAndGet(engine.turns);
+			turnStatements.addAndGet(engine.turnStatements);
+		} finally {
+			manager.close(id);
+		}
+	}
+
+	private GameEngine.Response timed(SessionManager manager, long id, String name, String command) throws Exception {
+		long t = System.nanoTime();
+		GameEngine.Response r = manager.send(id, command).get();
+		latency.computeIfAbsent(name, k -> new LatencyHistogram()).record(System.nanoTime() - t);
+		return r;
+	}
+
+	private void report(double secs) {
+		long commands = 0;
+		for (LatencyHistogram h : latency.values()) {
+			commands += h.count();
+		}
+		System.out.println(games + " games, " + players + " players, " + rounds + " rounds, " + strategy.name().toLowerCase() + ": "
+				+ commands + " commands in " + String.format("%.2f", secs) + " s, "
+				+ String.format("%.0f", commands / secs) + " commands/s");
+		for (String cmd : COMMANDS) {
+			LatencyHistogram h = latency.get(cmd);
+			if (h != null) {
+				System.out.println(String.format("%-9s %8.0f/s ", cmd, h.count() / secs) + h.summary());
+			}
+		}
+		System.out.println(String.format("Database statements per turn: %.2f", (double) turnStatements.get() / Math.max(1, turns.get())));
+		System.out.println(StatementCache.summary());
+	}
+}
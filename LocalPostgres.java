@@ -0,0 +1,98 @@
+/* A throwaway PostgreSQL server for benchmarks and load runs.
+ *
+ * start() runs initdb into a temporary directory and starts the server
+ * on a free port with fsync off, trusting local connections. close()
+ * stops the server and deletes the directory again. The PostgreSQL
+ * binaries (initdb, pg_ctl) are taken from the given directory, or from
+ * the PATH when it is null.
+ */
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.stream.Stream;
+
+public class LocalPostgres implements AutoCloseable
+{
+	static final String USER = "bench";
+
+	private final String bindir;
+	private final Path dir;
+	private final int port;
+
+	private LocalPostgres(String bindir, Path dir, int port) {
+		this.bindir = bindir;
+		this.dir = dir;
+		this.port = port;
+	}
+
+	static LocalPostgres start(String bindir) throws IOException {
+		Path dir = Files.createTempDirectory("game-pg");
+		int port;
+		try (ServerSocket s = new ServerSocket(0)) {
+			port = s.getLocalPort();
+		}
+		LocalPostgres pg = new LocalPostgres(bindir, dir, port);
+		pg.run("initdb", "-D", dir.resolve("data").toString(), "-U", USER, "-A", "trust", "-E", "UTF8", "--no-sync");
+		pg.run("pg_ctl", "-D", dir.resolve("data").toString(), "-l", dir.resolve("log").toString(), "-w",
+				"-o", "-p " + port + " -k " + dir + " -c listen_addresses=localhost -c fsync=off -c synchronous_commit=off",
+				"start");
+		return pg;
+	}
+
+	/* Creates the game schema in a fresh database: the getval.sql stand-in
+	 * for the Task 2 constants followed by task3.sql. */
+	static void createSchema(Connection conn) throws IOException, SQLException {
+		try (Statement st = conn.createStatement()) {
+			for (String file : new String[] { "getval.sql", "task3.sql" }) {
+				st.execute(new String(Files.readAllBytes(Paths.get(file)), StandardCharsets.UTF_8));
+			}
+		}
+	}
+
+	String url() {
+		return "jdbc:postgresql://localhost:" + port + "/postgres";
+	}
+
+	/* Settings for Game.connect(); the user is trusted, so any password works. */
+	Properties config() {
+		Properties config = new Properties();
+		config.setProperty("URL", url());
+		return config;
+	}
+
+	private void run(String program, String... args) throws IOException {
+		List<String> cmd = new ArrayList<String>();
+		cmd.add(bindir == null ? program : new File(bindir, program).getPath());
+		cmd.addAll(Arrays.asList(args));
+		Process p = new ProcessBuilder(cmd).redirectErrorStream(true)
+				.redirectOutput(dir.resolve(program + ".out").toFile()).start();
+		try {
+			if (p.waitFor() != 0) {
+				throw new IOException(program + " failed, see " + dir.resolve(program + ".out"));
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(program + " interrupted");
+		}
+	}
+
+	public void close() throws IOException {
+		try {
+			run("pg_ctl", "-D", dir.resolve("data").toString(), "-m", "fast", "-w", "stop");
+		} finally {
+			try (Stream<Path> files = Files.walk(dir)) {
+				files.sorted(Comparator.reverseOrder()).forEach(f -> f.toFile().delete());
+			}
+		}
+	}
+}
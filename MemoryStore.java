@@ -0,0 +1,453 @@
+/* GameStore in memory, with the rules of the task3.sql triggers and of
+ * move_player() written out in Java.
+ *
+ * Areas and persons are interned to dense int ids as in RoadGraph; roads
+ * are parallel arrays with per-area edge lists, hotels are kept per area
+ * (a city has a handful at most), and budgets, counts and bonuses are
+ * arrays indexed by id. Strings are only looked up at the interface, so
+ * an action costs a couple of hash lookups plus array work.
+ *
+ * Money is a double, so results agree with the NUMERIC columns up to
+ * rounding. The constants default to the values in getval.sql. Not thread
+ * safe: one store per bot run.
+ */
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.regex.Pattern;
+
+public class MemoryStore implements GameStore
+{
+	/* Person id of the government. */
+	static final int GOVERNMENT = 0;
+
+	private static final Pattern PERSONNUMMER = Pattern.compile("^[0-9]{8}-[0-9]{4}$");
+	private static final Pattern NO_DIGITS = Pattern.compile("^[^0-9]*$");
+
+	/* getval() constants. */
+	double roadprice = 456.9;
+	double hotelprice = 789.2;
+	double roadtax = 13.5;
+	double hotelrefund = 0.50;
+	double cityvisit = 102030.3;
+
+	private final HashSet<String> countries = new HashSet<String>();
+
+	/* Areas. */
+	/* country -> name -> id; two levels, so a lookup reuses the hash codes
+	 * cached in the caller's strings instead of hashing a new key. */
+	private final HashMap<String, HashMap<String, Integer>> areaIds = new HashMap<String, HashMap<String, Integer>>();
+	private final ArrayList<String> areaNames = new ArrayList<String>();
+	private final ArrayList<String> areaCountries = new ArrayList<String>();
+	private boolean[] city = new boolean[1024];
+	private double[] visitbonus = new double[1024];
+	private int[][] adj = new int[1024][];
+	private int[] degree = new int[1024];
+	private String[][] hotelName = new String[1024][];
+	private int[][] hotelOwner = new int[1024][];
+	private int[] hotelCount = new int[1024];
+
+	/* Persons. */
+	private final HashMap<String, HashMap<String, Integer>> personIds = new HashMap<String, HashMap<String, Integer>>();
+	private final ArrayList<String> personCountries = new ArrayList<String>();
+	private final ArrayList<String> personnummers = new ArrayList<String>();
+	private double[] budget = new double[64];
+	private int[] location = new int[64];
+	private int[] hotels = new int[64];
+	private int[] roads = new int[64];
+
+	/* Roads; a removed road has from == -1 and is kept in the free list. */
+	private int[] from = new int[1024];
+	private int[] to = new int[1024];
+	private int[] owner = new int[1024];
+	private double[] tax = new double[1024];
+	private int edges;
+	private int[] free = new int[16];
+	private int freeCount;
+
+	/* The government and its area, as Game.insertGovernment creates them. */
+	public MemoryStore() {
+		countries.add("");
+		int a = newArea("", "");
+		newPerson("", "", a, 0);
+	}
+
+	private static int lookup(HashMap<String, HashMap<String, Integer>> ids, String a, String b) {
+		HashMap<String, Integer> m = ids.get(a);
+		Integer id = m == null ? null : m.get(b);
+		return id == null ? -1 : id;
+	}
+
+	private int areaId(String name, String country) {
+		return lookup(areaIds, country, name);
+	}
+
+	private int personId(String country, String personnummer) {
+		return lookup(personIds, country, personnummer);
+	}
+
+	private int newArea(String name, String country) {
+		int id = areaNames.size();
+		areaIds.computeIfAbsent(country, k -> new HashMap<String, Integer>()).put(name, id);
+		areaNames.add(name);
+		areaCountries.add(country);
+		if (id == adj.length) {
+			int n = id * 2;
+			city = Arrays.copyOf(city, n);
+			visitbonus = Arrays.copyOf(visitbonus, n);
+			adj = Arrays.copyOf(adj, n);
+			degree = Arrays.copyOf(degree, n);
+			hotelName = Arrays.copyOf(hotelName, n);
+			hotelOwner = Arrays.copyOf(hotelOwner, n);
+			hotelCount = Arrays.copyOf(hotelCount, n);
+		}
+		return id;
+	}
+
+	private int newPerson(String country, String personnummer, int area, double money) {
+		int id = personCountries.size();
+		personIds.computeIfAbsent(country, k -> new HashMap<String, Integer>()).put(personnummer, id);
+		personCountries.add(country);
+		personnummers.add(personnummer);
+		if (id == budget.length) {
+			int n = id * 2;
+			budget = Arrays.copyOf(budget, n);
+			location = Arrays.copyOf(location, n);
+			hotels = Arrays.copyOf(hotels, n);
+			roads = Arrays.copyOf(roads, n);
+		}
+		budget[id] = money;
+		location[id] = area;
+		return id;
+	}
+
+	/* Inserts an area, and its country when needed, if all checks pass. */
+	private int addArea(String name, String country, int population) {
+		if (!NO_DIGITS.matcher(name).matches() || population < 0 || areaId(name, country) >= 0
+				|| (!countries.contains(country) && !NO_DIGITS.matcher(country).matches())) {
+			return -1;
+		}
+		countries.add(country);
+		return newArea(name, country);
+	}
+
+	public boolean addTown(String name, String country, int population) {
+		return addArea(name, country, population) >= 0;
+	}
+
+	public boolean addCity(String name, String country, int population) {
+		int a = addArea(name, country, population);
+		if (a < 0) {
+			return false;
+		}
+		city[a] = true;
+		return true;
+	}
+
+	public boolean addRoad(String area1, String country1, String area2, String country2) {
+		return addRoad(GOVERNMENT, area1, country1, area2, country2, 0.0);
+	}
+
+	/* insRoads: one road per owner between two areas, in either direction.
+	 * Persons pay the road price and must stand at one of its ends. */
+	private boolean addRoad(int o, String area1, String country1, String area2, String country2, double roadtax) {
+		int a = areaId(area1, country1);
+		int b = areaId(area2, country2);
+		if (o < 0 || a < 0 || b < 0 || a == b || findRoad(o, a, b) >= 0) {
+			return false;
+		}
+		if (o != GOVERNMENT) {
+			/* The trigger's location test: the owner stands at one end. */
+			int l = location[o];
+			if (l != a && l != b) {
+				return false;
+			}
+			if (budget[o] - roadprice < 0) {
+				return false;
+			}
+			budget[o] -= roadprice;
+			++roads[o];
+		}
+		int e;
+		if (freeCount > 0) {
+			e = free[--freeCount];
+		} else {
+			e = edges++;
+			if (e == from.length) {
+				from = Arrays.copyOf(from, e * 2);
+				to = Arrays.copyOf(to, e * 2);
+				owner = Arrays.copyOf(owner, e * 2);
+				tax = Arrays.copyOf(tax, e * 2);
+			}
+		}
+		from[e] = a;
+		to[e] = b;
+		owner[e] = o;
+		tax[e] = roadtax;
+		link(a, e);
+		link(b, e);
+		return true;
+	}
+
+	/* The road of owner o between a and b in either direction, or -1. */
+	private int findRoad(int o, int a, int b) {
+		int[] list = adj[a];
+		for (int i = 0; i < degree[a]; ++i) {
+			int e = list[i];
+			if (owner[e] == o && (to[e] == b || from[e] == b)) {
+				return e;
+			}
+		}
+		return -1;
+	}
+
+	private void link(int area, int e) {
+		int[] list = adj[area];
+		if (list == null) {
+			list = adj[area] = new int[4];
+		} else if (degree[area] == list.length) {
+			list = adj[area] = Arrays.copyOf(list, list.length * 2);
+		}
+		list[degree[area]++] = e;
+	}
+
+	private void unlink(int area, int e) {
+		int[] list = adj[area];
+		int n = degree[area];
+		for (int i = 0; i < n; ++i) {
+			if (list[i] == e) {
+				list[i] = list[n - 1];
+				degree[area] = n - 1;
+				return;
+			}
+		}
+	}
+
+	public boolean createPlayer(String name, String personnummer, String country, String area) {
+		int a = areaId(area, country);
+		if (a < 0 || !countries.contains(country) || personId(country, personnummer) >= 0
+				|| !(PERSONNUMMER.matcher(personnummer).matches() || (personnummer.isEmpty() && country.isEmpty()))) {
+			return false;
+		}
+		newPerson(country, personnummer, a, 1000);
+		return true;
+	}
+
+	public String[] location(String country, String personnummer) {
+		int p = personId(country, personnummer);
+		return p < 0 ? null : new String[] { areaNames.get(location[p]), areaCountries.get(location[p]) };
+	}
+
+	public double budget(String country, String personnummer) {
+		int p = personId(country, personnummer);
+		return p < 0 ? 0.0 : budget[p];
+	}
+
+	public double[] assets(String country, String personnummer) {
+		int p = personId(country, personnummer);
+		if (p < 0) {
+			return new double[2];
+		}
+		return new double[] { hotels[p] * hotelprice + roads[p] * roadprice, hotels[p] * hotelrefund * hotelprice };
+	}
+
+	/* next_moves(): every neighbour once with the cheapest tax, own roads free. */
+	public List<Move> nextMoves(String country, String personnummer) {
+		ArrayList<Move> moves = new ArrayList<Move>();
+		int p = personId(country, personnummer);
+		if (p < 0) {
+			return moves;
+		}
+		int a = location[p];
+		int[] dest = new int[degree[a]];
+		double[] cost = new double[degree[a]];
+		int n = 0;
+		for (int i = 0; i < degree[a]; ++i) {
+			int e = adj[a][i];
+			int d = from[e] == a ? to[e] : from[e];
+			double c = owner[e] == p ? 0.0 : tax[e];
+			int k = 0;
+			while (k < n && dest[k] != d) {
+				++k;
+			}
+			if (k == n) {
+				dest[n] = d;
+				cost[n++] = c;
+			} else if (c < cost[k]) {
+				cost[k] = c;
+			}
+		}
+		for (int k = 0; k < n; ++k) {
+			moves.add(new Move(areaNames.get(dest[k]), areaCountries.get(dest[k]), cost[k]));
+		}
+		return moves;
+	}
+
+	public List<String> properties(String country, String personnummer) {
+		ArrayList<String> l = new ArrayList<String>();
+		int p = personId(country, personnummer);
+		if (p < 0) {
+			return l;
+		}
+		for (int a = 0; a < areaNames.size(); ++a) {
+			for (int i = 0; i < hotelCount[a]; ++i) {
+				if (hotelOwner[a][i] == p) {
+					l.add("Hotel: " + hotelName[a][i] + " in " + areaNames.get(a) + ", " + areaCountries.get(a));
+				}
+			}
+		}
+		for (int e = 0; e < edges; ++e) {
+			if (from[e] >= 0 && owner[e] == p) {
+				l.add("Road: " + areaNames.get(from[e]) + ", " + areaCountries.get(from[e]) + " - " + areaNames.get(to[e]) + ", "
+						+ areaCountries.get(to[e]) + " tax " + RoadGraph.format(tax[e]));
+			}
+		}
+		return l;
+	}
+
+	public double visitBonus(String name, String country) {
+		int a = areaId(name, country);
+		return a < 0 ? 0.0 : visitbonus[a];
+	}
+
+	public boolean buyRoad(String country, String personnummer, String area1, String country1, String area2, String country2) {
+		return addRoad(personId(country, personnummer), area1, country1, area2, country2, roadtax);
+	}
+
+	/* Roads are sold without a refund (delRoads only updates the counts). */
+	public boolean sellRoad(String country, String personnummer, String area1, String country1, String area2, String country2) {
+		int p = personId(country, personnummer);
+		int a = areaId(area1, country1);
+		int b = areaId(area2, country2);
+		if (p < 0 || a < 0 || b < 0) {
+			return false;
+		}
+		int e = findRoad(p, a, b);
+		if (e < 0) {
+			return false;
+		}
+		unlink(a, e);
+		unlink(b, e);
+		from[e] = -1;
+		if (freeCount == free.length) {
+			free = Arrays.copyOf(free, freeCount * 2);
+		}
+		free[freeCount++] = e;
+		if (p != GOVERNMENT) {
+			--roads[p];
+		}
+		return true;
+	}
+
+	/* insHotel: one hotel per owner and city, paid with the hotel price. */
+	public boolean buyHotel(String country, String personnummer, String name, String cityName, String cityCountry) {
+		int p = personId(country, personnummer);
+		int a = areaId(cityName, cityCountry);
+		if (p < 0 || a < 0 || !city[a] || hotel(p, a) >= 0 || budget[p] - hotelprice < 0) {
+			return false;
+		}
+		budget[p] -= hotelprice;
+		++hotels[p];
+		int n = hotelCount[a];
+		if (hotelOwner[a] == null) {
+			hotelOwner[a] = new int[2];
+			hotelName[a] = new String[2];
+		} else if (n == hotelOwner[a].length) {
+			hotelOwner[a] = Arrays.copyOf(hotelOwner[a], n * 2);
+			hotelName[a] = Arrays.copyOf(hotelName[a], n * 2);
+		}
+		hotelOwner[a][n] = p;
+		hotelName[a][n] = name;
+		hotelCount[a] = n + 1;
+		return true;
+	}
+
+	private int hotel(int p, int a) {
+		for (int i = 0; i < hotelCount[a]; ++i) {
+			if (hotelOwner[a][i] == p) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/* delHotel: the owner gets the hotel refund. */
+	public boolean sellHotel(String country, String personnummer, String cityName, String cityCountry) {
+		int p = personId(country, personnummer);
+		int a = areaId(cityName, cityCountry);
+		int i = p < 0 || a < 0 ? -1 : hotel(p, a);
+		if (i < 0) {
+			return false;
+		}
+		int last = --hotelCount[a];
+		hotelOwner[a][i] = hotelOwner[a][last];
+		hotelName[a][i] = hotelName[a][last];
+		hotelName[a][last] = null;
+		--hotels[p];
+		budget[p] += hotelprice * hotelrefund;
+		return true;
+	}
+
+	/* move_player(): road tax to the owners of the cheapest roads unless the
+	 * person or the government owns one, the city visit fee shared by the
+	 * hotel owners, and the visit bonus to the visitor. */
+	public boolean move(String country, String personnummer, String area, String areaCountry) {
+		int p = personId(country, personnummer);
+		if (p < 0) {
+			return false;
+		}
+		int a = location[p];
+		int b = areaId(area, areaCountry);
+		if (b == a) {
+			return true;
+		}
+		if (b < 0) {
+			return false;
+		}
+		boolean road = false;
+		boolean free = false;
+		double cheapest = Double.MAX_VALUE;
+		int[] list = adj[a];
+		for (int i = 0; i < degree[a]; ++i) {
+			int e = list[i];
+			if (to[e] == b || from[e] == b) {
+				road = true;
+				free |= owner[e] == p || owner[e] == GOVERNMENT;
+				cheapest = Math.min(cheapest, tax[e]);
+			}
+		}
+		if (!road) {
+			return false;
+		}
+		double paid = free ? 0.0 : cheapest;
+		int n = hotelCount[b];
+		double fees = n > 0 ? cityvisit : 0.0;
+		if (budget[p] - paid - fees < 0) {
+			return false;
+		}
+		budget[p] += visitbonus[b] - paid - fees;
+		visitbonus[b] = 0.0;
+		location[p] = b;
+		if (!free) {
+			for (int i = 0; i < degree[a]; ++i) {
+				int e = list[i];
+				if ((to[e] == b || from[e] == b) && tax[e] == paid) {
+					budget[owner[e]] += paid;
+				}
+			}
+		}
+		for (int i = 0; i < n; ++i) {
+			budget[hotelOwner[b][i]] += fees / n;
+		}
+		return true;
+	}
+
+	public void setVisitBonus(String name, String country) {
+		int a = areaId(name, country);
+		if (a >= 0 && city[a]) {
+			visitbonus[a] = 1000;
+		}
+	}
+}
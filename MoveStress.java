@@ -0,0 +1,139 @@
+/* Stress test for concurrent moves that pay each other.
+ *
+ * java MoveStress [-pg <bin dir>] [-players n] [-cities n] [-moves n] [-triggers]
+ *
+ * Starts a scratch server (LocalPostgres) with a ring of cities joined by
+ * government roads. Every player owns a hotel in every city, so every
+ * move pays a city visit fee to all players: each move updates every
+ * player's Persons row, the worst case for lock conflicts. Then all
+ * players move around the ring at once, one thread and one transaction
+ * per move each, like turns in parallel games. Reports moves per second,
+ * the latency of a move, failed moves and the retries of Game.retrying
+ * for deadlocks (40P01) and serialization failures (40001); with the
+ * ordered locking of lock_move() there should be no deadlocks at all.
+ * -triggers moves with the updPersons triggers instead of move_player().
+ */
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class MoveStress
+{
+	public static void main(String[] args) throws Exception {
+		String bindir = null;
+		int players = 16;
+		int cities = 8;
+		int moves = 500;
+		boolean triggers = false;
+		for (int i = 0; i < args.length; ++i) {
+			if ("-pg".equals(args[i]) && i + 1 < args.length) {
+				bindir = args[++i];
+			} else if ("-players".equals(args[i]) && i + 1 < args.length) {
+				players = Integer.parseInt(args[++i]);
+			} else if ("-cities".equals(args[i]) && i + 1 < args.length) {
+				cities = Integer.parseInt(args[++i]);
+			} else if ("-moves".equals(args[i]) && i + 1 < args.length) {
+				moves = Integer.parseInt(args[++i]);
+			} else if ("-triggers".equals(args[i])) {
+				triggers = true;
+			}
+		}
+
+		try (LocalPostgres pg = LocalPostgres.start(bindir)) {
+			final Game g = new Game();
+			g.USERNAME = LocalPostgres.USER;
+			g.PASSWORD = "";
+			g.out = new PrintStream(OutputStream.nullOutputStream());
+			g.moveProcedure = !triggers;
+			g.pool = g.connect(pg.config());
+			try {
+				final String country = "Stressland";
+				final String[] ring = new String[cities];
+				final List<Game.Player> bots = new ArrayList<Game.Player>();
+				try (Connection conn = g.pool.getConnection()) {
+					LocalPostgres.createSchema(conn);
+					g.insertGovernment(conn);
+					for (int c = 0; c < cities; ++c) {
+						ring[c] = "Stress" + WorldGenerator.word(c);
+						g.insertCity(conn, ring[c], country, "1000");
+					}
+					for (int c = 0; c < cities; ++c) {
+						g.insertRoad(conn, ring[c], country, ring[(c + 1) % cities], country);
+					}
+					for (int p = 0; p < players; ++p) {
+						Game.Player bot = g.new Player("stress" + p, String.format("%08d-%04d", 19800000 + p, p), country, ring[p % cities]);
+						if (g.createPlayer(conn, bot) != 1) {
+							System.out.println("Could not create " + bot.playername);
+							return;
+						}
+						bots.add(bot);
+					}
+					/* Enough money to pay every fee of the run. */
+					try (PreparedStatement st = conn.prepareStatement("UPDATE Persons SET budget = 1e12 WHERE game_id = ? AND id <> 0")) {
+						st.setInt(1, g.gameId);
+						st.executeUpdate();
+					}
+					for (Game.Player bot : bots) {
+						bot.invalidateBudget();
+						for (String city : ring) {
+							if (g.buyHotel(conn, bot, "Stress Inn", city, country) != 1) {
+								System.out.println("Could not buy a hotel for " + bot.playername);
+								return;
+							}
+						}
+					}
+				}
+
+				final LatencyHistogram latency = new LatencyHistogram();
+				final AtomicLong failed = new AtomicLong();
+				final int count = moves;
+				ExecutorService threads = Executors.newFixedThreadPool(players);
+				List<Future<?>> done = new ArrayList<Future<?>>();
+				long start = System.nanoTime();
+				for (final Game.Player bot : bots) {
+					done.add(threads.submit(() -> {
+						Game session = g.newSession();
+						session.out = g.out;
+						int at = bots.indexOf(bot) % ring.length;
+						for (int m = 0; m < count; ++m) {
+							at = (at + 1) % ring.length;
+							long t = System.nanoTime();
+							try (Connection conn = session.pool.getConnection()) {
+								conn.setAutoCommit(false);
+								if (session.changeLocation(conn, bot, ring[at], country) == 1) {
+									conn.commit();
+								} else {
+									conn.rollback();
+									failed.incrementAndGet();
+									bot.invalidate();
+									at = (at + ring.length - 1) % ring.length;
+								}
+							}
+							latency.record(System.nanoTime() - t);
+						}
+						return null;
+					}));
+				}
+				for (Future<?> f : done) {
+					f.get();
+				}
+				double secs = (System.nanoTime() - start) / 1e9;
+				threads.shutdown();
+				long total = (long) players * moves;
+				System.out.println(players + " players, " + cities + " cities, " + (triggers ? "triggers" : "move_player()") + ": "
+						+ total + " moves in " + String.format("%.2f s, %.0f moves/s", secs, total / secs));
+				System.out.println("move " + latency.summary());
+				System.out.println("failed moves: " + failed.get() + ", retries: deadlock " + Stats.retries("40P01")
+						+ ", serialization " + Stats.retries("40001"));
+			} finally {
+				g.pool.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,462 @@
+/* In-memory copy of the Roads table used to answer next-moves queries.
+ *
+ * Areas and persons are the int ids of the game's KeyTables, as in the
+ * database. Every road is an edge in a set of parallel arrays (from, to,
+ * owner, tax) and every area keeps a growable int array of the edges that
+ * touch it, so listing the moves from an area only touches that area's
+ * roads instead of evaluating the next_moves() query. The graph is loaded
+ * once at game start, reloaded in place by a restore and updated by Game
+ * whenever a road is inserted, bought or sold. Area names are only looked up for the output.
+ */
+import java.io.PrintStream;
+import java.math.BigDecimal;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+public class RoadGraph
+{
+	/* Person id of the government, owner of all roads created by the world file. */
+	static final int GOVERNMENT = KeyTable.GOVERNMENT;
+
+	/* Names of the areas, for the output. */
+	private final KeyTable areas;
+
+	/* Edges; a removed edge has from == -1 and is kept in the free list. */
+	private int[] from = new int[1024];
+	private int[] to = new int[1024];
+	private int[] owner = new int[1024];
+	private double[] tax = new double[1024];
+	private int edges;
+	private int[] free = new int[16];
+	private int freeCount;
+
+	/* Edge ids per area. */
+	private int[][] adj = new int[1024][];
+	private int[] degree = new int[1024];
+
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/* Per-thread scratch space for nextMoves() and the route searches, sized
+	 * to the area count and reused, so a query allocates nothing once the
+	 * arrays are big enough.
+	 */
+	private static class Scratch
+	{
+		int[] mark = new int[0];
+		int[] slot = new int[0];
+		int stamp;
+
+		/* Dijkstra: distance and predecessor per area, valid where
+		 * seen[area] == search; a binary min-heap of (distance, area) with
+		 * lazy deletion, and a per-area done flag (settled == search). */
+		double[] dist = new double[0];
+		int[] prev = new int[0];
+		int[] seen = new int[0];
+		int[] settled = new int[0];
+		int search;
+		double[] heapKey = new double[16];
+		int[] heapArea = new int[16];
+		int heapSize;
+		int[] order = new int[0];
+	}
+
+	private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+		protected Scratch initialValue() {
+			return new Scratch();
+		}
+	};
+
+	public RoadGraph(KeyTable areas) {
+		this.areas = areas;
+	}
+
+	/* Reads all roads of a game from the database. */
+	static RoadGraph load(Connection conn, int game, KeyTable areas) throws SQLException {
+		RoadGraph g = new RoadGraph(areas);
+		String sql = "SELECT fromarea, toarea, owner, roadtax FROM Roads WHERE game_id = ?";
+		try (Stats.Timer timer = Stats.time(sql); PreparedStatement st = conn.prepareStatement(sql)) {
+			st.setInt(1, game);
+			long rows = 0;
+			try (ResultSet rs = st.executeQuery()) {
+				while (rs.next()) {
+					g.addRoad(rs.getInt(1), rs.getInt(2), rs.getInt(3), rs.getDouble(4));
+					++rows;
+				}
+			}
+			timer.done(rows);
+		}
+		return g;
+	}
+
+	/* Replaces the roads with those of a game in the database, e.g. after a
+	 * restore. The graph is shared by the sessions of the game, so it is
+	 * refilled in place: the roads are read first and swapped in under the
+	 * write lock. */
+	void reload(Connection conn, int game) throws SQLException {
+		RoadGraph g = load(conn, game, areas);
+		lock.writeLock().lock();
+		try {
+			from = g.from;
+			to = g.to;
+			owner = g.owner;
+			tax = g.tax;
+			edges = g.edges;
+			free = g.free;
+			freeCount = g.freeCount;
+			adj = g.adj;
+			degree = g.degree;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/* Makes room for the edge list of an area. */
+	private void ensure(int area) {
+		if (area >= adj.length) {
+			int n = Math.max(area + 1, adj.length * 2);
+			adj = Arrays.copyOf(adj, n);
+			degree = Arrays.copyOf(degree, n);
+		}
+	}
+
+	private int degree(int area) {
+		return area >= 0 && area < degree.length ? degree[area] : 0;
+	}
+
+	int areaCount() {
+		return areas.size();
+	}
+
+	int roadCount() {
+		lock.readLock().lock();
+		try {
+			return edges - freeCount;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/* Adds a road between areas a and b owned by person o. */
+	void addRoad(int a, int b, int o, double roadtax) {
+		lock.writeLock().lock();
+		try {
+			ensure(Math.max(a, b));
+			int e;
+			if (freeCount > 0) {
+				e = free[--freeCount];
+			} else {
+				e = edges++;
+				if (e == from.length) {
+					from = Arrays.copyOf(from, e * 2);
+					to = Arrays.copyOf(to, e * 2);
+					owner = Arrays.copyOf(owner, e * 2);
+					tax = Arrays.copyOf(tax, e * 2);
+				}
+			}
+			from[e] = a;
+			to[e] = b;
+			owner[e] = o;
+			tax[e] = roadtax;
+			link(a, e);
+			link(b, e);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private void link(int area, int e) {
+		int[] list = adj[area];
+		if (list == null) {
+			list = adj[area] = new int[4];
+		} else if (degree[area] == list.length) {
+			list = adj[area] = Arrays.copyOf(list, list.length * 2);
+		}
+		list[degree[area]++] = e;
+	}
+
+	private void unlink(int area, int e) {
+		int[] list = adj[area];
+		int n = degree[area];
+		for (int i = 0; i < n; ++i) {
+			if (list[i] == e) {
+				list[i] = list[n - 1];
+				degree[area] = n - 1;
+				return;
+			}
+		}
+	}
+
+	/* Removes the roads between areas a and b, in either direction, owned
+	 * by person o. Returns the number of roads removed.
+	 */
+	int removeRoad(int a, int b, int o) {
+		lock.writeLock().lock();
+		try {
+			int removed = 0;
+			if (degree(a) == 0) {
+				return 0;
+			}
+			int[] list = adj[a];
+			for (int i = degree(a) - 1; i >= 0; --i) {
+				int e = list[i];
+				if (owner[e] == o && ((from[e] == a && to[e] == b) || (from[e] == b && to[e] == a))) {
+					unlink(a, e);
+					unlink(b, e);
+					from[e] = -1;
+					if (freeCount == free.length) {
+						free = Arrays.copyOf(free, freeCount * 2);
+					}
+					free[freeCount++] = e;
+					++removed;
+				}
+			}
+			return removed;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/* Computes the moves from an area for a person: every neighbouring area
+	 * once, with the cheapest tax of the roads leading there and 0 for roads
+	 * the person owns. The result is written to dest/cost, which must have
+	 * room for the area's degree; the number of moves is returned.
+	 */
+	int nextMoves(int person, int area, int[] dest, double[] cost) {
+		Scratch s = scratch.get();
+		int size = adj.length;
+		if (s.mark.length < size) {
+			s.mark = new int[Math.max(size, s.mark.length * 2)];
+			s.slot = new int[s.mark.length];
+			s.stamp = 0;
+		}
+		if (++s.stamp == 0) {
+			Arrays.fill(s.mark, 0);
+			s.stamp = 1;
+		}
+		int n = 0;
+		int[] list = degree(area) > 0 ? adj[area] : null;
+		for (int i = 0; i < degree(area); ++i) {
+			int e = list[i];
+			int d = from[e] == area ? to[e] : from[e];
+			double c = owner[e] == person ? 0.0 : tax[e];
+			if (s.mark[d] != s.stamp) {
+				s.mark[d] = s.stamp;
+				s.slot[d] = n;
+				dest[n] = d;
+				cost[n] = c;
+				++n;
+			} else if (c < cost[s.slot[d]]) {
+				cost[s.slot[d]] = c;
+			}
+		}
+		return n;
+	}
+
+	/* Prints the moves in the same format as Game.getNextMoves.
+	 * Returns the moves as "area,country,cost" strings for verification.
+	 */
+	ArrayList<String> printNextMoves(PrintStream out, int person, int area) {
+		ArrayList<String> moves = new ArrayList<String>();
+		lock.readLock().lock();
+		try {
+			int[] dest = new int[degree(area)];
+			double[] cost = new double[dest.length];
+			int n = nextMoves(person, area, dest, cost);
+			for (int i = 0; i < n; ++i) {
+				String c = format(cost[i]);
+				String name = areas.first(dest[i]);
+				String country = areas.second(dest[i]);
+				out.println("Area: " + name + " Country: " + country + " Cost : " + c);
+				moves.add(name + "," + country + "," + c);
+			}
+			return moves;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/* Cost of the road from one area to the next for a person, with the rule
+	 * of the updPersons trigger: free if the person or the government owns a
+	 * road between them, otherwise the cheapest tax. Parallel roads are
+	 * separate edges, so relaxing all of them picks the cheapest.
+	 */
+	private double cost(int person, int e) {
+		return owner[e] == person || owner[e] == GOVERNMENT ? 0.0 : tax[e];
+	}
+
+	private static void push(Scratch s, double key, int area) {
+		if (s.heapSize == s.heapKey.length) {
+			s.heapKey = Arrays.copyOf(s.heapKey, s.heapSize * 2);
+			s.heapArea = Arrays.copyOf(s.heapArea, s.heapSize * 2);
+		}
+		int i = s.heapSize++;
+		while (i > 0) {
+			int parent = (i - 1) >> 1;
+			if (s.heapKey[parent] <= key) {
+				break;
+			}
+			s.heapKey[i] = s.heapKey[parent];
+			s.heapArea[i] = s.heapArea[parent];
+			i = parent;
+		}
+		s.heapKey[i] = key;
+		s.heapArea[i] = area;
+	}
+
+	/* Removes the smallest entry; its area is left in heapArea[heapSize]. */
+	private static void pop(Scratch s) {
+		int top = s.heapArea[0];
+		double topKey = s.heapKey[0];
+		int n = --s.heapSize;
+		double key = s.heapKey[n];
+		int area = s.heapArea[n];
+		int i = 0;
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= n) {
+				break;
+			}
+			if (child + 1 < n && s.heapKey[child + 1] < s.heapKey[child]) {
+				++child;
+			}
+			if (s.heapKey[child] >= key) {
+				break;
+			}
+			s.heapKey[i] = s.heapKey[child];
+			s.heapArea[i] = s.heapArea[child];
+			i = child;
+		}
+		s.heapKey[i] = key;
+		s.heapArea[i] = area;
+		s.heapKey[n] = topKey;
+		s.heapArea[n] = top;
+	}
+
+	/* Dijkstra from an area for a person. Stops when target is settled
+	 * (target -1 searches everything) or the distance exceeds limit. The
+	 * settled areas are written to s.order in order of distance and their
+	 * number is returned; dist/prev hold the distances and the paths.
+	 */
+	private int search(Scratch s, int person, int start, int target, double limit) {
+		int size = Math.max(adj.length, start + 1);
+		if (s.dist.length < size) {
+			int n = Math.max(size, s.dist.length * 2);
+			s.dist = new double[n];
+			s.prev = new int[n];
+			s.seen = new int[n];
+			s.settled = new int[n];
+			s.order = new int[n];
+			s.search = 0;
+		}
+		if (++s.search == 0) {
+			Arrays.fill(s.seen, 0);
+			Arrays.fill(s.settled, 0);
+			s.search = 1;
+		}
+		int search = s.search;
+		s.heapSize = 0;
+		s.seen[start] = search;
+		s.dist[start] = 0.0;
+		s.prev[start] = -1;
+		push(s, 0.0, start);
+		int count = 0;
+		while (s.heapSize > 0) {
+			pop(s);
+			int a = s.heapArea[s.heapSize];
+			double d = s.heapKey[s.heapSize];
+			if (s.settled[a] == search || d > s.dist[a]) {
+				continue;
+			}
+			if (d > limit) {
+				break;
+			}
+			s.settled[a] = search;
+			s.order[count++] = a;
+			if (a == target) {
+				break;
+			}
+			int[] list = degree(a) > 0 ? adj[a] : null;
+			for (int i = 0; i < degree(a); ++i) {
+				int e = list[i];
+				int b = from[e] == a ? to[e] : from[e];
+				if (s.settled[b] == search) {
+					continue;
+				}
+				double nd = d + cost(person, e);
+				if (s.seen[b] != search || nd < s.dist[b]) {
+					s.seen[b] = search;
+					s.dist[b] = nd;
+					s.prev[b] = a;
+					push(s, nd, b);
+				}
+			}
+		}
+		return count;
+	}
+
+	/* Prints the cheapest route from one area to another for a person, one
+	 * line per hop with the cost of the hop, and the total. Returns the
+	 * total cost, or -1 if there is no route.
+	 */
+	double printRoute(PrintStream out, int person, int a, int b) {
+		lock.readLock().lock();
+		try {
+			if (a < 0 || b < 0) {
+				out.println("No such area.");
+				return -1;
+			}
+			Scratch s = scratch.get();
+			int n = search(s, person, a, b, Double.MAX_VALUE);
+			if (n == 0 || s.order[n - 1] != b) {
+				out.println("There is no route to " + areas.first(b) + " (" + areas.second(b) + ").");
+				return -1;
+			}
+			/* Walk back from the target; the path reuses the order array. */
+			int hops = 0;
+			for (int x = b; x != a; x = s.prev[x]) {
+				s.order[hops++] = x;
+			}
+			for (int i = hops - 1; i >= 0; --i) {
+				int x = s.order[i];
+				out.println("Area: " + areas.first(x) + " Country: " + areas.second(x) + " Cost : " + format(s.dist[x] - s.dist[s.prev[x]]));
+			}
+			out.println("Total cost: " + format(s.dist[b]) + " in " + hops + " moves");
+			return s.dist[b];
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/* Prints the areas a person can reach from an area for at most budget,
+	 * cheapest first, at most limit of them. Returns how many there are.
+	 */
+	int printReachable(PrintStream out, int person, int a, double budget, int limit) {
+		lock.readLock().lock();
+		try {
+			if (a < 0) {
+				out.println("No such area.");
+				return 0;
+			}
+			Scratch s = scratch.get();
+			int n = search(s, person, a, -1, budget);
+			/* order[0] is the start area itself. */
+			for (int i = 1; i < n && i <= limit; ++i) {
+				int x = s.order[i];
+				out.println("Area: " + areas.first(x) + " Country: " + areas.second(x) + " Cost : " + format(s.dist[x]));
+			}
+			if (n - 1 > limit) {
+				out.println("... and " + (n - 1 - limit) + " more");
+			}
+			return n - 1;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/* Formats a tax the way NUMERIC values print (no trailing zeros). */
+	static String format(double v) {
+		return BigDecimal.valueOf(v).stripTrailingZeros().toPlainString();
+	}
+}
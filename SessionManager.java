@@ -0,0 +1,171 @@
+/* Hosts many concurrent games in one JVM.
+ *
+ * Every session plays a game of its own: a copy of the shared game's
+ * world under a new game id (Game.newGame), dropped again when the
+ * session ends, so players of different sessions never meet. A session
+ * owns a GameEngine for its game and one thread that executes the
+ * commands sent to the session in order; only the connection pool is
+ * shared. On a JVM with virtual threads (Java 21+) each
+ * session runs on a virtual thread, so thousands of sessions only cost
+ * a little heap each; older JVMs fall back to a cached pool of platform
+ * threads.
+ *
+ * main() runs a local load test with LoadDriver: it starts a number of
+ * games with bot players that look at their next moves and move along a
+ * random road, and reports throughput and latency per command. The world
+ * must already be loaded into the database configured in config.cfg.
+ */
+import java.lang.reflect.Method;
+import java.sql.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class SessionManager
+{
+	private static final Object CLOSE = new Object();
+
+	private class Session implements Runnable
+	{
+		final long id;
+		final Game game;
+		final GameEngine engine;
+		final BlockingQueue<Object> inbox = new LinkedBlockingQueue<Object>();
+
+		Session(long id, Game game, GameEngine engine) {
+			this.id = id;
+			this.game = game;
+			this.engine = engine;
+		}
+
+		public void run() {
+			try {
+				while (true) {
+					Object o = inbox.take();
+					if (o == CLOSE) {
+						break;
+					}
+					Pending p = (Pending) o;
+					try {
+						p.result.complete(engine.execute(p.command));
+					} catch (RuntimeException e) {
+						p.result.completeExceptionally(e);
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				engine.close();
+				sessions.remove(id);
+				try {
+					game.withConnection(conn -> { game.dropGame(conn); return null; });
+				} catch (SQLException e) {
+					game.out.println(e.getMessage());
+				}
+			}
+		}
+	}
+
+	private static class Pending
+	{
+		final String command;
+		final CompletableFuture<GameEngine.Response> result = new CompletableFuture<GameEngine.Response>();
+
+		Pending(String command) {
+			this.command = command;
+		}
+	}
+
+	private final Game shared;
+	private final int maxrounds;
+	private final ExecutorService threads = newSessionExecutor();
+	private final ConcurrentHashMap<Long, Session> sessions = new ConcurrentHashMap<Long, Session>();
+	private final AtomicLong nextId = new AtomicLong(1);
+
+	/* Sessions play copies of the world of the given game on its pool. */
+	public SessionManager(Game shared, int maxrounds) {
+		this.shared = shared;
+		this.maxrounds = maxrounds;
+	}
+
+	/* One virtual thread per task when the JVM has them. */
+	static ExecutorService newSessionExecutor() {
+		try {
+			Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) m.invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return Executors.newCachedThreadPool(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "game-session");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+	}
+
+	/* Opens a session with a new game and returns its id. */
+	long open() throws SQLException {
+		Game game = shared.newGame();
+		Session s = new Session(nextId.getAndIncrement(), game, new GameEngine(game, maxrounds, true));
+		sessions.put(s.id, s);
+		threads.execute(s);
+		return s.id;
+	}
+
+	/* Queues a command for the session. Commands of one session are executed in order. */
+	CompletableFuture<GameEngine.Response> send(long id, String command) {
+		Pending p = new Pending(command);
+		Session s = sessions.get(id);
+		if (s == null) {
+			p.result.completeExceptionally(new IllegalArgumentException("No such session: " + id));
+		} else {
+			s.inbox.add(p);
+		}
+		return p.result;
+	}
+
+	GameEngine engine(long id) {
+		Session s = sessions.get(id);
+		return s == null ? null : s.engine;
+	}
+
+	/* Ends the session after the commands already queued. */
+	void close(long id) {
+		Session s = sessions.get(id);
+		if (s != null) {
+			s.inbox.add(CLOSE);
+		}
+	}
+
+	int size() {
+		return sessions.size();
+	}
+
+	void shutdown() {
+		for (Session s : sessions.values()) {
+			s.inbox.add(CLOSE);
+		}
+		threads.shutdown();
+	}
+
+	/* Load run: java SessionManager <games> <players per game> <rounds>
+	 * Bots walk around the world in the config.cfg database; LoadDriver
+	 * has more options.
+	 */
+	public static void main(String[] args) throws Exception {
+		LoadDriver d = new LoadDriver();
+		d.games = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+		d.players = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+		d.rounds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+		d.strategy = LoadDriver.Strategy.WALK;
+
+		Game g = new Game();
+		java.util.Properties config = g.readConfig();
+		if (config == null) {
+			return;
+		}
+		g.pool = g.connect(config);
+		g.configure(config);
+		d.run(g, config);
+	}
+}
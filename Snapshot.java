@@ -0,0 +1,410 @@
+/* Binary snapshot of a game: its rows of the world and persons tables
+ * plus the state of the GameEngine (setup flag, round, turn and players).
+ *
+ * File layout (all numbers big-endian ints):
+ *   magic "GSNP", version
+ *   setup, round, turn
+ *   dictionary: count, then per string its UTF-8 length and bytes
+ *   players: count, then name, personnummer, country as dictionary ids
+ *   per table in TABLES order: row count, then every column as rows ints
+ * Every value is an int: text and NUMERIC values (kept as their exact
+ * text) are dictionary ids, INT values, among them the area and person
+ * ids, are stored as they are. Names only appear in Areas and Persons;
+ * the dictionary still shares the countries and the repeated numbers,
+ * and since every column has a fixed width, restore() reads values
+ * straight out of the memory-mapped file. Version 1 snapshots, from
+ * before the tables were keyed by id, cannot be restored.
+ *
+ * The game id is not stored: a snapshot can be restored into any game.
+ * restore() replaces the game's partitions with empty ones (drop_game()
+ * and create_game()), disables their user triggers (they would charge
+ * the budgets again), loads every table straight into its partition with
+ * COPY, or batched INSERTs when the driver has no CopyManager, rebuilds
+ * PersonAssets and turns the triggers back on, all in one transaction.
+ * The other games in the database are not touched.
+ */
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.math.BigDecimal;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+public class Snapshot
+{
+	static final int MAGIC = 0x47534E50;
+	static final int VERSION = 2;
+
+	/* Column types: text, integer, numeric. */
+	private static final char TEXT = 'S';
+	private static final char INT = 'I';
+	private static final char NUMERIC = 'N';
+
+	private static class Table
+	{
+		final String name;
+		final String[] columns;
+		final char[] types;
+
+		Table(String name, String columns, String types) {
+			this.name = name;
+			this.columns = columns.split(",");
+			this.types = types.toCharArray();
+		}
+	}
+
+	/* In foreign key order, so the tables can be loaded one after the other. */
+	private static final Table[] TABLES = {
+		new Table("Countries", "name", "S"),
+		new Table("Areas", "id,country,name,population", "ISSI"),
+		new Table("Towns", "area", "I"),
+		new Table("Cities", "area,visitbonus", "IN"),
+		new Table("Persons", "id,country,personnummer,name,location,budget", "ISSSIN"),
+		new Table("Hotels", "name,city,owner", "SII"),
+		new Table("Roads", "fromarea,toarea,owner,roadtax", "IIIN"),
+	};
+
+	/* Tables with triggers that must not fire during a restore. */
+	private static final String[] TRIGGERED = { "Persons", "Hotels", "Roads" };
+
+	/* The partition of a table holding one game, as named by
+	 * game_partition() in task3.sql. */
+	static String partition(String table, int game) {
+		return table.toLowerCase() + "_g" + game;
+	}
+
+	/* Engine state stored with the tables. */
+	static class State
+	{
+		boolean setup;
+		int round;
+		int turn;
+		final ArrayList<String[]> players = new ArrayList<String[]>();
+	}
+
+	private final HashMap<String, Integer> ids = new HashMap<String, Integer>();
+	private final ArrayList<String> dictionary = new ArrayList<String>();
+
+	private int id(String s) {
+		Integer id = ids.get(s);
+		if (id == null) {
+			id = dictionary.size();
+			ids.put(s, id);
+			dictionary.add(s);
+		}
+		return id;
+	}
+
+	/* Writes the game's rows as seen by one consistent read, and the state,
+	 * to file. Returns the number of rows written.
+	 */
+	static long write(Game game, final State state, String file) throws SQLException, IOException {
+		final Snapshot s = new Snapshot();
+		final int[][][] columns = new int[TABLES.length][][];
+		game.withRetriedConnection(conn -> {
+			conn.setAutoCommit(false);
+			conn.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+			try {
+				for (int t = 0; t < TABLES.length; ++t) {
+					columns[t] = s.read(conn, TABLES[t], game.gameId);
+				}
+			} finally {
+				conn.rollback();
+				conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+				conn.setAutoCommit(true);
+			}
+			return null;
+		});
+		int[] players = new int[state.players.size() * 3];
+		for (int i = 0; i < state.players.size(); ++i) {
+			for (int k = 0; k < 3; ++k) {
+				players[i * 3 + k] = s.id(state.players.get(i)[k]);
+			}
+		}
+
+		long rows = 0;
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(state.setup ? 1 : 0);
+			out.writeInt(state.round);
+			out.writeInt(state.turn);
+			out.writeInt(s.dictionary.size());
+			for (String d : s.dictionary) {
+				byte[] b = d.getBytes(StandardCharsets.UTF_8);
+				out.writeInt(b.length);
+				out.write(b);
+			}
+			out.writeInt(state.players.size());
+			for (int v : players) {
+				out.writeInt(v);
+			}
+			for (int t = 0; t < TABLES.length; ++t) {
+				int n = columns[t].length == 0 ? 0 : columns[t][0].length;
+				out.writeInt(n);
+				for (int[] column : columns[t]) {
+					for (int v : column) {
+						out.writeInt(v);
+					}
+				}
+				rows += n;
+			}
+		}
+		return rows;
+	}
+
+	private int[][] read(Connection conn, Table table, int game) throws SQLException {
+		int[][] columns = new int[table.columns.length][1024];
+		int n = 0;
+		String sql = "SELECT " + String.join(", ", table.columns) + " FROM " + table.name + " WHERE game_id = ?";
+		try (Stats.Timer timer = Stats.time(sql); PreparedStatement st = conn.prepareStatement(sql)) {
+			st.setFetchSize(10000);
+			st.setInt(1, game);
+			try (ResultSet rs = st.executeQuery()) {
+				while (rs.next()) {
+					if (n == columns[0].length) {
+						for (int c = 0; c < columns.length; ++c) {
+							columns[c] = Arrays.copyOf(columns[c], n * 2);
+						}
+					}
+					for (int c = 0; c < columns.length; ++c) {
+						columns[c][n] = table.types[c] == INT ? rs.getInt(c + 1) : id(rs.getString(c + 1));
+					}
+					++n;
+				}
+			}
+			timer.done(n);
+		}
+		for (int c = 0; c < columns.length; ++c) {
+			columns[c] = Arrays.copyOf(columns[c], n);
+		}
+		return columns;
+	}
+
+	/* Replaces the game's rows with the snapshot in file and returns its state. */
+	static State restore(Game game, String file) throws SQLException, IOException {
+		Path path = Paths.get(file);
+		try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+			if (ch.size() > Integer.MAX_VALUE) {
+				throw new IOException("Snapshot too large: " + file);
+			}
+			final MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+			if (buf.getInt() != MAGIC) {
+				throw new IOException(file + " is not a game snapshot");
+			}
+			int version = buf.getInt();
+			if (version != VERSION) {
+				throw new IOException("Unsupported snapshot version " + version);
+			}
+			final State state = new State();
+			state.setup = buf.getInt() != 0;
+			state.round = buf.getInt();
+			state.turn = buf.getInt();
+			final String[] dict = new String[buf.getInt()];
+			byte[] bytes = new byte[256];
+			for (int i = 0; i < dict.length; ++i) {
+				int len = buf.getInt();
+				if (len > bytes.length) {
+					bytes = new byte[Math.max(len, bytes.length * 2)];
+				}
+				buf.get(bytes, 0, len);
+				dict[i] = new String(bytes, 0, len, StandardCharsets.UTF_8);
+			}
+			int players = buf.getInt();
+			for (int i = 0; i < players; ++i) {
+				state.players.add(new String[] { dict[buf.getInt()], dict[buf.getInt()], dict[buf.getInt()] });
+			}
+			/* Columns are read in place: table t, column c, row r is at
+			 * offset[t] + 4 * (c * rows[t] + r). */
+			final int[] rows = new int[TABLES.length];
+			final int[] offset = new int[TABLES.length];
+			for (int t = 0; t < TABLES.length; ++t) {
+				rows[t] = buf.getInt();
+				offset[t] = buf.position();
+				buf.position(offset[t] + 4 * rows[t] * TABLES[t].columns.length);
+			}
+
+			game.withConnection(conn -> {
+				conn.setAutoCommit(false);
+				int g = game.gameId;
+				try (Statement st = conn.createStatement()) {
+					/* Fresh partitions instead of deleting the old rows. */
+					execute(st, "SELECT drop_game(" + g + ")");
+					execute(st, "SELECT create_game(" + g + ")");
+					for (String table : TRIGGERED) {
+						st.execute("ALTER TABLE " + partition(table, g) + " DISABLE TRIGGER USER");
+					}
+					for (int t = 0; t < TABLES.length; ++t) {
+						load(conn, TABLES[t], g, buf, offset[t], rows[t], dict);
+					}
+					execute(st, "SELECT rebuild_person_assets(" + g + ")");
+					for (String table : TRIGGERED) {
+						st.execute("ALTER TABLE " + partition(table, g) + " ENABLE TRIGGER USER");
+					}
+					conn.commit();
+				} catch (SQLException e) {
+					conn.rollback();
+					throw e;
+				} finally {
+					conn.setAutoCommit(true);
+				}
+				return null;
+			});
+			return state;
+		}
+	}
+
+	/* Runs one statement of a restore and records it in Stats. */
+	private static void execute(Statement st, String sql) throws SQLException {
+		try (Stats.Timer timer = Stats.time(sql)) {
+			st.execute(sql);
+			timer.done(0);
+		}
+	}
+
+	/* Rows go straight into the game's partition of the table. */
+	private static void load(Connection conn, Table table, int game, MappedByteBuffer buf, int offset, int rows, String[] dict) throws SQLException {
+		if (rows == 0) {
+			return;
+		}
+		String target = partition(table.name, game) + " (game_id, " + String.join(", ", table.columns) + ")";
+		Object copyAPI = copyManager(conn);
+		if (copyAPI != null) {
+			try (Stats.Timer timer = Stats.time("COPY " + target + " FROM STDIN")) {
+				copy(copyAPI, table, target, game, buf, offset, rows, dict);
+				timer.done(rows);
+			}
+			return;
+		}
+		StringBuilder sql = new StringBuilder("INSERT INTO " + target + " VALUES (?");
+		for (int c = 0; c < table.columns.length; ++c) {
+			sql.append(", ?");
+		}
+		sql.append(")");
+		try (Stats.Timer timer = Stats.time(sql.toString()); PreparedStatement st = conn.prepareStatement(sql.toString())) {
+			st.setInt(1, game);
+			for (int r = 0; r < rows; ++r) {
+				for (int c = 0; c < table.columns.length; ++c) {
+					int v = buf.getInt(offset + 4 * (c * rows + r));
+					if (table.types[c] == INT) {
+						st.setInt(c + 2, v);
+					} else if (table.types[c] == NUMERIC) {
+						st.setBigDecimal(c + 2, new BigDecimal(dict[v]));
+					} else {
+						st.setString(c + 2, dict[v]);
+					}
+				}
+				st.addBatch();
+				if ((r + 1) % 1000 == 0) {
+					st.executeBatch();
+				}
+			}
+			st.executeBatch();
+			timer.done(rows);
+		}
+	}
+
+	/* The driver's CopyManager (PGConnection.getCopyAPI()), or null. Looked up
+	 * by reflection because the driver is only on the runtime class path.
+	 */
+	private static Object copyManager(Connection conn) {
+		try {
+			Class<?> pg = Class.forName("org.postgresql.PGConnection");
+			Object pgconn = conn.unwrap(pg);
+			return pg.getMethod("getCopyAPI").invoke(pgconn);
+		} catch (ReflectiveOperationException | SQLException e) {
+			return null;
+		}
+	}
+
+	/* Streams the table to COPY ... FROM STDIN in text format. */
+	private static void copy(Object copyAPI, Table table, String target, int game, MappedByteBuffer buf, int offset, int rows, String[] dict) throws SQLException {
+		Object copyIn = null;
+		try {
+			Method copyInMethod = copyAPI.getClass().getMethod("copyIn", String.class);
+			Class<?> copyInClass = Class.forName("org.postgresql.copy.CopyIn");
+			Method write = copyInClass.getMethod("writeToCopy", byte[].class, int.class, int.class);
+			copyIn = copyInMethod.invoke(copyAPI, "COPY " + target + " FROM STDIN");
+			StringBuilder line = new StringBuilder();
+			for (int r = 0; r < rows; ++r) {
+				line.append(game);
+				for (int c = 0; c < table.columns.length; ++c) {
+					int v = buf.getInt(offset + 4 * (c * rows + r));
+					line.append('\t');
+					if (table.types[c] == INT) {
+						line.append(v);
+					} else {
+						escape(line, dict[v]);
+					}
+				}
+				line.append('\n');
+				if (line.length() > 1 << 16 || r == rows - 1) {
+					byte[] b = line.toString().getBytes(StandardCharsets.UTF_8);
+					write.invoke(copyIn, b, 0, b.length);
+					line.setLength(0);
+				}
+			}
+			copyInClass.getMethod("endCopy").invoke(copyIn);
+			copyIn = null;
+		} catch (InvocationTargetException e) {
+			if (e.getCause() instanceof SQLException) {
+				throw (SQLException) e.getCause();
+			}
+			throw new SQLException("COPY into " + table.name + " failed", e.getCause());
+		} catch (ReflectiveOperationException e) {
+			throw new SQLException("COPY into " + table.name + " failed", e);
+		} finally {
+			if (copyIn != null) {
+				try {
+					copyIn.getClass().getMethod("cancelCopy").invoke(copyIn);
+				} catch (ReflectiveOperationException e) {
+					// The copy failed already.
+				}
+			}
+		}
+	}
+
+	/* Escapes a value for COPY text format. */
+	private static void escape(StringBuilder b, String s) {
+		for (int i = 0; i < s.length(); ++i) {
+			char ch = s.charAt(i);
+			switch (ch) {
+			case '\\':
+				b.append("\\\\");
+				break;
+			case '\t':
+				b.append("\\t");
+				break;
+			case '\n':
+				b.append("\\n");
+				break;
+			case '\r':
+				b.append("\\r");
+				break;
+			default:
+				b.append(ch);
+			}
+		}
+	}
+
+	/* Player list of an engine for State. */
+	static List<String[]> players(List<Game.Player> players) {
+		ArrayList<String[]> l = new ArrayList<String[]>();
+		for (Game.Player p : players) {
+			l.add(new String[] { p.playername, p.personnummer, p.country });
+		}
+		return l;
+	}
+}
@@ -0,0 +1,168 @@
+/* GameStore on the database, through Game's JDBC methods.
+ *
+ * All operations run on one connection. With autocommit off Game sets a
+ * savepoint before every action, so a refused action is rolled back and
+ * the transaction goes on, as in a turn; the caller commits or rolls back.
+ * Reads go to the database every time, the player caches are not trusted.
+ */
+import java.math.BigDecimal;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+public class SqlStore implements GameStore
+{
+	private final Game game;
+	private final Connection conn;
+	private final HashMap<String, Game.Player> players = new HashMap<String, Game.Player>();
+
+	SqlStore(Game game, Connection conn) {
+		this.game = game;
+		this.conn = conn;
+	}
+
+	private Game.Player player(String country, String personnummer) {
+		return players.computeIfAbsent(country + '\u0000' + personnummer, k -> game.new Player(null, personnummer, country, null));
+	}
+
+	/* Runs a world file insert like play() does: a failure rolls back the whole line. */
+	private boolean line(Game.Action<Void> insert) throws SQLException {
+		Savepoint sp = game.savepoint(conn);
+		try {
+			insert.run(conn);
+			return true;
+		} catch (SQLException e) {
+			game.rollback(conn, sp);
+			return false;
+		}
+	}
+
+	public boolean addTown(String name, String country, int population) throws SQLException {
+		return line(c -> { game.insertTown(c, name, country, Integer.toString(population)); return null; });
+	}
+
+	public boolean addCity(String name, String country, int population) throws SQLException {
+		return line(c -> { game.insertCity(c, name, country, Integer.toString(population)); return null; });
+	}
+
+	public boolean addRoad(String area1, String country1, String area2, String country2) throws SQLException {
+		return game.insertRoad(conn, area1, country1, area2, country2) == 1;
+	}
+
+	public boolean createPlayer(String name, String personnummer, String country, String area) throws SQLException {
+		Game.Player p = game.new Player(name, personnummer, country, area);
+		if (game.createPlayer(conn, p) != 1) {
+			return false;
+		}
+		players.put(country + '\u0000' + personnummer, p);
+		return true;
+	}
+
+	public String[] location(String country, String personnummer) throws SQLException {
+		Game.Player p = player(country, personnummer);
+		try {
+			game.refreshPlayer(conn, p);
+		} catch (SQLException e) {
+			return null;
+		}
+		return new String[] { p.locationArea(), p.locationCountry() };
+	}
+
+	public double budget(String country, String personnummer) throws SQLException {
+		Game.Player p = player(country, personnummer);
+		game.refreshPlayer(conn, p);
+		return p.budget.doubleValue();
+	}
+
+	public double[] assets(String country, String personnummer) throws SQLException {
+		PreparedStatement st = game.prepare(conn, "SELECT assets, reclaimable FROM PersonAssets WHERE game_id = ? AND person = ?");
+		st.setInt(1, game.gameId);
+		st.setInt(2, game.personKeys.id(country, personnummer));
+		try (ResultSet rs = game.query(st)) {
+			if (!rs.next()) {
+				game.rows(st, 0);
+				return new double[2];
+			}
+			game.rows(st, 1);
+			return new double[] { rs.getDouble(1), rs.getDouble(2) };
+		}
+	}
+
+	public List<Move> nextMoves(String country, String personnummer) throws SQLException {
+		Game.Player p = player(country, personnummer);
+		game.refreshPlayer(conn, p);
+		ArrayList<Move> moves = new ArrayList<Move>();
+		for (String[] m : game.queryNextMoves(conn, p, p.location)) {
+			moves.add(new Move(m[0], m[1], new BigDecimal(m[2]).doubleValue()));
+		}
+		return moves;
+	}
+
+	public List<String> properties(String country, String personnummer) throws SQLException {
+		ArrayList<String> l = new ArrayList<String>();
+		int person = game.personKeys.id(country, personnummer);
+		PreparedStatement st = game.prepare(conn, "SELECT name, city FROM Hotels WHERE game_id = ? AND owner = ?");
+		st.setInt(1, game.gameId);
+		st.setInt(2, person);
+		try (ResultSet rs = game.query(st)) {
+			while (rs.next()) {
+				int c = rs.getInt(2);
+				l.add("Hotel: " + rs.getString(1) + " in " + game.areaKeys.first(c) + ", " + game.areaKeys.second(c));
+			}
+			game.rows(st, l.size());
+		}
+		int hotels = l.size();
+		st = game.prepare(conn, "SELECT fromarea, toarea, roadtax FROM Roads WHERE game_id = ? AND owner = ?");
+		st.setInt(1, game.gameId);
+		st.setInt(2, person);
+		try (ResultSet rs = game.query(st)) {
+			while (rs.next()) {
+				int a = rs.getInt(1);
+				int b = rs.getInt(2);
+				l.add("Road: " + game.areaKeys.first(a) + ", " + game.areaKeys.second(a) + " - " + game.areaKeys.first(b) + ", " + game.areaKeys.second(b)
+						+ " tax " + RoadGraph.format(rs.getDouble(3)));
+			}
+			game.rows(st, l.size() - hotels);
+		}
+		return l;
+	}
+
+	public double visitBonus(String city, String country) throws SQLException {
+		PreparedStatement st = game.prepare(conn, "SELECT visitbonus FROM Cities WHERE game_id = ? AND area = ?");
+		st.setInt(1, game.gameId);
+		st.setInt(2, game.areaKeys.id(city, country));
+		try (ResultSet rs = game.query(st)) {
+			boolean found = rs.next();
+			game.rows(st, found ? 1 : 0);
+			return found ? rs.getDouble(1) : 0.0;
+		}
+	}
+
+	public boolean buyRoad(String country, String personnummer, String area1, String country1, String area2, String country2) throws SQLException {
+		return game.buyRoad(conn, player(country, personnummer), area1, country1, area2, country2) == 1;
+	}
+
+	public boolean sellRoad(String country, String personnummer, String area1, String country1, String area2, String country2) throws SQLException {
+		return game.sellRoad(conn, player(country, personnummer), area1, country1, area2, country2) == 1;
+	}
+
+	public boolean buyHotel(String country, String personnummer, String name, String city, String cityCountry) throws SQLException {
+		return game.buyHotel(conn, player(country, personnummer), name, city, cityCountry) == 1;
+	}
+
+	public boolean sellHotel(String country, String personnummer, String city, String cityCountry) throws SQLException {
+		return game.sellHotel(conn, player(country, personnummer), city, cityCountry) == 1;
+	}
+
+	public boolean move(String country, String personnummer, String area, String areaCountry) throws SQLException {
+		return game.changeLocation(conn, player(country, personnummer), area, areaCountry) == 1;
+	}
+
+	public void setVisitBonus(String city, String country) throws SQLException {
+		int area = game.areaKeys.id(city, country);
+		if (area >= 0) {
+			game.setVisitBonus(conn, area);
+		}
+	}
+}
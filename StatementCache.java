@@ -0,0 +1,130 @@
+/* Keyed cache of prepared statements, one cache per connection.
+ *
+ * Statements are prepared once per connection and SQL string and are
+ * kept open for as long as the connection lives, so the server only
+ * parses and plans them once (together with the prepareThreshold
+ * connection property the driver switches to named server-side
+ * statements on first use). Callers must not close statements they get
+ * from the cache; result sets are still theirs to close.
+ */
+import java.sql.*;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+public class StatementCache
+{
+	private static final Map<Connection, StatementCache> caches = new WeakHashMap<Connection, StatementCache>();
+
+	/* The Stats of every open cached statement, keyed by the statement, so
+	 * that Game.query() and update() find them for any statement. */
+	private static final ConcurrentHashMap<PreparedStatement, Stats.Execution> executions
+			= new ConcurrentHashMap<PreparedStatement, Stats.Execution>();
+
+	/* Totals over all connections. */
+	static final LongAdder totalHits = new LongAdder();
+	static final LongAdder totalMisses = new LongAdder();
+
+	private final Connection conn;
+	private final HashMap<String, PreparedStatement> statements = new HashMap<String, PreparedStatement>();
+	private long hits;
+	private long misses;
+
+	private StatementCache(Connection conn) {
+		this.conn = conn;
+	}
+
+	/* Returns the cache belonging to the given connection. */
+	static StatementCache of(Connection conn) {
+		synchronized (caches) {
+			StatementCache c = caches.get(conn);
+			if (c == null) {
+				c = new StatementCache(conn);
+				caches.put(conn, c);
+			}
+			return c;
+		}
+	}
+
+	/* Closes and forgets all statements of the given connection. */
+	static void release(Connection conn) {
+		StatementCache c;
+		synchronized (caches) {
+			c = caches.remove(conn);
+		}
+		if (c != null) {
+			c.close();
+		}
+	}
+
+	/* Returns the prepared statement for sql, preparing it on first use.
+	 * Parameters left over from the previous use are cleared.
+	 */
+	synchronized PreparedStatement get(String sql) throws SQLException {
+		return lookup(sql, false);
+	}
+
+	/* Same as get() for a {call ...} escape, prepared with prepareCall. */
+	synchronized CallableStatement call(String sql) throws SQLException {
+		return (CallableStatement) lookup(sql, true);
+	}
+
+	private PreparedStatement lookup(String sql, boolean callable) throws SQLException {
+		PreparedStatement st = statements.get(sql);
+		if (st != null && !st.isClosed()) {
+			++hits;
+			totalHits.increment();
+			st.clearParameters();
+			return st;
+		}
+		if (st != null) {
+			executions.remove(st);
+		}
+		++misses;
+		totalMisses.increment();
+		st = callable ? conn.prepareCall(sql) : conn.prepareStatement(sql);
+		statements.put(sql, st);
+		executions.put(st, new Stats.Execution(sql));
+		return st;
+	}
+
+	/* The Stats of a statement from the cache, or null with STATS=off or
+	 * for a statement that is not from the cache. */
+	static Stats.Execution execution(PreparedStatement st) {
+		return Stats.enabled ? executions.get(st) : null;
+	}
+
+	synchronized long hits() {
+		return hits;
+	}
+
+	synchronized long misses() {
+		return misses;
+	}
+
+	synchronized int size() {
+		return statements.size();
+	}
+
+	synchronized void close() {
+		for (PreparedStatement st : statements.values()) {
+			executions.remove(st);
+			try {
+				st.close();
+			} catch (SQLException e) {
+				// The connection is most likely gone already.
+			}
+		}
+		statements.clear();
+	}
+
+	/* Summary line for all caches, e.g. for the end of a game. */
+	static String summary() {
+		long h = totalHits.sum();
+		long m = totalMisses.sum();
+		return "Statement cache: " + h + " hits, " + m + " misses ("
+				+ String.format("%.1f", h + m == 0 ? 0.0 : 100.0 * h / (h + m)) + "% hit rate)";
+	}
+}
@@ -0,0 +1,355 @@
+/* Latency and row counters per game command and per SQL statement.
+ *
+ * GameEngine records every command it executes, play() the time spent in
+ * readLine, and Game.query()/update() every execution of a statement from
+ * prepare(), whose metric StatementCache keeps next to the statement; the
+ * loads and snapshots that run their SQL outside the statement cache time
+ * it with a Timer. Queries report the rows their callers read with
+ * Game.rows(), the rest count the rows they change or load. Counters are LongAdders and LatencyHistograms,
+ * so recording from many sessions at once does not contend on a lock.
+ * Every command and statement execution is also emitted as a JFR event
+ * (game.Command, game.Sql) for use with java -XX:StartFlightRecording;
+ * the events are only built while JFR records them.
+ *
+ * The numbers are printed by the stats command and, with STATS_FILE set
+ * in config.cfg, written to that file every STATS_INTERVAL seconds.
+ * STATS=off turns the SQL timing off. Retries of deadlocked actions are
+ * counted per SQLSTATE, and the reads of TurnCache by outcome.
+ */
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+public class Stats
+{
+	static volatile boolean enabled = true;
+
+	static class Metric
+	{
+		final String name;
+		final LatencyHistogram latency = new LatencyHistogram();
+		final LongAdder rows = new LongAdder();
+		final LongAdder errors = new LongAdder();
+
+		Metric(String name) {
+			this.name = name;
+		}
+
+		/* Total time spent, in nanoseconds. */
+		double total() {
+			return latency.mean() * latency.count();
+		}
+	}
+
+	@Name("game.Command")
+	@Label("Game Command")
+	@Category("Game")
+	static class CommandEvent extends Event
+	{
+		@Label("Command")
+		String command;
+		@Label("Player")
+		String player;
+		@Label("Failed")
+		boolean failed;
+	}
+
+	@Name("game.Sql")
+	@Label("SQL Statement")
+	@Category("Game")
+	static class SqlEvent extends Event
+	{
+		@Label("SQL")
+		String sql;
+		@Label("Rows")
+		long rows;
+		@Label("Failed")
+		boolean failed;
+	}
+
+	private static final EventType COMMAND_EVENT = EventType.getEventType(CommandEvent.class);
+	private static final EventType SQL_EVENT = EventType.getEventType(SqlEvent.class);
+
+	private static final ConcurrentHashMap<String, Metric> commands = new ConcurrentHashMap<String, Metric>();
+	private static final ConcurrentHashMap<String, Metric> statements = new ConcurrentHashMap<String, Metric>();
+	private static ScheduledExecutorService dumper;
+
+	/* Outcomes of TurnCache reads: hit, miss, wasted, failed. */
+	private static final ConcurrentHashMap<String, LongAdder> prefetches = new ConcurrentHashMap<String, LongAdder>();
+
+	/* Retried actions (Game.retrying) per SQLSTATE. */
+	private static final ConcurrentHashMap<String, LongAdder> retries = new ConcurrentHashMap<String, LongAdder>();
+
+	static Metric command(String name) {
+		return commands.computeIfAbsent(name, Metric::new);
+	}
+
+	static Metric sql(String sql) {
+		return statements.computeIfAbsent(sql, Metric::new);
+	}
+
+	/* A started game.Command event, or null when JFR does not record it;
+	 * taken when the command starts and handed to command(). */
+	static CommandEvent beginCommand() {
+		if (!COMMAND_EVENT.isEnabled()) {
+			return null;
+		}
+		CommandEvent e = new CommandEvent();
+		e.begin();
+		return e;
+	}
+
+	/* Records a command that started at start (System.nanoTime) and
+	 * commits its event, if any. */
+	static void command(String name, String player, long start, CommandEvent e, boolean failed) {
+		long nanos = System.nanoTime() - start;
+		Metric m = command(name);
+		m.latency.record(nanos);
+		if (failed) {
+			m.errors.increment();
+		}
+		if (e != null && e.shouldCommit()) {
+			e.command = name;
+			e.player = player;
+			e.failed = failed;
+			e.commit();
+		}
+	}
+
+	static void retry(String sqlState) {
+		retries.computeIfAbsent(sqlState, k -> new LongAdder()).increment();
+	}
+
+	/* Number of retries for the SQLSTATE. */
+	static long retries(String sqlState) {
+		LongAdder n = retries.get(sqlState);
+		return n == null ? 0 : n.sum();
+	}
+
+	static void prefetch(String outcome) {
+		prefetches.computeIfAbsent(outcome, k -> new LongAdder()).increment();
+	}
+
+	/* Number of TurnCache reads with the outcome. */
+	static long prefetches(String outcome) {
+		LongAdder n = prefetches.get(outcome);
+		return n == null ? 0 : n.sum();
+	}
+
+	/* A started game.Sql event, or null when JFR does not record the event,
+	 * so that no event is built for nothing. */
+	static SqlEvent begin() {
+		if (!SQL_EVENT.isEnabled()) {
+			return null;
+		}
+		SqlEvent e = new SqlEvent();
+		e.begin();
+		return e;
+	}
+
+	/* Records an execution of the metric's statement that started at start
+	 * (System.nanoTime) and commits its event, if any. */
+	static void executed(Metric m, SqlEvent e, long start, long rows, boolean failed) {
+		m.latency.record(System.nanoTime() - start);
+		if (failed) {
+			m.errors.increment();
+		} else {
+			m.rows.add(rows);
+		}
+		if (e != null && e.shouldCommit()) {
+			e.sql = m.name;
+			e.rows = rows;
+			e.failed = failed;
+			e.commit();
+		}
+	}
+
+	/* The metric of one statement of the StatementCache, kept next to the
+	 * statement, and the event of its last query, which waits for the rows
+	 * the caller reads. A statement is only used by one thread at a time. */
+	static class Execution
+	{
+		final Metric metric;
+		private SqlEvent pending;
+
+		Execution(String sql) {
+			metric = sql(sql);
+		}
+
+		/* Commits the event of a query whose rows were not reported. */
+		private void flush() {
+			SqlEvent e = pending;
+			pending = null;
+			if (e != null && e.shouldCommit()) {
+				e.sql = metric.name;
+				e.commit();
+			}
+		}
+	}
+
+	/* Runs a query of the statement cache and records it, unless x is null.
+	 * Its latency is the time until executeQuery returns; the rows follow
+	 * with rows() once the caller has read them. */
+	static ResultSet query(PreparedStatement st, Execution x) throws SQLException {
+		if (x == null) {
+			return st.executeQuery();
+		}
+		x.flush();
+		SqlEvent e = begin();
+		long start = System.nanoTime();
+		try {
+			ResultSet rs = st.executeQuery();
+			x.metric.latency.record(System.nanoTime() - start);
+			if (e != null) {
+				e.end();
+				x.pending = e;
+			}
+			return rs;
+		} catch (SQLException ex) {
+			executed(x.metric, e, start, 0, true);
+			throw ex;
+		}
+	}
+
+	/* Records the rows read from the result of the last query(). */
+	static void rows(Execution x, long rows) {
+		if (x == null) {
+			return;
+		}
+		x.metric.rows.add(rows);
+		SqlEvent e = x.pending;
+		x.pending = null;
+		if (e != null && e.shouldCommit()) {
+			e.sql = x.metric.name;
+			e.rows = rows;
+			e.commit();
+		}
+	}
+
+	/* Same as query() for executeUpdate; counts the rows changed. */
+	static int update(PreparedStatement st, Execution x) throws SQLException {
+		if (x == null) {
+			return st.executeUpdate();
+		}
+		Metric m = x.metric;
+		SqlEvent e = begin();
+		long start = System.nanoTime();
+		try {
+			int rows = st.executeUpdate();
+			executed(m, e, start, rows, false);
+			return rows;
+		} catch (SQLException ex) {
+			executed(m, e, start, 0, true);
+			throw ex;
+		}
+	}
+
+	/* Times SQL run outside the statement cache: the loads of RoadGraph,
+	 * CityList and KeyTable, and snapshots. Call done() with the rows read
+	 * or written once it worked; closing it without is counted as an error.
+	 */
+	static Timer time(String sql) {
+		return new Timer(enabled ? sql(sql) : null);
+	}
+
+	static class Timer implements AutoCloseable
+	{
+		private final Metric metric;
+		private final SqlEvent event;
+		private final long start = System.nanoTime();
+		private long rows = -1;
+
+		Timer(Metric metric) {
+			this.metric = metric;
+			this.event = metric == null ? null : begin();
+		}
+
+		void done(long rows) {
+			this.rows = rows;
+		}
+
+		public void close() {
+			if (metric != null) {
+				executed(metric, event, start, Math.max(rows, 0), rows < 0);
+			}
+		}
+	}
+
+	/* Prints one table of metrics, the most expensive first. */
+	private static void table(StringBuilder b, String title, Collection<Metric> metrics) {
+		ArrayList<Metric> sorted = new ArrayList<Metric>(metrics);
+		sorted.sort((x, y) -> Double.compare(y.total(), x.total()));
+		b.append(String.format("%-60s %9s %9s %9s %9s %9s %10s %7s%n", title, "count", "mean us", "p50 us", "p99 us", "p999 us", "rows", "errors"));
+		for (Metric m : sorted) {
+			LatencyHistogram h = m.latency;
+			String name = m.name.replaceAll("\\s+", " ");
+			if (name.length() > 60) {
+				name = name.substring(0, 57) + "...";
+			}
+			b.append(String.format("%-60s %9d %9.1f %9.1f %9.1f %9.1f %10d %7d%n", name, h.count(), h.mean() / 1e3,
+					h.percentile(50) / 1e3, h.percentile(99) / 1e3, h.percentile(99.9) / 1e3, m.rows.sum(), m.errors.sum()));
+		}
+	}
+
+	static String report() {
+		StringBuilder b = new StringBuilder();
+		table(b, "command", commands.values());
+		b.append(String.format("%n"));
+		table(b, "sql", statements.values());
+		if (!retries.isEmpty()) {
+			b.append(String.format("%nretries:"));
+			for (String state : retries.keySet()) {
+				b.append(" ").append(state).append("=").append(retries.get(state).sum());
+			}
+			b.append(String.format("%n"));
+		}
+		if (!prefetches.isEmpty()) {
+			long hits = prefetches("hit");
+			long reads = hits + prefetches("miss");
+			b.append(String.format("%nprefetch: hit=%d miss=%d (hit rate %.1f%%) wasted=%d failed=%d%n", hits, prefetches("miss"),
+					reads == 0 ? 0.0 : 100.0 * hits / reads, prefetches("wasted"), prefetches("failed")));
+		}
+		return b.toString();
+	}
+
+	static void reset() {
+		commands.clear();
+		statements.clear();
+		retries.clear();
+		prefetches.clear();
+	}
+
+	/* Writes the report to file every interval seconds until the JVM exits. */
+	static synchronized void startDump(final String file, int interval) {
+		if (dumper != null) {
+			return;
+		}
+		dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "stats-dump");
+			t.setDaemon(true);
+			return t;
+		});
+		dumper.scheduleAtFixedRate(() -> {
+			try (PrintWriter w = new PrintWriter(new FileWriter(file))) {
+				w.println("Statistics at " + new Date());
+				w.print(report());
+			} catch (IOException e) {
+				System.err.println("stats dump: " + e.getMessage());
+			}
+		}, interval, interval, TimeUnit.SECONDS);
+	}
+}
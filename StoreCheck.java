@@ -0,0 +1,285 @@
+/* Differential check of SqlStore against MemoryStore, and bot runs on
+ * MemoryStore alone.
+ *
+ * java StoreCheck [-pg <bin dir>] [-areas n] [-players n] [-actions n] [-seed n] [-triggers]
+ * java StoreCheck -speed [-areas n] [-players n] [-turns n] [-seed n]
+ *
+ * The check starts a scratch server (LocalPostgres), generates a world
+ * (WorldGenerator) into both stores and lets players take random actions:
+ * moves along roads and to areas without one, buying and selling roads
+ * and hotels, visit bonuses. Every action must be accepted or refused by
+ * both stores alike, and the acting player's budget and location must
+ * agree afterwards; every 100 actions all players, their properties and
+ * assets, next moves and the visit bonuses are compared. -triggers moves
+ * with the updPersons triggers instead of move_player(). Exits with 1 on
+ * a difference.
+ *
+ * -speed plays bot turns (next moves, then mostly a move, sometimes a
+ * purchase or a sale) on MemoryStore and reports turns per second.
+ */
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Supplier;
+
+public class StoreCheck
+{
+	private final GameStore sql;
+	private final GameStore memory;
+	private final Random rnd;
+	private final List<String[]> areas = new ArrayList<String[]>();
+	private final List<String[]> cities = new ArrayList<String[]>();
+	private final List<String[]> players = new ArrayList<String[]>();
+	private int differences;
+	private long actions;
+
+	StoreCheck(GameStore sql, GameStore memory, long seed) {
+		this.sql = sql;
+		this.memory = memory;
+		this.rnd = new Random(seed);
+	}
+
+	public static void main(String[] args) throws Exception {
+		String bindir = null;
+		WorldGenerator world = new WorldGenerator();
+		world.areas = 300;
+		int players = 6;
+		long count = 20000;
+		long turns = 5000000;
+		long seed = 1;
+		boolean triggers = false;
+		boolean speed = false;
+		for (int i = 0; i < args.length; ++i) {
+			if ("-pg".equals(args[i]) && i + 1 < args.length) {
+				bindir = args[++i];
+			} else if ("-areas".equals(args[i]) && i + 1 < args.length) {
+				world.areas = Integer.parseInt(args[++i]);
+			} else if ("-players".equals(args[i]) && i + 1 < args.length) {
+				players = Integer.parseInt(args[++i]);
+			} else if ("-actions".equals(args[i]) && i + 1 < args.length) {
+				count = Long.parseLong(args[++i]);
+			} else if ("-turns".equals(args[i]) && i + 1 < args.length) {
+				turns = Long.parseLong(args[++i]);
+			} else if ("-seed".equals(args[i]) && i + 1 < args.length) {
+				seed = Long.parseLong(args[++i]);
+			} else if ("-triggers".equals(args[i])) {
+				triggers = true;
+			} else if ("-speed".equals(args[i])) {
+				speed = true;
+			}
+		}
+		world.seed = seed;
+
+		if (speed) {
+			MemoryStore m = new MemoryStore();
+			StoreCheck c = new StoreCheck(null, m, seed);
+			c.world(world);
+			c.players(players);
+			long start = System.nanoTime();
+			c.bots(turns);
+			double secs = (System.nanoTime() - start) / 1e9;
+			System.out.println(turns + " turns of " + players + " bots on " + world.areas + " areas in "
+					+ String.format("%.2f s, %.0f turns/s", secs, turns / secs));
+			return;
+		}
+
+		int differences;
+		try (LocalPostgres pg = LocalPostgres.start(bindir)) {
+			Game g = new Game();
+			g.USERNAME = LocalPostgres.USER;
+			g.PASSWORD = "";
+			g.out = new PrintStream(OutputStream.nullOutputStream());
+			g.moveProcedure = !triggers;
+			g.pool = g.connect(pg.config());
+			try (Connection conn = g.pool.getConnection()) {
+				LocalPostgres.createSchema(conn);
+				g.insertGovernment(conn);
+				conn.setAutoCommit(false);
+				StoreCheck c = new StoreCheck(new SqlStore(g, conn), new MemoryStore(), seed);
+				c.world(world);
+				c.players(players);
+				conn.commit();
+				while (c.actions < count && c.differences < 10) {
+					c.turn();
+					if (c.actions % 100 == 0) {
+						c.compareAll();
+					}
+					if (c.actions % 500 == 0) {
+						conn.commit();
+					}
+				}
+				c.compareAll();
+				conn.commit();
+				differences = c.differences;
+				System.out.println(c.actions + " actions, " + differences + " differences ("
+						+ (triggers ? "triggers" : "move_player()") + ")");
+			} finally {
+				g.pool.close();
+			}
+		}
+		if (differences > 0) {
+			System.exit(1);
+		}
+	}
+
+	/* One action on a store. */
+	interface Action
+	{
+		boolean run(GameStore s) throws SQLException;
+	}
+
+	/* Runs the action on both stores (only MemoryStore in -speed runs) and
+	 * reports a difference when one accepts it and the other refuses it. */
+	private boolean both(Supplier<String> what, Action a) throws SQLException {
+		++actions;
+		boolean m = a.run(memory);
+		if (sql != null) {
+			boolean s = a.run(sql);
+			if (s != m) {
+				difference(what.get() + ": database " + (s ? "accepted" : "refused") + ", memory " + (m ? "accepted" : "refused"));
+			}
+		}
+		return m;
+	}
+
+	private void difference(String what) {
+		++differences;
+		System.out.println("Difference after " + actions + " actions: " + what);
+	}
+
+	private void world(WorldGenerator world) throws Exception {
+		world.generate(new WorldParser.Sink() {
+			public void town(String name, String country, int population) throws SQLException {
+				both(() -> "town " + name, s -> s.addTown(name, country, population));
+				areas.add(new String[] { name, country });
+			}
+
+			public void city(String name, String country, int population) throws SQLException {
+				both(() -> "city " + name, s -> s.addCity(name, country, population));
+				areas.add(new String[] { name, country });
+				cities.add(new String[] { name, country });
+			}
+
+			public void road(String area1, String country1, String area2, String country2) throws SQLException {
+				both(() -> "road " + area1 + " " + area2, s -> s.addRoad(area1, country1, area2, country2));
+			}
+		});
+	}
+
+	/* Players {name, personnummer, country}, each in a random area. */
+	private void players(int n) throws SQLException {
+		for (int i = 0; i < n; ++i) {
+			String[] area = areas.get(rnd.nextInt(areas.size()));
+			String[] p = { "bot" + i, String.format("%08d-%04d", 19700000 + i, i), area[1] };
+			if (both(() -> "new player " + p[0], s -> s.createPlayer(p[0], p[1], p[2], area[0]))) {
+				players.add(p);
+			}
+		}
+	}
+
+	/* One turn of the next player: look at the next moves, then mostly
+	 * move, sometimes buy or sell something or move where there is no
+	 * road. A round also puts a visit bonus on a random city. */
+	private void turn() throws SQLException {
+		int turn = (int) (actions % players.size());
+		final String[] p = players.get(turn);
+		if (turn == 0 && !cities.isEmpty()) {
+			final String[] c = cities.get(rnd.nextInt(cities.size()));
+			memory.setVisitBonus(c[0], c[1]);
+			if (sql != null) {
+				sql.setVisitBonus(c[0], c[1]);
+			}
+		}
+		List<GameStore.Move> moves = memory.nextMoves(p[2], p[1]);
+		final String[] here = memory.location(p[2], p[1]);
+		final GameStore.Move to = moves.isEmpty() ? null : moves.get(rnd.nextInt(moves.size()));
+		final String[] any = areas.get(rnd.nextInt(areas.size()));
+		int r = rnd.nextInt(20);
+		if (r < 12 && to != null) {
+			both(() -> "move " + p[0] + " to " + to.area, s -> s.move(p[2], p[1], to.area, to.country));
+		} else if (r < 13) {
+			both(() -> "move " + p[0] + " to " + any[0], s -> s.move(p[2], p[1], any[0], any[1]));
+		} else if (r < 15 && to != null) {
+			both(() -> "buy road " + p[0] + " " + here[0] + " " + to.area, s -> s.buyRoad(p[2], p[1], here[0], here[1], to.area, to.country));
+		} else if (r < 17) {
+			both(() -> "buy hotel " + p[0] + " " + here[0], s -> s.buyHotel(p[2], p[1], "Inn", here[0], here[1]));
+		} else if (r < 18 && to != null) {
+			/* Either direction sells the road. */
+			both(() -> "sell road " + p[0] + " " + to.area + " " + here[0], s -> s.sellRoad(p[2], p[1], to.area, to.country, here[0], here[1]));
+		} else if (r < 19) {
+			both(() -> "sell hotel " + p[0] + " " + here[0], s -> s.sellHotel(p[2], p[1], here[0], here[1]));
+		} else {
+			both(() -> "sell hotel " + p[0] + " " + any[0], s -> s.sellHotel(p[2], p[1], any[0], any[1]));
+		}
+		if (sql != null) {
+			comparePlayer(p);
+		}
+	}
+
+	/* Bot turns on MemoryStore only. */
+	private void bots(long turns) throws SQLException {
+		for (long t = 0; t < turns; ++t) {
+			turn();
+		}
+	}
+
+	private static boolean same(double a, double b) {
+		return Math.abs(a - b) <= 1e-6 * Math.max(1.0, Math.abs(a));
+	}
+
+	private void comparePlayer(String[] p) throws SQLException {
+		String[] l1 = sql.location(p[2], p[1]);
+		String[] l2 = memory.location(p[2], p[1]);
+		if (!l1[0].equals(l2[0]) || !l1[1].equals(l2[1])) {
+			difference(p[0] + " is in " + l1[0] + " in the database, in " + l2[0] + " in memory");
+		}
+		double b1 = sql.budget(p[2], p[1]);
+		double b2 = memory.budget(p[2], p[1]);
+		if (!same(b1, b2)) {
+			difference(p[0] + " has a budget of " + b1 + " in the database, " + b2 + " in memory");
+		}
+	}
+
+	private void compareAll() throws SQLException {
+		for (String[] p : players) {
+			comparePlayer(p);
+			double[] a1 = sql.assets(p[2], p[1]);
+			double[] a2 = memory.assets(p[2], p[1]);
+			if (!same(a1[0], a2[0]) || !same(a1[1], a2[1])) {
+				difference(p[0] + " assets " + a1[0] + "/" + a1[1] + " in the database, " + a2[0] + "/" + a2[1] + " in memory");
+			}
+			List<String> l1 = sql.properties(p[2], p[1]);
+			List<String> l2 = memory.properties(p[2], p[1]);
+			Collections.sort(l1);
+			Collections.sort(l2);
+			if (!l1.equals(l2)) {
+				difference(p[0] + " owns " + l1 + " in the database, " + l2 + " in memory");
+			}
+			List<String> m1 = moves(sql.nextMoves(p[2], p[1]));
+			List<String> m2 = moves(memory.nextMoves(p[2], p[1]));
+			if (!m1.equals(m2)) {
+				difference(p[0] + " next moves " + m1 + " in the database, " + m2 + " in memory");
+			}
+		}
+		for (String[] c : cities) {
+			double v1 = sql.visitBonus(c[0], c[1]);
+			double v2 = memory.visitBonus(c[0], c[1]);
+			if (!same(v1, v2)) {
+				difference(c[0] + " visit bonus " + v1 + " in the database, " + v2 + " in memory");
+			}
+		}
+	}
+
+	private static List<String> moves(List<GameStore.Move> moves) {
+		List<String> l = new ArrayList<String>();
+		for (GameStore.Move m : moves) {
+			l.add(m.area + "," + m.country + "," + RoadGraph.format(m.cost));
+		}
+		Collections.sort(l);
+		return l;
+	}
+}
@@ -0,0 +1,227 @@
+/* Reads of a turn fetched while the player is still typing.
+ *
+ * Almost every turn starts with n, l or s. When a turn starts, GameEngine
+ * hands the player to prefetch(), which reads the next moves from the
+ * player's location, the player's properties and the scores on a thread
+ * of its own, one after the other in one read-only transaction on one
+ * pooled connection, through a session of the game (Game.newSession)
+ * whose output is kept as text. The commands then print the kept text
+ * through take(), as often as they are typed, waiting for it if the read
+ * is running. A write command (buy, refund, move, whether it worked or
+ * not) and the end of the turn drop() the cache, and the next read goes
+ * to the database again.
+ *
+ * A read only counts as started once the prefetch holds its connection.
+ * A read that has not started when its command comes is not waited for:
+ * the command runs it itself, and the prefetch skips it. Waiting for it
+ * could hold the turn's connection while the prefetch waits for another
+ * one from a pool that the turns have used up.
+ *
+ * The transaction lets the listings stream through a cursor (FETCH_SIZE)
+ * as they do in a turn, but their text is kept whole, so listings of more
+ * than PREFETCH_MAX_ROWS rows (the player's hotels and roads, or the
+ * persons for the scores) are not prefetched at all.
+ *
+ * The reads run outside the turn's transaction. At the start of a turn
+ * that transaction has not written anything yet and the other players
+ * of the engine are waiting for their turn, so they see what the turn
+ * would have seen.
+ *
+ * Stats counts a hit for every command answered from the cache, a miss
+ * for every n, l or s that was not, and as wasted every read that was
+ * started but dropped unused; failed reads are counted too and answered
+ * by the command as usual.
+ */
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+
+public class TurnCache
+{
+	/* The reads, in the order they are fetched. */
+	static final int NEXT_MOVES = 0;
+	static final int PROPERTIES = 1;
+	static final int SCORES = 2;
+	private static final int READS = 3;
+
+	/* Prefetches of all engines share one executor (virtual threads when
+	 * the JVM has them), and wait for a pooled connection like any session. */
+	private static final ExecutorService threads = SessionManager.newSessionExecutor();
+
+	/* Runs the reads; used by one prefetch at a time. */
+	private final Game session;
+	private Prefetch current;
+
+	TurnCache(Game game) {
+		session = game.newSession();
+	}
+
+	/* The reads of one turn. */
+	private class Prefetch implements Runnable
+	{
+		final Game.Player player;
+		final int area;
+		final List<CompletableFuture<String>> results = new ArrayList<CompletableFuture<String>>();
+		/* started is set by the prefetch thread, taken by the engine thread;
+		 * whichever comes first decides whether the prefetch runs the read. */
+		final boolean[] started = new boolean[READS];
+		final boolean[] taken = new boolean[READS];
+		boolean dropped;
+
+		Prefetch(Game.Player player, int area) {
+			this.player = player;
+			this.area = area;
+			for (int k = 0; k < READS; ++k) {
+				results.add(new CompletableFuture<String>());
+			}
+		}
+
+		public void run() {
+			/* A dropped prefetch may still be running when the next turn
+			 * starts; the session is used by one of them at a time. */
+			synchronized (session) {
+				try {
+					session.withRetriedConnection(conn -> {
+						readAll(conn);
+						return null;
+					});
+				} catch (SQLException | RuntimeException e) {
+					Stats.prefetch("failed");
+				} finally {
+					/* Reads that did not run, or did not finish. */
+					for (CompletableFuture<String> r : results) {
+						r.cancel(false);
+					}
+				}
+			}
+		}
+
+		private void readAll(Connection conn) throws SQLException {
+			conn.setAutoCommit(false);
+			conn.setReadOnly(true);
+			try {
+				for (int k = 0; k < READS; ++k) {
+					if (tooLarge(conn, k) || !start(k)) {
+						continue;
+					}
+					try {
+						results.get(k).complete(read(conn, k));
+					} catch (SQLException | RuntimeException e) {
+						Stats.prefetch("failed");
+						results.get(k).completeExceptionally(e);
+						/* The transaction is aborted, the other reads would fail too. */
+						break;
+					}
+				}
+			} finally {
+				conn.rollback();
+				conn.setReadOnly(false);
+				conn.setAutoCommit(true);
+			}
+		}
+
+		/* Whether the listing of read k has more rows than are kept. */
+		private boolean tooLarge(Connection conn, int k) throws SQLException {
+			if (k == SCORES) {
+				return session.personKeys.size() > session.prefetchMaxRows;
+			}
+			if (k != PROPERTIES) {
+				return false;
+			}
+			PreparedStatement st = session.prepare(conn, "SELECT hotels + roads FROM PersonAssets WHERE game_id = ? AND person = ?");
+			st.setInt(1, session.gameId);
+			st.setInt(2, player.id());
+			try (ResultSet rs = session.query(st)) {
+				boolean found = rs.next();
+				session.rows(st, found ? 1 : 0);
+				return found && rs.getInt(1) > session.prefetchMaxRows;
+			}
+		}
+
+		synchronized boolean start(int k) {
+			if (dropped || taken[k]) {
+				return false;
+			}
+			started[k] = true;
+			return true;
+		}
+
+		/* Takes the read for a command; true if it started and will answer. */
+		synchronized boolean take(int k) {
+			taken[k] = true;
+			return started[k];
+		}
+
+		/* Returns the number of reads started but not taken. */
+		synchronized int drop() {
+			dropped = true;
+			int wasted = 0;
+			for (int k = 0; k < READS; ++k) {
+				if (started[k] && !taken[k]) {
+					++wasted;
+				}
+			}
+			return wasted;
+		}
+
+		private String read(Connection conn, int k) throws SQLException {
+			ByteArrayOutputStream text = new ByteArrayOutputStream();
+			session.out = new PrintStream(text, true);
+			if (k == NEXT_MOVES) {
+				session.getNextMoves(conn, player, area);
+			} else if (k == PROPERTIES) {
+				session.listProperties(conn, player.id());
+			} else {
+				session.showScores(conn);
+			}
+			session.out.flush();
+			return text.toString();
+		}
+	}
+
+	/* Starts reading the turn of the player, whose location must be known. */
+	void prefetch(Game.Player player) {
+		drop();
+		current = new Prefetch(player, player.location);
+		threads.execute(current);
+	}
+
+	/* The output of the read for this turn, or null if there is none and
+	 * the command has to run itself. */
+	String take(int k) {
+		Prefetch p = current;
+		if (p == null || !p.take(k)) {
+			Stats.prefetch("miss");
+			return null;
+		}
+		try {
+			String text = p.results.get(k).get();
+			Stats.prefetch("hit");
+			return text;
+		} catch (ExecutionException | CancellationException e) {
+			Stats.prefetch("miss");
+			return null;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			Stats.prefetch("miss");
+			return null;
+		}
+	}
+
+	/* Forgets the reads of the turn, after a write or at the end of the turn. */
+	void drop() {
+		Prefetch p = current;
+		current = null;
+		if (p != null) {
+			for (int n = p.drop(); n > 0; --n) {
+				Stats.prefetch("wasted");
+			}
+		}
+	}
+}
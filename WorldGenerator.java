@@ -0,0 +1,126 @@
+/* Generates synthetic worlds in the world file format that play() and
+ * WorldLoader read:
+ *
+ *   TOWN <name> <country> <population>
+ *   CITY <name> <country> <population>
+ *   ROAD <area1> <country1> <area2> <country2>
+ *
+ * java WorldGenerator <file> [areas] [roads per area] [countries] [city ratio] [seed]
+ *
+ * Areas are spread round robin over the countries and each one is a city
+ * with probability cityRatio. The first roads form a path through all
+ * areas so every area can be reached; the rest connect random pairs of
+ * areas. No two roads connect the same pair of areas. Names must not
+ * contain digits, so numbers are spelled with letters.
+ */
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Random;
+
+public class WorldGenerator
+{
+	int areas = 1000;
+	double roadsPerArea = 2.0;
+	int countries = 1;
+	double cityRatio = 0.1;
+	long seed = 1;
+
+	/* Spells a number with the letters a-j. */
+	static String word(int n) {
+		char[] c = Integer.toString(n).toCharArray();
+		for (int i = 0; i < c.length; ++i) {
+			c[i] = (char) ('a' + (c[i] - '0'));
+		}
+		return new String(c);
+	}
+
+	String areaName(int i) {
+		return word(i);
+	}
+
+	String countryName(int i) {
+		return "Land" + word(i % countries);
+	}
+
+	/* Number of roads generated, at most one per pair of areas. */
+	long roadCount() {
+		long max = (long) areas * (areas - 1) / 2;
+		return Math.min(max, Math.round(areas * roadsPerArea));
+	}
+
+	/* Passes the world to the sink, all areas first and then all roads. */
+	void generate(WorldParser.Sink sink) throws Exception {
+		Random rnd = new Random(seed);
+		for (int i = 0; i < areas; ++i) {
+			int population = 100 + rnd.nextInt(1000000);
+			if (rnd.nextDouble() < cityRatio) {
+				sink.city(areaName(i), countryName(i), population);
+			} else {
+				sink.town(areaName(i), countryName(i), population);
+			}
+		}
+		long roads = roadCount();
+		HashSet<Long> pairs = new HashSet<Long>();
+		for (int i = 0; i + 1 < areas && pairs.size() < roads; ++i) {
+			road(sink, pairs, i, i + 1);
+		}
+		while (pairs.size() < roads) {
+			int a = rnd.nextInt(areas);
+			int b = rnd.nextInt(areas);
+			if (a != b && !pairs.contains(key(a, b))) {
+				road(sink, pairs, a, b);
+			}
+		}
+	}
+
+	private static long key(int a, int b) {
+		return a < b ? ((long) a << 32) | b : ((long) b << 32) | a;
+	}
+
+	private void road(WorldParser.Sink sink, HashSet<Long> pairs, int a, int b) throws Exception {
+		pairs.add(key(a, b));
+		sink.road(areaName(a), countryName(a), areaName(b), countryName(b));
+	}
+
+	/* Writes the world to a file. */
+	void write(String file) throws IOException {
+		try (final BufferedWriter w = new BufferedWriter(new FileWriter(file), 1 << 16)) {
+			generate(new WorldParser.Sink() {
+				public void town(String name, String country, int population) throws IOException {
+					w.write("TOWN " + name + " " + country + " " + population + "\n");
+				}
+
+				public void city(String name, String country, int population) throws IOException {
+					w.write("CITY " + name + " " + country + " " + population + "\n");
+				}
+
+				public void road(String area1, String country1, String area2, String country2) throws IOException {
+					w.write("ROAD " + area1 + " " + country1 + " " + area2 + " " + country2 + "\n");
+				}
+			});
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException(e);
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.out.println("java WorldGenerator <file> [areas] [roads per area] [countries] [city ratio] [seed]");
+			return;
+		}
+		WorldGenerator g = new WorldGenerator();
+		g.areas = args.length > 1 ? Integer.parseInt(args[1]) : g.areas;
+		g.roadsPerArea = args.length > 2 ? Double.parseDouble(args[2]) : g.roadsPerArea;
+		g.countries = args.length > 3 ? Integer.parseInt(args[3]) : g.countries;
+		g.cityRatio = args.length > 4 ? Double.parseDouble(args[4]) : g.cityRatio;
+		g.seed = args.length > 5 ? Long.parseLong(args[5]) : g.seed;
+		long start = System.nanoTime();
+		g.write(args[0]);
+		System.out.println(g.areas + " areas, " + g.roadCount() + " roads in " + g.countries + " countries written to "
+				+ args[0] + " in " + (System.nanoTime() - start) / 1000000 + " ms");
+	}
+}
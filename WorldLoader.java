@@ -0,0 +1,213 @@
+/* Bulk loader for world files.
+ *
+ * Game.insertTown/insertCity/insertRoad insert one line at a time in
+ * autocommit, preparing fresh statements for every call. This loader
+ * instead reads the whole world file inside a single transaction and
+ * sends Countries, Areas, Towns, Cities and Roads rows as JDBC batches.
+ * Countries are de-duplicated in memory instead of relying on a failing
+ * INSERT, and duplicate roads are skipped on the server side.
+ *
+ * The file itself is read by WorldParser in two passes: all areas are
+ * written first, then all roads. Areas get their ids from the game's
+ * KeyTable as they are read, so roads can be written by id. Messages
+ * and the summary go to the caller's output.
+ */
+import java.io.IOException;
+import java.io.PrintStream;
+import java.sql.*;
+import java.util.HashSet;
+
+public class WorldLoader implements WorldParser.Sink
+{
+	static final int BATCH_SIZE = 1000;
+
+	private final Connection conn;
+	private final int game;
+	private final KeyTable areas;
+	private final PrintStream out;
+	private final HashSet<String> countries = new HashSet<String>();
+
+	private PreparedStatement insCountry;
+	private PreparedStatement insArea;
+	private PreparedStatement insTown;
+	private PreparedStatement insCity;
+	private PreparedStatement insRoad;
+	private int pending;
+
+	int countryRows;
+	int areaRows;
+	int townRows;
+	int cityRows;
+	int roadRows;
+	int skipped;
+
+	public WorldLoader(Connection conn, int game, KeyTable areas, PrintStream out) {
+		this.conn = conn;
+		this.game = game;
+		this.areas = areas;
+		this.out = out;
+		/* The government country is created by Game.play() before loading. */
+		countries.add("");
+	}
+
+	/* Loads the given world file and returns the number of rows sent.
+	 * Everything is committed at once; on failure nothing is kept.
+	 */
+	int load(String worldfile) throws IOException, SQLException {
+		long start = System.nanoTime();
+		boolean autocommit = conn.getAutoCommit();
+		conn.setAutoCommit(false);
+		try {
+			prepare();
+			WorldParser parser = new WorldParser();
+			/* Phase one writes every area, phase two every road, so roads
+			 * may appear anywhere in the file. */
+			parser.parse(worldfile, WorldParser.AREAS, this);
+			flush();
+			parser.parse(worldfile, WorldParser.ROADS, this);
+			flush();
+			conn.commit();
+		} catch (Throwable e) {
+			/* Any failure, also a RuntimeException from the parser, must
+			 * roll back before autocommit is restored, or the rows sent so
+			 * far would be committed. */
+			try {
+				conn.rollback();
+			} catch (SQLException re) {
+				e.addSuppressed(re);
+			}
+			throw e;
+		} finally {
+			close();
+			conn.setAutoCommit(autocommit);
+		}
+		int rows = countryRows + areaRows + townRows + cityRows + roadRows;
+		double secs = (System.nanoTime() - start) / 1e9;
+		out.println("Loaded " + rows + " rows (" + countryRows + " countries, " + areaRows + " areas, "
+				+ townRows + " towns, " + cityRows + " cities, " + roadRows + " roads, " + skipped + " lines skipped) in " + String.format("%.2f", secs)
+				+ " s, " + String.format("%.0f", rows / Math.max(secs, 1e-9)) + " rows/s");
+		return rows;
+	}
+
+	private void prepare() throws SQLException {
+		insCountry = conn.prepareStatement("INSERT INTO Countries VALUES (?,?) ON CONFLICT DO NOTHING");
+		insArea = conn.prepareStatement("INSERT INTO Areas VALUES (?,?,?,?,?) ON CONFLICT DO NOTHING");
+		insTown = conn.prepareStatement("INSERT INTO Towns VALUES (?,?) ON CONFLICT DO NOTHING");
+		insCity = conn.prepareStatement("INSERT INTO Cities VALUES (?,?,0) ON CONFLICT DO NOTHING");
+		/* insRoads raises an exception for an existing road, which would abort
+		 * the whole transaction, so roads that already exist in either
+		 * direction are filtered out by the statement itself.
+		 */
+		insRoad = conn.prepareStatement("INSERT INTO Roads SELECT ?,?,?,0,0 WHERE NOT EXISTS ("
+				+ "SELECT 1 FROM Roads WHERE game_id = ? AND owner = 0 AND "
+				+ "((fromarea = ? AND toarea = ?) OR (fromarea = ? AND toarea = ?)))");
+		/* Every row goes to the same game; parameters stay set between batches. */
+		for (PreparedStatement st : new PreparedStatement[] { insCountry, insArea, insTown, insCity, insRoad }) {
+			st.setInt(1, game);
+		}
+		insRoad.setInt(4, game);
+	}
+
+	public void town(String name, String country, int population) throws SQLException {
+		addArea(insTown, name, country, population);
+	}
+
+	public void city(String name, String country, int population) throws SQLException {
+		addArea(insCity, name, country, population);
+	}
+
+	public void road(String area1, String country1, String area2, String country2) throws SQLException {
+		addRoad(area1, country1, area2, country2);
+	}
+
+	private void addArea(PreparedStatement st, String name, String country, int pop) throws SQLException {
+		if (pop < 0) {
+			out.println("Invalid population for " + name + ", " + country);
+			++skipped;
+			return;
+		}
+		/* intern() would return the id of the first line, and a second
+		 * Areas row and a Towns or Cities row would be sent for it. */
+		if (areas.id(name, country) >= 0) {
+			out.println("Area " + name + ", " + country + " appears twice, later line ignored");
+			++skipped;
+			return;
+		}
+		if (countries.add(country)) {
+			insCountry.setString(2, country);
+			insCountry.addBatch();
+		}
+		int id = areas.intern(name, country);
+		insArea.setInt(2, id);
+		insArea.setString(3, country);
+		insArea.setString(4, name);
+		insArea.setInt(5, pop);
+		insArea.addBatch();
+		st.setInt(2, id);
+		st.addBatch();
+		pending += 3;
+		if (pending >= BATCH_SIZE) {
+			flush();
+		}
+	}
+
+	private void addRoad(String area1, String country1, String area2, String country2) throws SQLException {
+		if (area1.equals(area2) && country1.equals(country2)) {
+			out.println("Road from " + area1 + ", " + country1 + " to itself ignored");
+			++skipped;
+			return;
+		}
+		int a = areas.id(area1, country1);
+		int b = areas.id(area2, country2);
+		if (a < 0 || b < 0) {
+			out.println("Road between " + area1 + ", " + country1 + " and " + area2 + ", " + country2 + " to an unknown area ignored");
+			++skipped;
+			return;
+		}
+		insRoad.setInt(2, a);
+		insRoad.setInt(3, b);
+		insRoad.setInt(5, a);
+		insRoad.setInt(6, b);
+		insRoad.setInt(7, b);
+		insRoad.setInt(8, a);
+		insRoad.addBatch();
+		if (++pending >= BATCH_SIZE) {
+			flush();
+		}
+	}
+
+	/* Batches are executed in foreign key order, so an area always
+	 * sees its country.
+	 */
+	private void flush() throws SQLException {
+		countryRows += execute(insCountry);
+		areaRows += execute(insArea);
+		townRows += execute(insTown);
+		cityRows += execute(insCity);
+		roadRows += execute(insRoad);
+		pending = 0;
+	}
+
+	/* Executes the batch and returns the number of rows inserted. Rows that
+	 * already existed are skipped by ON CONFLICT DO NOTHING (or NOT EXISTS
+	 * for roads) and report 0.
+	 */
+	private static int execute(PreparedStatement st) throws SQLException {
+		int rows = 0;
+		for (int n : st.executeBatch()) {
+			if (n > 0) {
+				rows += n;
+			}
+		}
+		return rows;
+	}
+
+	private void close() throws SQLException {
+		PreparedStatement[] all = { insCountry, insArea, insTown, insCity, insRoad };
+		for (PreparedStatement st : all) {
+			if (st != null) {
+				st.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,298 @@
+/* Streaming, parallel parser for world files.
+ *
+ * The file is split into line-aligned chunks that are memory-mapped and
+ * tokenized by a pool of worker threads, without any regex or per-line
+ * String allocation for the lines that are skipped. Parsed records are
+ * handed to the calling thread in fixed-size batches through a bounded
+ * queue, so memory use does not depend on the size of the file.
+ *
+ * A parse only emits the records of one phase (areas or roads); the
+ * loader runs an AREAS pass and then a ROADS pass, which makes the
+ * order of the lines in the file irrelevant.
+ */
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class WorldParser
+{
+	static final int AREAS = 0;
+	static final int ROADS = 1;
+
+	static final byte TOWN = 1;
+	static final byte CITY = 2;
+	static final byte ROAD = 3;
+
+	/* Records per batch and batches in flight per worker. */
+	static final int BATCH_RECORDS = 4096;
+	static final int QUEUE_PER_WORKER = 2;
+	/* Upper bound for a single mapped chunk. */
+	static final long MAX_CHUNK = 256L * 1024 * 1024;
+
+	private static final byte[] TOWN_BYTES = "TOWN".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] CITY_BYTES = "CITY".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] ROAD_BYTES = "ROAD".getBytes(StandardCharsets.US_ASCII);
+
+	/* Receives the parsed records, always on the thread that called parse(). */
+	interface Sink
+	{
+		void town(String name, String country, int population) throws Exception;
+		void city(String name, String country, int population) throws Exception;
+		void road(String area1, String country1, String area2, String country2) throws Exception;
+	}
+
+	/* A batch of records. TOWN/CITY use field 0,1 and population,
+	 * ROAD uses fields 0..3. A population of -1 means it was not a number.
+	 */
+	static class Batch
+	{
+		final byte[] kind = new byte[BATCH_RECORDS];
+		final String[] fields = new String[BATCH_RECORDS * 4];
+		final int[] population = new int[BATCH_RECORDS];
+		int size;
+	}
+
+	private static final Batch END = new Batch();
+
+	private final int threads;
+
+	public WorldParser(int threads) {
+		this.threads = Math.max(1, threads);
+	}
+
+	public WorldParser() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/* Parses the file and calls the sink for every record of the given phase.
+	 * Returns the number of records delivered.
+	 */
+	long parse(String worldfile, final int phase, Sink sink) throws IOException {
+		FileChannel ch = FileChannel.open(Paths.get(worldfile), StandardOpenOption.READ);
+		ExecutorService workers = Executors.newFixedThreadPool(threads);
+		try {
+			final ArrayList<long[]> chunks = split(ch);
+			final BlockingQueue<Batch> queue = new ArrayBlockingQueue<Batch>(threads * QUEUE_PER_WORKER);
+			final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+			for (final long[] chunk : chunks) {
+				final MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, chunk[0], chunk[1] - chunk[0]);
+				workers.execute(new Runnable() {
+					public void run() {
+						try {
+							tokenize(buf, phase, queue);
+						} catch (Throwable t) {
+							failure.compareAndSet(null, t);
+						} finally {
+							put(queue, END);
+						}
+					}
+				});
+			}
+
+			long records = 0;
+			int done = 0;
+			while (done < chunks.size()) {
+				Batch b = take(queue);
+				if (b == END) {
+					++done;
+					continue;
+				}
+				for (int i = 0; i < b.size; ++i) {
+					int f = i * 4;
+					try {
+						if (b.kind[i] == ROAD) {
+							sink.road(b.fields[f], b.fields[f + 1], b.fields[f + 2], b.fields[f + 3]);
+						} else if (b.kind[i] == TOWN) {
+							sink.town(b.fields[f], b.fields[f + 1], b.population[i]);
+						} else {
+							sink.city(b.fields[f], b.fields[f + 1], b.population[i]);
+						}
+					} catch (Exception e) {
+						/* Stop the workers; they are blocked on the queue otherwise. */
+						workers.shutdownNow();
+						throw e instanceof IOException ? (IOException) e : new IOException(e.getMessage(), e);
+					}
+				}
+				records += b.size;
+			}
+			if (failure.get() != null) {
+				throw new IOException("Failed to parse " + worldfile + ": " + failure.get(), failure.get());
+			}
+			return records;
+		} finally {
+			workers.shutdownNow();
+			ch.close();
+		}
+	}
+
+	/* Splits the file into chunks that start right after a newline,
+	 * at least one per worker and none larger than MAX_CHUNK.
+	 */
+	private ArrayList<long[]> split(FileChannel ch) throws IOException {
+		long size = ch.size();
+		long n = Math.max(threads, (size + MAX_CHUNK - 1) / MAX_CHUNK);
+		long step = Math.max(1, size / n);
+		ArrayList<long[]> chunks = new ArrayList<long[]>();
+		ByteBuffer probe = ByteBuffer.allocate(4096);
+		long start = 0;
+		while (start < size) {
+			long end = Math.min(size, start + step);
+			/* Move the end forward to just after the next newline. */
+			while (end < size) {
+				probe.clear();
+				int r = ch.read(probe, end);
+				if (r <= 0) {
+					end = size;
+					break;
+				}
+				int i = 0;
+				while (i < r && probe.get(i) != '\n') {
+					++i;
+				}
+				end += i;
+				if (i < r) {
+					++end;
+					break;
+				}
+			}
+			chunks.add(new long[] { start, end });
+			start = end;
+		}
+		return chunks;
+	}
+
+	/* Tokenizes one chunk. Lines are split on spaces and tabs; only the
+	 * fields of records that belong to the phase are turned into Strings.
+	 */
+	private static void tokenize(MappedByteBuffer buf, int phase, BlockingQueue<Batch> queue) {
+		int limit = buf.limit();
+		int[] start = new int[6];
+		int[] end = new int[6];
+		byte[] scratch = new byte[256];
+		Batch batch = new Batch();
+		int pos = 0;
+		while (pos < limit) {
+			int ntok = 0;
+			int i = pos;
+			/* Collect up to six tokens of the line. */
+			while (i < limit) {
+				byte c = buf.get(i);
+				if (c == '\n') {
+					break;
+				}
+				if (c == ' ' || c == '\t' || c == '\r') {
+					++i;
+					continue;
+				}
+				int s = i;
+				while (i < limit) {
+					c = buf.get(i);
+					if (c == ' ' || c == '\t' || c == '\r' || c == '\n') {
+						break;
+					}
+					++i;
+				}
+				if (ntok < 6) {
+					start[ntok] = s;
+					end[ntok] = i;
+				}
+				++ntok;
+			}
+			pos = i + 1;
+
+			byte kind = 0;
+			if (ntok == 5 && phase == ROADS && matches(buf, start[0], end[0], ROAD_BYTES)) {
+				kind = ROAD;
+			} else if (ntok == 4 && phase == AREAS) {
+				if (matches(buf, start[0], end[0], TOWN_BYTES)) {
+					kind = TOWN;
+				} else if (matches(buf, start[0], end[0], CITY_BYTES)) {
+					kind = CITY;
+				}
+			}
+			if (kind == 0) {
+				continue;
+			}
+
+			int r = batch.size;
+			batch.kind[r] = kind;
+			int fields = kind == ROAD ? 4 : 2;
+			for (int t = 0; t < fields; ++t) {
+				int len = end[t + 1] - start[t + 1];
+				if (len > scratch.length) {
+					scratch = new byte[len * 2];
+				}
+				for (int k = 0; k < len; ++k) {
+					scratch[k] = buf.get(start[t + 1] + k);
+				}
+				batch.fields[r * 4 + t] = new String(scratch, 0, len, StandardCharsets.UTF_8);
+			}
+			if (kind != ROAD) {
+				batch.population[r] = parseInt(buf, start[3], end[3]);
+			}
+			if (++batch.size == BATCH_RECORDS) {
+				put(queue, batch);
+				batch = new Batch();
+			}
+		}
+		if (batch.size > 0) {
+			put(queue, batch);
+		}
+	}
+
+	private static boolean matches(MappedByteBuffer buf, int s, int e, byte[] word) {
+		if (e - s != word.length) {
+			return false;
+		}
+		for (int k = 0; k < word.length; ++k) {
+			if (buf.get(s + k) != word[k]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/* Returns the non-negative integer in the given range, or -1. */
+	private static int parseInt(MappedByteBuffer buf, int s, int e) {
+		if (s == e || e - s > 9) {
+			return -1;
+		}
+		int v = 0;
+		for (int k = s; k < e; ++k) {
+			int d = buf.get(k) - '0';
+			if (d < 0 || d > 9) {
+				return -1;
+			}
+			v = v * 10 + d;
+		}
+		return v;
+	}
+
+	private static void put(BlockingQueue<Batch> queue, Batch b) {
+		try {
+			queue.put(b);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Parser interrupted");
+		}
+	}
+
+	private static Batch take(BlockingQueue<Batch> queue) throws IOException {
+		try {
+			return queue.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Parser interrupted");
+		}
+	}
+}
@@ -0,0 +1,378 @@
+/* The game side of the JMH benchmarks (bench.GameBenchmark).
+ *
+ * setUp() starts a scratch server (LocalPostgres), loads a generated
+ * world line by line and creates a player in a city with a road out of
+ * it. Every operation runs on one connection in a transaction that is
+ * rolled back afterwards. Next moves are read once through the road graph
+ * and once, in a session without it, through the next_moves() function;
+ * the writes also use that session, since a rolled back purchase would
+ * stay in the graph.
+ *
+ * The listing and the key layouts use a copy of the world (copy_game), so
+ * its extra owners do not change what the other operations read: one
+ * person per hundred areas owns a copy of every tenth road, and a lister
+ * owns a copy of every road and a hotel in every city, all inserted with
+ * the triggers off and PersonAssets rebuilt afterwards. Next to the copy's
+ * tables the old layout is rebuilt from them: Areas, Persons and Roads
+ * keyed by (name, country) and (country, personnummer), with the same
+ * indexes as before. setUp() prints the size of Roads in both layouts.
+ *
+ * This class is in the default package with the game, so it can use the
+ * game's package-private methods; the benchmark reaches it through
+ * bench.Fixture.
+ */
+import bench.Fixture;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+
+public class GameFixture implements Fixture
+{
+	/* The game load() loads into, next to the benchmarked one. */
+	private static final int LOAD_GAME = 2;
+
+	/* The old layout, built from the copy's game (%1$d). */
+	private static final String[] OLD_LAYOUT = {
+		"CREATE TABLE OldAreas (game_id INT, country TEXT, name TEXT, population INT, PRIMARY KEY (game_id, name, country))",
+		"CREATE TABLE OldPersons (game_id INT, country TEXT, personnummer TEXT, name TEXT, locationcountry TEXT, locationarea TEXT, budget NUMERIC, "
+				+ "PRIMARY KEY (game_id, personnummer, country))",
+		"CREATE TABLE OldRoads (game_id INT, fromcountry TEXT, fromarea TEXT, tocountry TEXT, toarea TEXT, ownercountry TEXT, ownerpersonnummer TEXT, "
+				+ "roadtax NUMERIC, PRIMARY KEY (game_id, fromcountry, fromarea, tocountry, toarea, ownercountry, ownerpersonnummer))",
+		"CREATE INDEX oldroads_to ON OldRoads (game_id, tocountry, toarea)",
+		"CREATE INDEX oldroads_owner ON OldRoads (game_id, ownercountry, ownerpersonnummer)",
+		"INSERT INTO OldAreas SELECT game_id, country, name, population FROM Areas WHERE game_id = %1$d",
+		"INSERT INTO OldPersons SELECT p.game_id, p.country, p.personnummer, p.name, a.country, a.name, p.budget "
+				+ "FROM Persons p JOIN Areas a ON a.game_id = p.game_id AND a.id = p.location WHERE p.game_id = %1$d",
+		"INSERT INTO OldRoads SELECT r.game_id, a.country, a.name, b.country, b.name, p.country, p.personnummer, r.roadtax FROM Roads r "
+				+ "JOIN Areas a ON a.game_id = r.game_id AND a.id = r.fromarea JOIN Areas b ON b.game_id = r.game_id AND b.id = r.toarea "
+				+ "JOIN Persons p ON p.game_id = r.game_id AND p.id = r.owner WHERE r.game_id = %1$d",
+		"ANALYZE"
+	};
+
+	/* The lookups of next_moves(): roads out of and into an area. */
+	private static final String LOOKUP = "SELECT owner, roadtax FROM Roads WHERE game_id = ? AND (fromarea = ? OR toarea = ?)";
+	private static final String OLD_LOOKUP = "SELECT ownercountry, ownerpersonnummer, roadtax FROM OldRoads "
+			+ "WHERE game_id = ? AND ((fromcountry = ? AND fromarea = ?) OR (tocountry = ? AND toarea = ?))";
+
+	private static final String JOIN = "SELECT COUNT(*), SUM(r.roadtax), SUM(a.population + b.population) FROM Roads r "
+			+ "JOIN Persons p ON p.game_id = r.game_id AND p.id = r.owner "
+			+ "JOIN Areas a ON a.game_id = r.game_id AND a.id = r.fromarea "
+			+ "JOIN Areas b ON b.game_id = r.game_id AND b.id = r.toarea WHERE r.game_id = ?";
+	private static final String OLD_JOIN = "SELECT COUNT(*), SUM(r.roadtax), SUM(a.population + b.population) FROM OldRoads r "
+			+ "JOIN OldPersons p ON p.game_id = r.game_id AND p.country = r.ownercountry AND p.personnummer = r.ownerpersonnummer "
+			+ "JOIN OldAreas a ON a.game_id = r.game_id AND a.country = r.fromcountry AND a.name = r.fromarea "
+			+ "JOIN OldAreas b ON b.game_id = r.game_id AND b.country = r.tocountry AND b.name = r.toarea WHERE r.game_id = ?";
+
+	private LocalPostgres pg;
+	private Game game;
+	private Game sql;
+	/* The copy of the world with the lister and the old layout. */
+	private Game copy;
+	private int lister;
+	private Connection conn;
+	private Game.Player player;
+	private int size;
+	/* The player starts in a city (from) with a road to another area (to);
+	 * both are {country, name}. */
+	private String[] from;
+	private String[] to;
+	private final List<String[]> areas = new ArrayList<String[]>();
+	/* Random areas of the copy for the road lookups. */
+	private final int[] lookups = new int[1000];
+
+	public void setUp(String bindir, int n) throws Exception {
+		size = n;
+		pg = LocalPostgres.start(bindir);
+		game = new Game();
+		game.USERNAME = LocalPostgres.USER;
+		game.PASSWORD = "";
+		game.out = new PrintStream(OutputStream.nullOutputStream());
+		game.pool = game.connect(pg.config());
+		conn = game.pool.getConnection();
+		LocalPostgres.createSchema(conn);
+		load(game, n);
+		pick();
+		if (from == null) {
+			throw new IllegalStateException("No road out of a city in a world of " + n + " areas");
+		}
+		player = game.new Player("bench", "99999999-9999", from[0], from[1]);
+		if (game.createPlayer(conn, player) != 1) {
+			throw new IllegalStateException("Could not create the player");
+		}
+		copy(n);
+		game.loadRoadGraph(new Properties());
+		game.loadCities();
+		sql = game.newSession();
+		sql.out = game.out;
+		sql.graph = null;
+		conn.setAutoCommit(false);
+	}
+
+	/* Inserts a generated world into g line by line and analyzes it. */
+	private void load(Game g, int n) throws Exception {
+		g.insertGovernment(conn);
+		WorldGenerator world = new WorldGenerator();
+		world.areas = n;
+		world.generate(new WorldParser.Sink() {
+			public void town(String name, String country, int population) throws SQLException {
+				g.insertTown(conn, name, country, Integer.toString(population));
+			}
+
+			public void city(String name, String country, int population) throws SQLException {
+				g.insertCity(conn, name, country, Integer.toString(population));
+			}
+
+			public void road(String area1, String country1, String area2, String country2) throws SQLException {
+				g.insertRoad(conn, area1, country1, area2, country2);
+			}
+		});
+		try (Statement st = conn.createStatement()) {
+			st.execute("ANALYZE");
+		}
+	}
+
+	/* Picks the player's city and road, and the areas for next moves. */
+	private void pick() throws SQLException {
+		PreparedStatement st = game.prepare(conn, "SELECT r.fromarea, r.toarea FROM Roads r JOIN Cities c ON c.game_id = r.game_id AND c.area = r.fromarea WHERE r.game_id = ? AND r.fromarea <> 0 LIMIT 1");
+		st.setInt(1, game.gameId);
+		try (ResultSet rs = game.query(st)) {
+			if (rs.next()) {
+				from = area(rs.getInt(1));
+				to = area(rs.getInt(2));
+				game.rows(st, 1);
+			}
+		}
+		st = game.prepare(conn, "SELECT DISTINCT fromarea FROM Roads WHERE game_id = ? AND fromarea <> 0 LIMIT 1000");
+		st.setInt(1, game.gameId);
+		try (ResultSet rs = game.query(st)) {
+			while (rs.next()) {
+				areas.add(area(rs.getInt(1)));
+			}
+			game.rows(st, areas.size());
+		}
+	}
+
+	/* Copies the world for the listing and the key layouts (see above). */
+	private void copy(int n) throws SQLException {
+		copy = game.newGame();
+		copy.out = game.out;
+		int g = copy.gameId;
+		int persons = Math.max(10, n / 100);
+		lister = persons + 1;
+		String people = Snapshot.partition("Persons", g);
+		String roads = Snapshot.partition("Roads", g);
+		String hotels = Snapshot.partition("Hotels", g);
+		try (Statement st = conn.createStatement()) {
+			/* The triggers would charge the owners; PersonAssets is rebuilt instead. */
+			st.execute("ALTER TABLE " + people + " DISABLE TRIGGER USER");
+			st.execute("ALTER TABLE " + roads + " DISABLE TRIGGER USER");
+			st.execute("ALTER TABLE " + hotels + " DISABLE TRIGGER USER");
+			st.executeUpdate("INSERT INTO Persons SELECT " + g + ", i, country, to_char(19000000 + i, 'FM00000000') || '-0000', 'Bench', id, 1000 "
+					+ "FROM generate_series(1, " + lister + ") AS i JOIN Areas ON game_id = " + g + " AND id = i");
+			st.executeUpdate("INSERT INTO Roads SELECT game_id, fromarea, toarea, " + lister + ", 0 FROM Roads WHERE game_id = " + g + " AND owner = 0");
+			st.executeUpdate("INSERT INTO Roads SELECT game_id, fromarea, toarea, fromarea % " + persons + " + 1, 10 FROM Roads "
+					+ "WHERE game_id = " + g + " AND owner = 0 AND fromarea % 10 = 0");
+			st.executeUpdate("INSERT INTO Hotels SELECT game_id, 'Benchotel', area, " + lister + " FROM Cities WHERE game_id = " + g);
+			st.execute("ALTER TABLE " + people + " ENABLE TRIGGER USER");
+			st.execute("ALTER TABLE " + roads + " ENABLE TRIGGER USER");
+			st.execute("ALTER TABLE " + hotels + " ENABLE TRIGGER USER");
+			st.execute("SELECT rebuild_person_assets(" + g + ")");
+			for (String sql : OLD_LAYOUT) {
+				st.execute(String.format(sql, g));
+			}
+		}
+		System.out.println(String.format("%-10s %12s %12s %12s", "", "rows", "table", "indexes"));
+		size("int keys", roads);
+		size("text keys", "oldroads");
+		Random rnd = new Random(1);
+		for (int i = 0; i < lookups.length; ++i) {
+			lookups[i] = 1 + rnd.nextInt(copy.areaKeys.size() - 1);
+		}
+	}
+
+	private void size(String title, String table) throws SQLException {
+		try (PreparedStatement st = conn.prepareStatement("SELECT (SELECT COUNT(*) FROM " + table + "), "
+				+ "pg_size_pretty(pg_relation_size(?::regclass)), pg_size_pretty(pg_indexes_size(?::regclass))")) {
+			st.setString(1, table);
+			st.setString(2, table);
+			try (ResultSet rs = st.executeQuery()) {
+				rs.next();
+				System.out.println(String.format("%-10s %12d %12s %12s", title, rs.getLong(1), rs.getString(2), rs.getString(3)));
+			}
+		}
+	}
+
+	private String[] area(int id) {
+		return new String[] { game.areaKeys.second(id), game.areaKeys.first(id) };
+	}
+
+	public void load() throws Exception {
+		Game g = game.newSession();
+		g.gameId = LOAD_GAME;
+		g.areaKeys = new KeyTable();
+		g.personKeys = new KeyTable();
+		g.graph = null;
+		g.cities = null;
+		conn.setAutoCommit(true);
+		try {
+			g.dropGame(conn);
+			load(g, size);
+		} finally {
+			conn.setAutoCommit(false);
+		}
+	}
+
+	public void nextMoves(boolean graph, int i) throws SQLException {
+		String[] a = areas.get(i % areas.size());
+		(graph ? game : sql).getNextMoves(conn, player, a[1], a[0]);
+		conn.rollback();
+	}
+
+	public void move(boolean procedure) throws SQLException {
+		sql.moveProcedure = procedure;
+		try {
+			check(sql.changeLocation(conn, player, to[1], to[0]));
+		} finally {
+			rollback();
+		}
+	}
+
+	public void buyRoad(boolean sell) throws SQLException {
+		try {
+			check(sql.buyRoad(conn, player, from[1], from[0], to[1], to[0]));
+			if (sell) {
+				check(sql.sellRoad(conn, player, from[1], from[0], to[1], to[0]));
+			}
+		} finally {
+			rollback();
+		}
+	}
+
+	public void buyHotel(boolean sell) throws SQLException {
+		try {
+			check(sql.buyHotel(conn, player, "Benchotel", from[1], from[0]));
+			if (sell) {
+				check(sql.sellHotel(conn, player, from[1], from[0]));
+			}
+		} finally {
+			rollback();
+		}
+	}
+
+	public void scores() throws SQLException {
+		game.showScores(conn);
+		conn.rollback();
+	}
+
+	public void visitBonus(boolean orderByRandom) throws SQLException {
+		try {
+			if (orderByRandom) {
+				orderByRandom();
+			} else {
+				game.setVisitingBonus(conn);
+			}
+		} finally {
+			rollback();
+		}
+	}
+
+	/* The previous implementation of Game.setVisitingBonus. */
+	private void orderByRandom() throws SQLException {
+		int area;
+		PreparedStatement pick = game.prepare(conn, "SELECT * FROM Cities WHERE game_id = ? ORDER BY RANDOM()");
+		pick.setInt(1, game.gameId);
+		try (ResultSet rs = game.query(pick)) {
+			if (!rs.next()) {
+				return;
+			}
+			game.rows(pick, 1);
+			area = rs.getInt("area");
+		}
+		PreparedStatement st = game.prepare(conn, "UPDATE Cities SET visitbonus = 1000 WHERE(game_id = ? AND area = ?)");
+		st.setInt(1, game.gameId);
+		st.setInt(2, area);
+		game.update(st);
+	}
+
+	/* Without a fetch size the driver reads the whole result before the
+	 * first row; with one it reads through a cursor. */
+	public void listProperties(boolean cursor) throws SQLException {
+		copy.fetchSize = cursor ? game.fetchSize : 0;
+		try {
+			copy.listProperties(conn, lister);
+		} finally {
+			conn.rollback();
+		}
+	}
+
+	public void roadLookup(boolean textKeys, int i) throws SQLException {
+		int a = lookups[i % lookups.length];
+		PreparedStatement st;
+		if (textKeys) {
+			/* The old layout had no ids: the names come straight from the command. */
+			String name = copy.areaKeys.first(a);
+			String country = copy.areaKeys.second(a);
+			st = copy.prepare(conn, OLD_LOOKUP);
+			st.setInt(1, copy.gameId);
+			st.setString(2, country);
+			st.setString(3, name);
+			st.setString(4, country);
+			st.setString(5, name);
+		} else {
+			st = copy.prepare(conn, LOOKUP);
+			st.setInt(1, copy.gameId);
+			st.setInt(2, a);
+			st.setInt(3, a);
+		}
+		drain(st);
+	}
+
+	public void join(boolean textKeys) throws SQLException {
+		PreparedStatement st = copy.prepare(conn, textKeys ? OLD_JOIN : JOIN);
+		st.setInt(1, copy.gameId);
+		drain(st);
+	}
+
+	private void drain(PreparedStatement st) throws SQLException {
+		try (ResultSet rs = copy.query(st)) {
+			long n = 0;
+			while (rs.next()) {
+				++n;
+			}
+			copy.rows(st, n);
+		} finally {
+			conn.rollback();
+		}
+	}
+
+	/* Undoes a write; the player's cached location and budget go with it. */
+	private void rollback() throws SQLException {
+		conn.rollback();
+		player.invalidate();
+	}
+
+	private static void check(int result) throws SQLException {
+		if (result != 1) {
+			throw new SQLException("operation failed");
+		}
+	}
+
+	public void close() throws Exception {
+		try {
+			if (conn != null) {
+				conn.close();
+			}
+			if (game != null && game.pool != null) {
+				game.pool.close();
+			}
+		} finally {
+			if (pg != null) {
+				pg.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,40 @@
+package bench;
+
+/* The game operations that GameBenchmark measures. JMH cannot generate
+ * code for benchmarks in the default package, where the game lives, so
+ * the game side (GameFixture) implements this interface and is created by
+ * name. i numbers the calls, for operations that go through a list. */
+public interface Fixture extends AutoCloseable
+{
+	/* Starts a scratch server (postgres binaries from bindir, or the PATH
+	 * when it is null) and loads a generated world of the given size. */
+	void setUp(String bindir, int areas) throws Exception;
+
+	/* Loads another world of the same size line by line, into a game of its own. */
+	void load() throws Exception;
+
+	void nextMoves(boolean graph, int i) throws Exception;
+
+	void move(boolean procedure) throws Exception;
+
+	void buyRoad(boolean sell) throws Exception;
+
+	void buyHotel(boolean sell) throws Exception;
+
+	void scores() throws Exception;
+
+	/* Picks the visit bonus city from the CityList, or as before with
+	 * SELECT ... ORDER BY RANDOM(). */
+	void visitBonus(boolean orderByRandom) throws Exception;
+
+	/* Lists the properties of a player who owns a copy of every road and a
+	 * hotel in every city, read whole or through a cursor. */
+	void listProperties(boolean cursor) throws Exception;
+
+	/* The road lookup of next moves for an area, by id or by the TEXT
+	 * keys the tables had before. */
+	void roadLookup(boolean textKeys, int i) throws Exception;
+
+	/* Joins every road with its owner and both areas, by id or by TEXT keys. */
+	void join(boolean textKeys) throws Exception;
+}
@@ -0,0 +1,140 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/* The game's database operations on generated worlds of every size in
+ * areas, each on a scratch PostgreSQL server (LocalPostgres, through
+ * GameFixture). Operations that write are rolled back after every call,
+ * so every call sees the same world. Next to the game as it is, some
+ * benchmarks time what it replaced: next moves through next_moves(),
+ * moves through the triggers, the visit bonus by ORDER BY RANDOM(),
+ * listings read whole and the TEXT-keyed tables.
+ *
+ * java -jar benchmarks/target/benchmarks.jar [regexp] [-p areas=1000,10000] [-prof gc] [-jvmArgsAppend -Dpg=<postgres bin dir>]
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class GameBenchmark
+{
+	@Param({ "1000", "10000", "100000" })
+	public int areas;
+
+	private Fixture world;
+	private int calls;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		world = (Fixture) Class.forName("GameFixture").getDeclaredConstructor().newInstance();
+		world.setUp(System.getProperty("pg"), areas);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		world.close();
+	}
+
+	/* One load per trial, it takes long at the large sizes. */
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@Warmup(iterations = 0)
+	@Measurement(iterations = 1)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public void load() throws Exception {
+		world.load();
+	}
+
+	@Benchmark
+	public void nextMovesGraph() throws Exception {
+		world.nextMoves(true, calls++);
+	}
+
+	@Benchmark
+	public void nextMovesSql() throws Exception {
+		world.nextMoves(false, calls++);
+	}
+
+	@Benchmark
+	public void moveProcedure() throws Exception {
+		world.move(true);
+	}
+
+	@Benchmark
+	public void moveTriggers() throws Exception {
+		world.move(false);
+	}
+
+	@Benchmark
+	public void buyRoad() throws Exception {
+		world.buyRoad(false);
+	}
+
+	@Benchmark
+	public void buySellRoad() throws Exception {
+		world.buyRoad(true);
+	}
+
+	@Benchmark
+	public void buyHotel() throws Exception {
+		world.buyHotel(false);
+	}
+
+	@Benchmark
+	public void buySellHotel() throws Exception {
+		world.buyHotel(true);
+	}
+
+	@Benchmark
+	public void scores() throws Exception {
+		world.scores();
+	}
+
+	@Benchmark
+	public void visitBonus() throws Exception {
+		world.visitBonus(false);
+	}
+
+	@Benchmark
+	public void visitBonusOrderByRandom() throws Exception {
+		world.visitBonus(true);
+	}
+
+	/* With -prof gc these also show what the listing allocates. */
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public void listPropertiesCursor() throws Exception {
+		world.listProperties(true);
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public void listPropertiesWhole() throws Exception {
+		world.listProperties(false);
+	}
+
+	@Benchmark
+	public void roadLookupIntKeys() throws Exception {
+		world.roadLookup(false, calls++);
+	}
+
+	@Benchmark
+	public void roadLookupTextKeys() throws Exception {
+		world.roadLookup(true, calls++);
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public void joinIntKeys() throws Exception {
+		world.join(false);
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public void joinTextKeys() throws Exception {
+		world.join(true);
+	}
+}
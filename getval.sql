@@ -0,0 +1,19 @@
+-- Stand-in for the Task 2 constants that task3.sql reads with getval(),
+-- used by the benchmarks to set up scratch databases. Run it before task3.sql:
+--   psql -f getval.sql -f task3.sql
+
+CREATE TABLE Constants(
+name TEXT PRIMARY KEY,
+value NUMERIC NOT NULL
+);
+
+INSERT INTO Constants VALUES
+('roadprice', 456.9),
+('hotelprice', 789.2),
+('roadtax', 13.5),
+('hotelrefund', 0.50),
+('cityvisit', 102030.3);
+
+CREATE FUNCTION getval(qname TEXT) RETURNS NUMERIC AS $$
+SELECT value FROM Constants WHERE name = qname;
+$$ LANGUAGE sql STABLE;
@@ -1,131 +1,292 @@
+-- Every table holds the rows of many games, told apart by game_id, which
+-- leads every key and partitions every table by list: each game has its own
+-- partition of each table (create_game()), with its own indexes, and is
+-- dropped by detaching them (drop_game()). Queries that filter on game_id,
+-- as all of Game's do, only touch the game's partitions.
 CREATE TABLE Countries(
+game_id INT NOT NULL,
 name TEXT CHECK(name ~ '^[^0-9]*$'),
-PRIMARY KEY(name)
-);
-
+PRIMARY KEY(game_id,name)
+) PARTITION BY LIST (game_id);
+
+-- Areas and persons are keyed by an INT id per game, assigned by Game's
+-- KeyTable when the world is loaded or a player is created, and every
+-- other table refers to them by id. Id 0 is the government: its area
+-- ('', '') and the person ('', ''). The names stay unique per game and are
+-- only used to turn commands into ids.
 CREATE TABLE Areas(
+game_id INT NOT NULL,
+id INT NOT NULL CHECK (id >= 0),
 country TEXT NOT NULL,
-name TEXT NOT NULL CHECK (name ~ '^[^0-9]*$'), 
+name TEXT NOT NULL CHECK (name ~ '^[^0-9]*$'),
 population INT NOT NULL CHECK (population >= 0),
-PRIMARY KEY(name,country), 
-FOREIGN KEY(country) REFERENCES Countries(name)
-);
+PRIMARY KEY(game_id,id),
+UNIQUE(game_id,name,country),
+FOREIGN KEY(game_id,country) REFERENCES Countries(game_id,name)
+) PARTITION BY LIST (game_id);
 
 CREATE TABLE Towns(
-country TEXT NOT NULL,
-name TEXT NOT NULL, 
-PRIMARY KEY(name,country),
-FOREIGN KEY(country,name) REFERENCES Areas(country,name)
-);
+game_id INT NOT NULL,
+area INT NOT NULL,
+PRIMARY KEY(game_id,area),
+FOREIGN KEY(game_id,area) REFERENCES Areas(game_id,id)
+) PARTITION BY LIST (game_id);
 
 CREATE TABLE Cities (
-country TEXT NOT NULL,
-name TEXT NOT NULL,
+game_id INT NOT NULL,
+area INT NOT NULL,
 visitbonus NUMERIC NOT NULL CHECK (visitbonus >=0),
-PRIMARY KEY (name,country), 
-FOREIGN KEY(country,name) REFERENCES Areas(country,name)
-);
+PRIMARY KEY (game_id,area),
+FOREIGN KEY(game_id,area) REFERENCES Areas(game_id,id)
+) PARTITION BY LIST (game_id);
 
 CREATE TABLE Persons(
+game_id INT NOT NULL,
+id INT NOT NULL CHECK (id >= 0),
 country TEXT NOT NULL,
-personnummer TEXT NOT NULL, 
-name TEXT NOT NULL, 
-locationcountry TEXT NOT NULL, 
-locationarea TEXT NOT NULL, 
+personnummer TEXT NOT NULL,
+name TEXT NOT NULL,
+location INT NOT NULL,
 budget NUMERIC NOT NULL CHECK(budget >= 0.0),
-PRIMARY KEY(personnummer,country), 
-FOREIGN KEY (country) REFERENCES Countries(name), 
-FOREIGN KEY (locationcountry,locationarea) REFERENCES Areas(country,name), 
+PRIMARY KEY(game_id,id),
+UNIQUE(game_id,personnummer,country),
+FOREIGN KEY (game_id,country) REFERENCES Countries(game_id,name),
+FOREIGN KEY (game_id,location) REFERENCES Areas(game_id,id),
 CONSTRAINT valid_persnr CHECK (personnummer ~'^[0-9]{8}-[0-9]{4}$' OR (personnummer= '' AND country = '')),
+CONSTRAINT government CHECK ((id = 0) = (personnummer = '')),
 CONSTRAINT pos_budget CHECK (budget >= 0.0)
-);
+) PARTITION BY LIST (game_id);
 
 CREATE TABLE Hotels(
+game_id INT NOT NULL,
 name TEXT NOT NULL,
-locationcountry TEXT NOT NULL, 
-locationname TEXT NOT NULL, 
-ownercountry TEXT NOT NULL, 
-ownerpersonnummer TEXT NOT NULL,
-PRIMARY KEY (locationcountry,locationname,ownercountry,ownerpersonnummer), 
-FOREIGN KEY (locationcountry,locationname) REFERENCES Cities(country,name),
-FOREIGN KEY (ownercountry,ownerpersonnummer) REFERENCES Persons(country,personnummer)
-);
+city INT NOT NULL,
+owner INT NOT NULL,
+PRIMARY KEY (game_id,city,owner),
+FOREIGN KEY (game_id,city) REFERENCES Cities(game_id,area),
+FOREIGN KEY (game_id,owner) REFERENCES Persons(game_id,id)
+) PARTITION BY LIST (game_id);
 
 CREATE TABLE Roads(
-fromcountry  TEXT NOT NULL,
-fromarea TEXT NOT NULL,
-tocountry TEXT NOT NULL,
-toarea TEXT NOT NULL,
-ownercountry TEXT NOT NULL,
-ownerpersonnummer TEXT NOT NULL,
+game_id INT NOT NULL,
+fromarea INT NOT NULL,
+toarea INT NOT NULL,
+owner INT NOT NULL,
 roadtax NUMERIC NOT NULL CHECK (roadtax >=0) DEFAULT getval('roadtax'),
-PRIMARY KEY (fromcountry,fromarea,tocountry,toarea,ownercountry,ownerpersonnummer),
-FOREIGN KEY (fromcountry,fromarea) REFERENCES Areas(country,name), 
-FOREIGN KEY (tocountry,toarea) REFERENCES Areas(country,name),
-FOREIGN KEY (ownercountry,ownerpersonnummer) REFERENCES Persons(country,personnummer),
-CONSTRAINT same_start_end CHECK ((toarea,tocountry) <> (fromarea,fromcountry))
-);
+PRIMARY KEY (game_id,fromarea,toarea,owner),
+FOREIGN KEY (game_id,fromarea) REFERENCES Areas(game_id,id),
+FOREIGN KEY (game_id,toarea) REFERENCES Areas(game_id,id),
+FOREIGN KEY (game_id,owner) REFERENCES Persons(game_id,id),
+CONSTRAINT same_start_end CHECK (toarea <> fromarea)
+) PARTITION BY LIST (game_id);
+
+
+-- Hotel and road counts per person, with the asset and refund values they
+-- are worth. Kept up to date by the triggers on Persons, Hotels and Roads so
+-- that scores do not have to count every property of every person.
+CREATE TABLE PersonAssets(
+game_id INT NOT NULL,
+person INT NOT NULL,
+hotels INT NOT NULL DEFAULT 0 CHECK (hotels >= 0),
+roads INT NOT NULL DEFAULT 0 CHECK (roads >= 0),
+assets NUMERIC NOT NULL DEFAULT 0,
+reclaimable NUMERIC NOT NULL DEFAULT 0,
+PRIMARY KEY (game_id,person),
+FOREIGN KEY (game_id,person) REFERENCES Persons(game_id,id) ON DELETE CASCADE
+) PARTITION BY LIST (game_id);
+
+
+-- Roads are looked up by either endpoint and by owner. The primary key
+-- already starts with (game_id, fromarea), so it serves the other end.
+-- Indexes on the partitioned tables are created on every partition, so
+-- each game's indexes only hold that game's rows.
+CREATE INDEX roads_to ON Roads(game_id, toarea);
+CREATE INDEX roads_owner ON Roads(game_id, owner);
+CREATE INDEX hotels_owner ON Hotels(game_id, owner);
+
+
+-- Tables in foreign key order, and the name of a game's partition of one.
+CREATE FUNCTION game_tables() RETURNS TEXT[] AS $$
+SELECT ARRAY['countries', 'areas', 'towns', 'cities', 'persons', 'hotels', 'roads', 'personassets'];
+$$ LANGUAGE sql IMMUTABLE;
+
+CREATE FUNCTION game_partition(TEXT, INT) RETURNS TEXT AS $$
+SELECT $1 || '_g' || $2;
+$$ LANGUAGE sql IMMUTABLE;
+
+
+-- Creates the partitions of game $1 in every table, unless they exist.
+CREATE FUNCTION create_game(INT) RETURNS VOID AS $$
+ DECLARE t TEXT;
+ BEGIN
+ IF $1 < 0 THEN
+  RAISE EXCEPTION 'Invalid game id %', $1;
+ END IF;
+ FOREACH t IN ARRAY game_tables() LOOP
+  EXECUTE format('CREATE TABLE IF NOT EXISTS %I PARTITION OF %I FOR VALUES IN (%s)', game_partition(t, $1), t, $1);
+ END LOOP;
+ END;
+$$ LANGUAGE 'plpgsql';
 
 
-CREATE VIEW NextMoves AS
-SELECT country AS personcountry,personnummer,locationcountry AS country,locationarea AS area,destarea,destcountry, MIN(CASE WHEN personnummer = ownerpersonnummer AND ownercountry = country THEN 0 ELSE cost END) AS cost FROM
-(SELECT Roads.ownerpersonnummer,Roads.ownercountry,Persons.country,Persons.personnummer,Persons.locationcountry,Persons.locationarea,
-Roads.toarea AS destarea, Roads.tocountry AS destcountry, Roads.roadtax AS cost
-FROM Persons,Roads 
-WHERE (Persons.locationcountry = Roads.fromcountry 
-AND Persons.locationarea = Roads.fromarea AND Persons.personnummer <> '')
-UNION 
-SELECT Roads.ownerpersonnummer,Roads.ownercountry, Persons.country,Persons.personnummer,Persons.locationcountry,Persons.locationarea,
-Roads.fromarea AS destarea, Roads.fromcountry AS destcountry, Roads.roadtax AS cost
-FROM Persons,Roads 
-WHERE (Persons.locationcountry = Roads.tocountry 
-AND Persons.locationarea = Roads.toarea AND Persons.personnummer <> '')
+-- Drops game $1: its partitions are detached, referencing tables first, and
+-- dropped. Nothing is deleted row by row and the other games' partitions
+-- and indexes are not touched.
+CREATE FUNCTION drop_game(INT) RETURNS VOID AS $$
+ DECLARE
+  tables TEXT[] := game_tables();
+  t TEXT;
+ BEGIN
+ FOR i IN REVERSE array_length(tables, 1) .. 1 LOOP
+  t := tables[i];
+  IF to_regclass(game_partition(t, $1)) IS NOT NULL THEN
+   EXECUTE format('ALTER TABLE %I DETACH PARTITION %I', t, game_partition(t, $1));
+   EXECUTE format('DROP TABLE %I', game_partition(t, $1));
+  END IF;
+ END LOOP;
+ END;
+$$ LANGUAGE 'plpgsql';
+
+
+-- Ids of the games made by copy_game(), far above the ids picked by hand.
+CREATE SEQUENCE game_ids START 1000000;
+
+-- Creates a new game with the world of game $1 (its countries, areas, towns,
+-- cities, the government and the government's roads, with no players and
+-- no visit bonus) and returns its id. Areas keep their ids.
+CREATE FUNCTION copy_game(INT) RETURNS INT AS $$
+ DECLARE g INT := nextval('game_ids');
+ BEGIN
+ PERFORM create_game(g);
+ INSERT INTO Countries SELECT g, name FROM Countries WHERE game_id = $1;
+ INSERT INTO Areas SELECT g, id, country, name, population FROM Areas WHERE game_id = $1;
+ INSERT INTO Towns SELECT g, area FROM Towns WHERE game_id = $1;
+ INSERT INTO Cities SELECT g, area, 0 FROM Cities WHERE game_id = $1;
+ INSERT INTO Persons SELECT g, id, country, personnummer, name, location, budget FROM Persons WHERE game_id = $1 AND id = 0;
+ INSERT INTO Roads SELECT g, fromarea, toarea, owner, roadtax FROM Roads WHERE game_id = $1 AND owner = 0;
+ RETURN g;
+ END;
+$$ LANGUAGE 'plpgsql';
+
+
+-- The moves of a person from an area: every neighbouring area once, with the
+-- cheapest road tax, where the person's own roads cost nothing.
+-- Parameters: game, person, area.
+-- Being a single STABLE SQL query it is inlined into the calling query, so
+-- both directions are index lookups on the game's partition of Roads.
+CREATE FUNCTION next_moves(INT, INT, INT)
+RETURNS TABLE(destarea INT, cost NUMERIC) AS $$
+SELECT tmp.destarea, MIN(CASE WHEN owner = $2 THEN 0 ELSE roadtax END) FROM
+(SELECT toarea AS destarea, owner, roadtax
+FROM Roads WHERE game_id = $1 AND fromarea = $3
+UNION ALL
+SELECT fromarea, owner, roadtax
+FROM Roads WHERE game_id = $1 AND toarea = $3
 ) AS tmp
-GROUP BY tmp.country,personnummer,locationcountry,locationarea,
-destarea,destcountry ; 
+GROUP BY tmp.destarea;
+$$ LANGUAGE sql STABLE;
 
 
+CREATE VIEW NextMoves AS
+SELECT Persons.game_id, Persons.id AS person, Persons.location AS area, m.destarea, m.cost
+FROM Persons, LATERAL next_moves(Persons.game_id, Persons.id, Persons.location) AS m
+WHERE Persons.id <> 0;
+
+
+-- Moves for every person from every area. Kept for reference; Game uses
+-- next_moves() for a single person and area instead.
 CREATE VIEW NextMoves2 AS
-SELECT country AS personcountry,personnummer,fromar,fromcr,destarea,destcountry, MIN(CASE WHEN personnummer = ownerpersonnummer AND ownercountry = country THEN 0 ELSE cost END) AS cost FROM
-(SELECT Roads.fromarea AS fromar, Roads.fromcountry AS fromcr, Roads.ownerpersonnummer,Roads.ownercountry,Persons.country,Persons.personnummer,
-Roads.toarea AS destarea, Roads.tocountry AS destcountry, Roads.roadtax AS cost
-FROM Persons,Roads 
-WHERE ( Persons.personnummer <> '')
-UNION 
-SELECT Roads.toarea AS fromar, Roads.tocountry AS fromcr ,Roads.ownerpersonnummer,Roads.ownercountry, Persons.country,Persons.personnummer,
-Roads.fromarea AS destarea, Roads.fromcountry AS destcountry, Roads.roadtax AS cost
-FROM Persons,Roads 
-WHERE (Persons.personnummer <> '')
+SELECT game_id, person, fromarea, destarea, MIN(CASE WHEN person = owner THEN 0 ELSE cost END) AS cost FROM
+(SELECT Persons.game_id, Persons.id AS person, Roads.fromarea, Roads.toarea AS destarea, Roads.owner, Roads.roadtax AS cost
+FROM Persons JOIN Roads ON (Roads.game_id = Persons.game_id)
+WHERE (Persons.id <> 0)
+UNION
+SELECT Persons.game_id, Persons.id AS person, Roads.toarea, Roads.fromarea, Roads.owner, Roads.roadtax
+FROM Persons JOIN Roads ON (Roads.game_id = Persons.game_id)
+WHERE (Persons.id <> 0)
 ) AS tmp
-GROUP BY tmp.country,personnummer,destarea,destcountry,fromar,fromcr; 
+GROUP BY tmp.game_id,person,fromarea,destarea;
 
 
+-- The views join on game_id, so a condition on it reaches both tables and
+-- prunes them to the game's partitions.
 CREATE VIEW AssetSummary AS
-SELECT Persons.country,Persons.personnummer,Persons.budget, 
-(SELECT COUNT(ownerpersonnummer) 
-FROM Hotels WHERE ownerpersonnummer = personnummer AND ownercountry = country)*getval('hotelprice') +(SELECT COUNT(ownerpersonnummer) FROM Roads WHERE ownerpersonnummer = personnummer AND ownercountry = country)*getval('roadprice') AS assets,(SELECT 
-COUNT(Hotels.ownerpersonnummer) FROM Hotels WHERE (ownercountry = country AND ownerpersonnummer = personnummer))*getval('hotelrefund')*getval('hotelprice') AS reclaimable
-FROM Persons WHERE personnummer <> ''
+SELECT Persons.game_id, Persons.id AS person, Persons.budget, PersonAssets.assets, PersonAssets.reclaimable
+FROM Persons JOIN PersonAssets ON (PersonAssets.game_id = Persons.game_id AND PersonAssets.person = Persons.id)
+WHERE Persons.id <> 0
 ;
 
 
+-- Consistency check: persons whose PersonAssets row differs from counting
+-- their hotels and roads from scratch. Should always be empty.
+CREATE VIEW PersonAssetsCheck AS
+SELECT * FROM
+(SELECT Persons.game_id, Persons.id AS person,
+(SELECT COUNT(*) FROM Hotels WHERE game_id = Persons.game_id AND owner = Persons.id) AS hotels,
+(SELECT COUNT(*) FROM Roads WHERE game_id = Persons.game_id AND owner = Persons.id) AS roads,
+PersonAssets.hotels AS storedhotels, PersonAssets.roads AS storedroads,
+PersonAssets.assets AS storedassets, PersonAssets.reclaimable AS storedreclaimable
+FROM Persons LEFT JOIN PersonAssets ON (PersonAssets.game_id = Persons.game_id AND PersonAssets.person = Persons.id)
+WHERE Persons.id <> 0) AS tmp
+WHERE storedhotels IS DISTINCT FROM hotels OR storedroads IS DISTINCT FROM roads
+OR storedassets IS DISTINCT FROM hotels*getval('hotelprice') + roads*getval('roadprice')
+OR storedreclaimable IS DISTINCT FROM hotels*getval('hotelrefund')*getval('hotelprice')
+;
+
+
+-- Changes the hotel and road counts of person $2 of game $1 by the given
+-- amounts.
+CREATE FUNCTION add_assets(INT, INT, INT, INT) RETURNS VOID AS $$
+UPDATE PersonAssets
+SET hotels = hotels + $3, roads = roads + $4,
+assets = assets + $3*getval('hotelprice') + $4*getval('roadprice'),
+reclaimable = reclaimable + $3*getval('hotelrefund')*getval('hotelprice')
+WHERE game_id = $1 AND person = $2;
+$$ LANGUAGE sql;
+
+
+-- Recomputes PersonAssets of game $1 from Hotels and Roads, e.g. after a
+-- bulk restore.
+CREATE FUNCTION rebuild_person_assets(INT) RETURNS VOID AS $$
+DELETE FROM PersonAssets WHERE game_id = $1;
+INSERT INTO PersonAssets
+SELECT $1, id, hotels, roads,
+hotels*getval('hotelprice') + roads*getval('roadprice'),
+hotels*getval('hotelrefund')*getval('hotelprice')
+FROM (SELECT Persons.id,
+(SELECT COUNT(*) FROM Hotels WHERE game_id = $1 AND owner = Persons.id) AS hotels,
+(SELECT COUNT(*) FROM Roads WHERE game_id = $1 AND owner = Persons.id) AS roads
+FROM Persons WHERE game_id = $1) AS tmp;
+$$ LANGUAGE sql;
+
+
+-- The triggers only look at rows of the game of the row they fire for.
+CREATE FUNCTION insPersons() RETURNS TRIGGER AS $$
+ BEGIN
+  INSERT INTO PersonAssets (game_id, person) VALUES (NEW.game_id, NEW.id);
+  RETURN NEW;
+ END;
+$$ LANGUAGE 'plpgsql';
+
 
 CREATE FUNCTION insRoads() RETURNS TRIGGER AS $$
- BEGIN 
-  IF EXISTS( 
-  SELECT Roads.fromarea,Roads.toarea,Roads.fromcountry,Roads.tocountry,Roads.ownerpersonnummer,Roads.ownercountry 
-  FROM Roads 
-  WHERE ((fromarea = NEW.fromarea OR toarea = NEW.fromarea) AND (fromarea = NEW.toarea OR toarea = NEW.toarea) AND (fromcountry = NEW.fromcountry OR tocountry = NEW.fromcountry) AND(fromcountry = NEW.tocountry OR fromcountry = NEW.tocountry) AND (ownercountry=NEW.ownercountry AND ownerpersonnummer = NEW.ownerpersonnummer)))
+ BEGIN
+  IF EXISTS(
+  SELECT 1 FROM Roads
+  WHERE game_id = NEW.game_id AND owner = NEW.owner
+  AND ((fromarea = NEW.fromarea AND toarea = NEW.toarea)
+  OR (fromarea = NEW.toarea AND toarea = NEW.fromarea)))
     THEN RAISE EXCEPTION 'Road already exist for that owner';
   END IF;
-  IF(NEW.ownerpersonnummer <> '') THEN
-   IF NOT EXISTS(SELECT Persons.personnummer,Persons.country,Persons.locationarea,Persons.locationcountry 
-    FROM Persons 
-    WHERE (Persons.personnummer = NEW.ownerpersonnummer AND Persons.country = NEW.ownercountry AND (Persons.locationcountry = NEW.fromcountry OR Persons.locationcountry = NEW.tocountry) AND (Persons.locationarea = NEW.fromarea OR Persons.locationarea = NEW.toarea)))  
+  IF(NEW.owner <> 0) THEN
+   IF NOT EXISTS(SELECT 1
+    FROM Persons
+    WHERE (Persons.game_id = NEW.game_id AND Persons.id = NEW.owner AND Persons.location IN (NEW.fromarea, NEW.toarea)))
     THEN RAISE EXCEPTION 'owner not located in start or endpoint of road';
    ELSE
    UPDATE Persons
-   SET budget = budget-getval('roadprice') WHERE (Persons.country = NEW.ownercountry AND Persons.personnummer = NEW.ownerpersonnummer); 
+   SET budget = budget-getval('roadprice') WHERE (Persons.game_id = NEW.game_id AND Persons.id = NEW.owner);
+   PERFORM add_assets(NEW.game_id, NEW.owner, 0, 1);
    RETURN NEW;
   END IF;
  ELSE
@@ -137,14 +298,15 @@ $$ LANGUAGE 'plpgsql';
 
 CREATE FUNCTION insHotel() RETURNS TRIGGER AS $$
  BEGIN
-   IF EXISTS(SELECT ownerpersonnummer,ownercountry,locationcountry,locationname 
-   FROM Hotels 
-   WHERE(ownerpersonnummer = NEW.ownerpersonnummer AND ownercountry = NEW.ownercountry AND locationcountry = NEW.locationcountry AND locationname = NEW.locationname))
+   IF EXISTS(SELECT 1
+   FROM Hotels
+   WHERE(game_id = NEW.game_id AND owner = NEW.owner AND city = NEW.city))
      THEN RAISE EXCEPTION 'Hotel already exist in that city for this owner';
    ELSE
      UPDATE Persons
      SET budget = budget - getval('hotelprice')
-     WHERE (Persons.country = NEW.ownercountry AND Persons.personnummer = NEW.ownerpersonnummer);
+     WHERE (Persons.game_id = NEW.game_id AND Persons.id = NEW.owner);
+     PERFORM add_assets(NEW.game_id, NEW.owner, 1, 0);
      RETURN NEW;
    END IF;
   END;
@@ -154,24 +316,39 @@ $$ LANGUAGE 'plpgsql';
 CREATE FUNCTION delHotel() RETURNS TRIGGER AS $$
  BEGIN
     UPDATE Persons
-    SET budget = budget + getval('hotelprice')*getval('hotelrefund') 
-    WHERE (Persons.personnummer = OLD.ownerpersonnummer AND Persons.country = OLD.ownercountry);
+    SET budget = budget + getval('hotelprice')*getval('hotelrefund')
+    WHERE (Persons.game_id = OLD.game_id AND Persons.id = OLD.owner);
+    PERFORM add_assets(OLD.game_id, OLD.owner, -1, 0);
     RETURN NEW;
 END;
 $$ LANGUAGE 'plpgsql';
 
 
+CREATE FUNCTION delRoads() RETURNS TRIGGER AS $$
+ BEGIN
+  IF(OLD.owner <> 0) THEN
+   PERFORM add_assets(OLD.game_id, OLD.owner, 0, -1);
+  END IF;
+  RETURN OLD;
+ END;
+$$ LANGUAGE 'plpgsql';
+
+
 
 CREATE FUNCTION updHotel() RETURNS TRIGGER AS $$
  BEGIN
-   IF EXISTS(SELECT ownerpersonnummer,ownercountry,locationcountry,locationname 
-   FROM Hotels 
-   WHERE(ownerpersonnummer = NEW.ownerpersonnummer AND ownercountry = NEW.ownercountry AND locationcountry = NEW.locationcountry AND locationname = NEW.locationname))
+   IF EXISTS(SELECT 1
+   FROM Hotels
+   WHERE(game_id = NEW.game_id AND owner = NEW.owner AND city = NEW.city))
      THEN RAISE EXCEPTION 'Hotel already exist in that city for this owner';
    END IF;
-   IF(NEW.locationcountry <> OLD.locationcountry OR NEW.locationname <> OLD.locationname)
+   IF(NEW.game_id <> OLD.game_id OR NEW.city <> OLD.city)
      THEN RAISE EXCEPTION 'Cannot move hotel';
-   ELSE 
+   ELSE
+     IF(NEW.owner <> OLD.owner) THEN
+       PERFORM add_assets(OLD.game_id, OLD.owner, -1, 0);
+       PERFORM add_assets(NEW.game_id, NEW.owner, 1, 0);
+     END IF;
      RETURN NEW;
    END IF;
 END;
@@ -180,7 +357,7 @@ $$ LANGUAGE 'plpgsql';
 
 CREATE FUNCTION updRoads() RETURNS TRIGGER AS $$
  BEGIN
-  IF(OLD.fromarea <> NEW.fromarea OR OLD.toarea <> NEW.toarea OR OLD.tocountry <> NEW.tocountry OR OLD.fromcountry <> NEW.fromcountry OR OLD.ownercountry <> NEW.ownercountry OR OLD.ownerpersonnummer <> NEW.ownerpersonnummer)
+  IF(OLD.game_id <> NEW.game_id OR OLD.fromarea <> NEW.fromarea OR OLD.toarea <> NEW.toarea OR OLD.owner <> NEW.owner)
    THEN RAISE EXCEPTION 'Only roadtaxes can be changed';
   ELSE
    RETURN NEW;
@@ -188,53 +365,63 @@ CREATE FUNCTION updRoads() RETURNS TRIGGER AS $$
  END;
 $$ LANGUAGE 'plpgsql';
 
+-- updPersons and updPersons2 do nothing while move_player() runs, it does
+-- the same accounting itself.
 CREATE FUNCTION updPersons() RETURNS TRIGGER AS $$
  DECLARE mincost NUMERIC;
  BEGIN
- IF(NEW.locationcountry <> OLD.locationcountry OR NEW.locationarea <> OLD.locationarea) THEN
-   IF NOT EXISTS (SELECT toarea,fromarea,tocountry,fromcountry FROM ROADS 
-   WHERE((toarea = NEW.locationarea OR fromarea = NEW.locationarea) AND (tocountry = NEW.locationcountry OR fromcountry = NEW.locationcountry)
-   AND (fromarea = OLD.locationarea OR toarea = OLD.locationarea) AND (fromcountry = OLD.locationcountry OR tocountry = OLD.locationcountry)))
+ IF current_setting('game.moving', true) = 'on' THEN
+  RETURN NEW;
+ END IF;
+ IF(NEW.location <> OLD.location) THEN
+   IF NOT EXISTS (SELECT 1 FROM Roads
+   WHERE game_id = NEW.game_id
+   AND ((fromarea = OLD.location AND toarea = NEW.location) OR (fromarea = NEW.location AND toarea = OLD.location)))
      THEN RAISE EXCEPTION 'No road between areas';
    END IF;
-   IF EXISTS (SELECT toarea,fromarea,tocountry,fromcountry,ownercountry,ownerpersonnummer FROM ROADS 
-   WHERE((ownerpersonnummer = OLD.personnummer OR ownerpersonnummer = '') AND (ownercountry = OLD.country OR ownercountry = '') AND (toarea = NEW.locationarea OR fromarea = NEW.locationarea) AND (tocountry = NEW.locationcountry OR fromcountry = NEW.locationcountry)
-   AND (fromarea = OLD.locationarea OR toarea = OLD.locationarea) AND (fromcountry = OLD.locationcountry OR tocountry = OLD.locationcountry)))
+   IF EXISTS (SELECT 1 FROM Roads
+   WHERE game_id = NEW.game_id AND owner IN (OLD.id, 0)
+   AND ((fromarea = OLD.location AND toarea = NEW.location) OR (fromarea = NEW.location AND toarea = OLD.location)))
      THEN RETURN NEW;
    ELSE
-    mincost:= (SELECT MIN(cost) FROM  NextMoves WHERE (destarea = NEW.locationarea AND destcountry = NEW.locationcountry AND area = OLD.locationarea AND country = OLD.locationcountry AND personnummer = NEW.personnummer AND personcountry = NEW.country));
+    mincost:= (SELECT MIN(cost) FROM next_moves(NEW.game_id, NEW.id, OLD.location)
+    WHERE destarea = NEW.location);
     NEW.budget = OLD.budget-mincost;
     UPDATE Persons
     SET budget = budget+mincost
-    WHERE ((Persons.personnummer,Persons.country) IN (SELECT ownerpersonnummer,ownercountry FROM Roads 
-    WHERE(roadtax = mincost AND (fromarea = OLD.locationarea OR fromarea = NEW.locationarea) AND (fromcountry = OLD.locationcountry OR fromcountry = NEW.locationcountry) AND (tocountry = OLD.locationcountry OR tocountry = NEW.locationcountry) AND (toarea = OLD.locationarea OR toarea = NEW.locationarea))));
+    WHERE Persons.game_id = NEW.game_id AND Persons.id IN (SELECT owner FROM Roads
+    WHERE game_id = NEW.game_id AND roadtax = mincost
+    AND ((fromarea = OLD.location AND toarea = NEW.location) OR (fromarea = NEW.location AND toarea = OLD.location)));
     RETURN NEW;
     END IF;
   ELSE
  RETURN NEW;
  END IF;
- END; 
+ END;
 $$ LANGUAGE 'plpgsql';
 
 CREATE FUNCTION updPersons2() RETURNS TRIGGER AS $$
  BEGIN
- IF(OLD.locationcountry <> NEW.locationcountry OR OLD.locationarea <> NEW.locationarea) THEN
- IF((SELECT COUNT(Hotels.locationname) AS nbrHotels FROM Hotels WHERE(Hotels.locationname = NEW.locationarea AND Hotels.locationcountry = NEW.locationcountry)) > 0)
+ IF current_setting('game.moving', true) = 'on' THEN
+  RETURN NEW;
+ END IF;
+ IF(OLD.location <> NEW.location) THEN
+ IF((SELECT COUNT(*) FROM Hotels WHERE(Hotels.game_id = NEW.game_id AND Hotels.city = NEW.location)) > 0)
   THEN UPDATE Persons
-   SET budget = budget - getval('cityvisit') WHERE ((Persons.personnummer = NEW.personnummer OR Persons.personnummer = NEW.personnummer) AND (Persons.country = OLD.country OR Persons.country = NEW.country));
+   SET budget = budget - getval('cityvisit') WHERE Persons.game_id = NEW.game_id AND Persons.id = NEW.id;
   UPDATE Persons
-   SET budget = (budget + getval('cityvisit')/(SELECT COUNT(Hotels.locationname) FROM Hotels 
-   WHERE(Hotels.locationname = NEW.locationarea AND Hotels.locationcountry = NEW.locationcountry))) 
-   WHERE ((Persons.personnummer,Persons.country) IN (SELECT ownerpersonnummer,ownercountry FROM Hotels WHERE(Hotels.locationname = NEW.locationarea AND Hotels.locationcountry = NEW.locationcountry)));
+   SET budget = (budget + getval('cityvisit')/(SELECT COUNT(*) FROM Hotels
+   WHERE(Hotels.game_id = NEW.game_id AND Hotels.city = NEW.location)))
+   WHERE Persons.game_id = NEW.game_id AND Persons.id IN (SELECT owner FROM Hotels WHERE(Hotels.game_id = NEW.game_id AND Hotels.city = NEW.location));
  END IF;
- IF EXISTS (SELECT visitbonus FROM Cities WHERE (country = NEW.locationcountry AND name = NEW.locationarea))
+ IF EXISTS (SELECT visitbonus FROM Cities WHERE (game_id = NEW.game_id AND area = NEW.location))
   THEN UPDATE Persons
-   SET budget = budget+(SELECT visitbonus FROM Cities WHERE (country = NEW.locationcountry AND name = NEW.locationarea))
-   WHERE (Persons.personnummer = NEW.personnummer AND Persons.country = NEW.country);
+   SET budget = budget+(SELECT visitbonus FROM Cities WHERE (game_id = NEW.game_id AND area = NEW.location))
+   WHERE (Persons.game_id = NEW.game_id AND Persons.id = NEW.id);
   UPDATE Cities
-   SET visitbonus = 0 WHERE (country = NEW.locationcountry AND name = NEW.locationarea);
+   SET visitbonus = 0 WHERE (game_id = NEW.game_id AND area = NEW.location);
   RETURN NEW;
- ELSE 
+ ELSE
  RETURN NEW;
  END IF;
 ELSE
@@ -243,7 +430,112 @@ END IF;
 END;
 $$ LANGUAGE 'plpgsql';
 
+-- Locks the Persons rows that a move of person $2 of game $1 to area $3
+-- updates: the mover, the owners of the roads between the two areas and
+-- the owners of the hotels at the destination. The rows are locked in key
+-- order, so moves that credit each other wait instead of deadlocking. The
+-- government is never paid and is left unlocked, as every world road is
+-- its. If the mover moved meanwhile the set is computed again.
+CREATE FUNCTION lock_move(INT, INT, INT) RETURNS VOID AS $$
+ DECLARE
+  oldarea INT;
+ BEGIN
+ LOOP
+  SELECT p.location INTO oldarea
+   FROM Persons p WHERE p.game_id = $1 AND p.id = $2;
+  IF NOT FOUND THEN
+   RETURN;
+  END IF;
+  PERFORM 1 FROM Persons p
+   WHERE p.game_id = $1 AND p.id IN (
+    SELECT $2
+    UNION SELECT r.owner FROM Roads r
+    WHERE r.game_id = $1 AND r.owner <> 0
+    AND ((r.fromarea = oldarea AND r.toarea = $3) OR (r.fromarea = $3 AND r.toarea = oldarea))
+    UNION SELECT h.owner FROM Hotels h
+    WHERE h.game_id = $1 AND h.city = $3)
+   ORDER BY p.id
+   FOR UPDATE OF p;
+  EXIT WHEN EXISTS (SELECT 1 FROM Persons p WHERE p.game_id = $1 AND p.id = $2 AND p.location = oldarea);
+ END LOOP;
+ END;
+$$ LANGUAGE 'plpgsql';
 
+-- Moves person $2 of game $1 to area $3 and settles road tax, hotel fees
+-- and the visit bonus like the updPersons and updPersons2 triggers, in a
+-- handful of set-based statements. Returns the new location, what was
+-- paid and earned, and the new budget.
+CREATE FUNCTION move_player(INT, INT, INT)
+RETURNS TABLE(location INT, tax NUMERIC, fees NUMERIC, bonus NUMERIC, budget NUMERIC) AS $$
+ DECLARE
+  oldarea INT;
+  oldbudget NUMERIC;
+  roads INT;
+  free BOOLEAN;
+  hotels INT;
+ BEGIN
+ PERFORM lock_move($1, $2, $3);
+ SELECT p.location, p.budget INTO oldarea, oldbudget
+  FROM Persons p WHERE p.game_id = $1 AND p.id = $2 FOR UPDATE;
+ IF NOT FOUND THEN
+  RAISE EXCEPTION 'No such person';
+ END IF;
+ IF oldarea = $3 THEN
+  RETURN QUERY SELECT $3, 0::NUMERIC, 0::NUMERIC, 0::NUMERIC, oldbudget;
+  RETURN;
+ END IF;
+
+ -- All roads between the two areas at once: is there one, is one of them
+ -- ours or the government's, and the cheapest tax.
+ SELECT COUNT(*), COALESCE(bool_or(r.owner IN ($2, 0)), FALSE), MIN(r.roadtax)
+  INTO roads, free, tax
+  FROM Roads r
+  WHERE r.game_id = $1
+  AND ((r.fromarea = oldarea AND r.toarea = $3) OR (r.fromarea = $3 AND r.toarea = oldarea));
+ IF roads = 0 THEN
+  RAISE EXCEPTION 'No road between areas';
+ END IF;
+ IF free THEN
+  tax := 0;
+ END IF;
+
+ SELECT COUNT(*) INTO hotels FROM Hotels h WHERE h.game_id = $1 AND h.city = $3;
+ fees := CASE WHEN hotels > 0 THEN getval('cityvisit') ELSE 0 END;
+ SELECT c.visitbonus INTO bonus FROM Cities c WHERE c.game_id = $1 AND c.area = $3 FOR UPDATE;
+ bonus := COALESCE(bonus, 0);
+ -- The triggers check the budget after the tax and after the fees, both
+ -- before the bonus is paid out.
+ IF oldbudget - tax - fees < 0 THEN
+  RAISE EXCEPTION 'Insufficient budget for move' USING ERRCODE = 'check_violation';
+ END IF;
+
+ PERFORM set_config('game.moving', 'on', true);
+ UPDATE Persons p SET location = $3, budget = p.budget - tax - fees + bonus
+  WHERE p.game_id = $1 AND p.id = $2;
+ -- Road owners charging the cheapest tax get it, hotel owners share the fee.
+ UPDATE Persons p SET budget = p.budget + paid.amount
+  FROM (SELECT o.owner, SUM(o.amount) AS amount FROM (
+    SELECT r.owner, tax AS amount FROM Roads r
+    WHERE NOT free AND r.game_id = $1 AND r.roadtax = tax
+    AND ((r.fromarea = oldarea AND r.toarea = $3) OR (r.fromarea = $3 AND r.toarea = oldarea))
+    UNION ALL
+    SELECT h.owner, fees/GREATEST(hotels, 1) FROM Hotels h
+    WHERE h.game_id = $1 AND h.city = $3) AS o
+   GROUP BY o.owner) AS paid
+  WHERE p.game_id = $1 AND p.id = paid.owner;
+ IF bonus > 0 THEN
+  UPDATE Cities c SET visitbonus = 0 WHERE c.game_id = $1 AND c.area = $3;
+ END IF;
+ PERFORM set_config('game.moving', 'off', true);
+
+ RETURN QUERY SELECT p.location, tax, fees, bonus, p.budget
+  FROM Persons p WHERE p.game_id = $1 AND p.id = $2;
+ END;
+$$ LANGUAGE 'plpgsql';
+
+
+-- Row triggers on the partitioned tables are cloned to every partition
+-- (BEFORE row triggers on partitioned tables need PostgreSQL 13).
 CREATE TRIGGER updRoads
  BEFORE UPDATE on Roads
  FOR EACH ROW
@@ -254,6 +546,16 @@ CREATE TRIGGER insRoads
   FOR EACH ROW
   EXECUTE PROCEDURE insRoads();
 
+CREATE TRIGGER delRoads
+  AFTER DELETE on Roads
+  FOR EACH ROW
+  EXECUTE PROCEDURE delRoads();
+
+CREATE TRIGGER insPersons
+ AFTER INSERT on Persons
+ FOR EACH ROW
+ EXECUTE PROCEDURE insPersons();
+
 CREATE TRIGGER updPersons
  BEFORE UPDATE on Persons
  FOR EACH ROW
@@ -274,7 +576,7 @@ CREATE TRIGGER delHotel
   FOR EACH ROW
   EXECUTE PROCEDURE delHotel();
 
-CREATE TRIGGER updHotel 
+CREATE TRIGGER updHotel
  BEFORE UPDATE on Hotels
  FOR EACH ROW
  EXECUTE PROCEDURE updHotel();
@@ -0,0 +1,80 @@
+-- Plan regression check for the next-moves queries.
+--
+-- Run on a database that has task3.sql (and the getval constants) loaded:
+--   psql -v ON_ERROR_STOP=1 -f task3_check.sql
+-- It creates a scratch game with 1M roads inside a transaction, checks with
+-- EXPLAIN that the move lookups do not use sequential scans on Roads and
+-- only touch the game's partitions, and rolls everything back again. A
+-- failing check raises an exception.
+
+BEGIN;
+
+-- Returns the plan if it has a sequential scan on a partition of Roads, or
+-- reads a partition of another game, otherwise NULL. Persons only has a
+-- few rows here, so scanning it is fine.
+CREATE FUNCTION pg_temp.seqscans(query TEXT) RETURNS TEXT AS $$
+DECLARE plan JSONB;
+BEGIN
+ EXECUTE 'EXPLAIN (FORMAT JSON) ' || query INTO plan;
+ IF jsonb_path_exists(plan, '$.** ? (@."Node Type" == "Seq Scan" && @."Relation Name" starts with "roads")')
+  OR jsonb_path_exists(plan, '$.** ? (@."Relation Name" like_regex "_g[0-9]+$" && !(@."Relation Name" like_regex "_g2147483647$"))') THEN
+  RETURN plan::TEXT;
+ END IF;
+ RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+-- Area i has id i. Names must not contain digits, so numbers are spelled
+-- with letters.
+CREATE FUNCTION pg_temp.word(n INT) RETURNS TEXT AS $$
+SELECT translate(n::TEXT, '0123456789', 'abcdefghij');
+$$ LANGUAGE sql IMMUTABLE;
+
+-- The scratch game, next to whatever games the database holds.
+SELECT create_game(2147483647);
+INSERT INTO Countries VALUES (2147483647, '');
+INSERT INTO Areas VALUES (2147483647, 0, '', '', 1);
+INSERT INTO Persons VALUES (2147483647, 0, '', '', 'Government', 0, 0);
+INSERT INTO Countries VALUES (2147483647, 'Checkland');
+INSERT INTO Areas SELECT 2147483647, i, 'Checkland', pg_temp.word(i), 100 FROM generate_series(1, 200000) AS i;
+INSERT INTO Persons VALUES (2147483647, 1, 'Checkland', '19000101-0000', 'Checker', 1, 1000);
+
+-- Every area gets roads to its next five neighbours: 1M roads. The insert
+-- trigger only checks for duplicates, which generate_series cannot produce.
+ALTER TABLE roads_g2147483647 DISABLE TRIGGER insRoads;
+INSERT INTO Roads
+SELECT 2147483647, i, (i + k - 1) % 200000 + 1, 0, k
+FROM generate_series(1, 200000) AS i, generate_series(1, 5) AS k;
+ALTER TABLE roads_g2147483647 ENABLE TRIGGER insRoads;
+ANALYZE areas_g2147483647;
+ANALYZE roads_g2147483647;
+ANALYZE persons_g2147483647;
+
+DO $$
+DECLARE
+ checks TEXT[] := ARRAY[
+  -- Game.getNextMoves
+  $q$SELECT * FROM next_moves(2147483647, 1, 123)$q$,
+  -- NextMoves for one person
+  $q$SELECT MIN(cost) FROM NextMoves WHERE game_id = 2147483647 AND person = 1 AND destarea = 2$q$,
+  -- road lookup in updPersons and insRoads
+  $q$SELECT 1 FROM Roads WHERE game_id = 2147483647 AND ((fromarea = 1 AND toarea = 2) OR (fromarea = 2 AND toarea = 1))$q$,
+  -- Game.listProperties
+  $q$SELECT * FROM Roads WHERE game_id = 2147483647 AND owner = 1$q$,
+  -- Game.showScores
+  $q$SELECT * FROM AssetSummary WHERE game_id = 2147483647$q$
+ ];
+ q TEXT;
+ plan TEXT;
+BEGIN
+ FOREACH q IN ARRAY checks LOOP
+  plan := pg_temp.seqscans(q);
+  IF plan IS NOT NULL THEN
+   RAISE EXCEPTION 'Sequential scan or other game in plan of %: %', q, plan;
+  END IF;
+  RAISE NOTICE 'ok: %', q;
+ END LOOP;
+END;
+$$;
+
+ROLLBACK;